@@ -18,17 +18,32 @@
  */
 package com.gopivotal.spring.sqlfirecache;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.springframework.jdbc.core.BeanPropertyRowMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cache.support.SimpleValueWrapper;
+import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.SingleColumnRowMapper;
-import org.springframework.jdbc.core.namedparam.BeanPropertySqlParameterSource;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.util.StringUtils;
 
 import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 
 /**
@@ -40,6 +55,19 @@ import com.google.common.collect.Lists;
  * placed into the SQL statements in the order they are defined in the given
  * list.
  * 
+ * Small, read-mostly tables can be replicated, holding every entry locally
+ * and serving each get without a query. The replica is refreshed on an
+ * interval from the rows written since the last refresh, which are found
+ * through a last modified column added to the table.
+ * 
+ * Large values that rarely change can instead be held locally with the
+ * version they were read at. Each get then only selects the version of the
+ * row, and fetches the value again when the version has changed.
+ * 
+ * Reads can also be counted by a {@link HotKeyTracker}, reporting the most
+ * read keys, and keys read often enough can be pinned locally for a short
+ * time, sparing the members holding them from serving the same rows.
+ * 
  * @author cdelashmutt
  */
 public abstract class AbstractColumnDefinedSQLFireCache
@@ -48,7 +76,49 @@ public abstract class AbstractColumnDefinedSQLFireCache
 
 	private ColumnDefinition idColumn = new ColumnDefinition("k_ID",
 			SQLFType.INTEGER);
-	
+
+	private ColumnDefinition cacheNameColumn = new ColumnDefinition("k_CACHE",
+			SQLFType.VARCHAR, 128);
+
+	private String sharedTableName;
+
+	private volatile ColumnBinder valueBinder;
+
+	private volatile TypedRowMapper rowMapper;
+
+	private ColumnDefinition modifiedColumn;
+
+	private long replicaRefreshInterval;
+
+	private volatile LocalReplica replica;
+
+	private ScheduledExecutorService replicaRefresher;
+
+	private static final Random versions = new Random();
+
+	private ColumnDefinition versionColumn;
+
+	private long versionedCacheSize;
+
+	private volatile Cache<Object, VersionedValue> versionedValues;
+
+	private final AtomicLong validatedCount = new AtomicLong();
+
+	private final AtomicLong fetchCount = new AtomicLong();
+
+	private HotKeyTracker hotKeyTracker;
+
+	private int pinThreshold;
+
+	private long pinnedCacheSize = 100;
+
+	private long pinTimeToLive = 1000;
+
+	private volatile Cache<Object, ValueWrapper> pinnedValues;
+
+	private Logger log = LoggerFactory
+			.getLogger(AbstractColumnDefinedSQLFireCache.class);
+
 	/**
 	 * @return the idColumn
 	 */
@@ -57,6 +127,642 @@ public abstract class AbstractColumnDefinedSQLFireCache
 		return idColumn;
 	}
 
+	/**
+	 * @return the column holding the cache name when the cache is multiplexed
+	 *         into a shared table
+	 */
+	public ColumnDefinition getCacheNameColumn()
+	{
+		return cacheNameColumn;
+	}
+
+	/**
+	 * @return the name of the table shared with other caches, or null if this
+	 *         cache has a table of its own
+	 */
+	public String getSharedTableName()
+	{
+		return sharedTableName;
+	}
+
+	/**
+	 * Multiplexes this cache into a table shared with other caches of the same
+	 * type. The cache name is stored in an extra key column, so many small
+	 * caches can live in one table and share the same SQL statements.
+	 * 
+	 * @param sharedTableName
+	 *            the name of the shared table, or null to give this cache a
+	 *            table of its own
+	 */
+	public void setSharedTableName(String sharedTableName)
+	{
+		this.sharedTableName = sharedTableName;
+	}
+
+	/**
+	 * @return true if this cache stores its entries in a shared table
+	 */
+	public boolean isMultiplexed()
+	{
+		return sharedTableName != null;
+	}
+
+	/**
+	 * @return the interval in milliseconds between refreshes of the replica,
+	 *         or 0 if the cache is not replicated
+	 */
+	public long getReplicaRefreshInterval()
+	{
+		return replicaRefreshInterval;
+	}
+
+	/**
+	 * Replicates the whole table locally. Every entry is read on startup, or
+	 * on first use for caches that initialize their table lazily, and gets
+	 * are then served from the replica only. Every write stamps its row in an
+	 * extra k_MODIFIED column, from which the replica reads the rows written
+	 * since its last refresh.
+	 * 
+	 * Writes through this cache show in its replica straight away, those of
+	 * other members on the next refresh. Each refresh also reads the rows
+	 * written up to one interval before the latest it has seen, covering late
+	 * commits and clock differences between members.
+	 * 
+	 * @param replicaRefreshInterval
+	 *            the interval in milliseconds between refreshes, or 0 to query
+	 *            the table on every get
+	 */
+	public void setReplicaRefreshInterval(long replicaRefreshInterval)
+	{
+		this.replicaRefreshInterval = replicaRefreshInterval;
+		modifiedColumn = replicaRefreshInterval > 0 ? new ColumnDefinition(
+				"k_MODIFIED", SQLFType.BIGINT) : null;
+	}
+
+	/**
+	 * @return true if gets are served from a local replica of the table
+	 */
+	public boolean isReplicated()
+	{
+		return modifiedColumn != null;
+	}
+
+	/**
+	 * @return the number of values held locally with their versions, or 0 if
+	 *         values are not held
+	 */
+	public long getVersionedCacheSize()
+	{
+		return versionedCacheSize;
+	}
+
+	/**
+	 * Holds values locally with the version of the row they were read from.
+	 * Every write stores a new random version in an extra k_VERSION column,
+	 * and each get selects only that column, fetching the value again only
+	 * when it differs from the version held. Gets stay as consistent as
+	 * reading the value itself, while unchanged values are neither
+	 * transferred nor deserialized again.
+	 * 
+	 * @param versionedCacheSize
+	 *            the number of values to hold, evicting the least recently
+	 *            used, or 0 to fetch every value
+	 */
+	public void setVersionedCacheSize(long versionedCacheSize)
+	{
+		this.versionedCacheSize = versionedCacheSize;
+		versionColumn = versionedCacheSize > 0 ? new ColumnDefinition(
+				"k_VERSION", SQLFType.BIGINT) : null;
+	}
+
+	/**
+	 * @return the number of gets answered from a value held locally after
+	 *         checking its version
+	 */
+	public long getValidatedCount()
+	{
+		return validatedCount.get();
+	}
+
+	/**
+	 * @return the number of gets that fetched a value because none was held
+	 *         for the current version
+	 */
+	public long getFetchCount()
+	{
+		return fetchCount.get();
+	}
+
+	/**
+	 * @return the tracker counting reads of keys, or null
+	 */
+	public HotKeyTracker getHotKeyTracker()
+	{
+		return hotKeyTracker;
+	}
+
+	/**
+	 * Counts the reads of each key, so the most read keys can be reported and
+	 * pinned. Reads answered by a replica or a local tier are not counted.
+	 * 
+	 * @param hotKeyTracker
+	 *            the tracker, which should not be shared with other caches
+	 */
+	public void setHotKeyTracker(HotKeyTracker hotKeyTracker)
+	{
+		this.hotKeyTracker = hotKeyTracker;
+	}
+
+	/**
+	 * @return the most read keys with their estimated number of recent reads,
+	 *         hottest first, or an empty map if reads are not tracked
+	 */
+	public Map<Object, Integer> getHotKeys()
+	{
+		if (hotKeyTracker == null)
+			return Collections.emptyMap();
+		return hotKeyTracker.getTopKeys();
+	}
+
+	/**
+	 * @return the estimated number of recent reads above which values are
+	 *         pinned, or 0 if values are not pinned
+	 */
+	public int getPinThreshold()
+	{
+		return pinThreshold;
+	}
+
+	/**
+	 * Pins the values of keys read often, as estimated by the hot key tracker,
+	 * in a small local cache. Pinned values are returned without a query
+	 * until their time to live passes, so changes made by other members can
+	 * be missed for that long.
+	 * 
+	 * @param pinThreshold
+	 *            the estimated number of recent reads from which a value is
+	 *            pinned, or 0 to never pin
+	 */
+	public void setPinThreshold(int pinThreshold)
+	{
+		this.pinThreshold = pinThreshold;
+	}
+
+	/**
+	 * @return the number of values that can be pinned at once
+	 */
+	public long getPinnedCacheSize()
+	{
+		return pinnedCacheSize;
+	}
+
+	/**
+	 * @param pinnedCacheSize
+	 *            the number of values that can be pinned at once, evicting
+	 *            the least recently used. Defaults to 100.
+	 */
+	public void setPinnedCacheSize(long pinnedCacheSize)
+	{
+		this.pinnedCacheSize = pinnedCacheSize;
+	}
+
+	/**
+	 * @return the time in milliseconds a value stays pinned
+	 */
+	public long getPinTimeToLive()
+	{
+		return pinTimeToLive;
+	}
+
+	/**
+	 * @param pinTimeToLive
+	 *            the time in milliseconds a value stays pinned. Defaults to 1
+	 *            second.
+	 */
+	public void setPinTimeToLive(long pinTimeToLive)
+	{
+		this.pinTimeToLive = pinTimeToLive;
+	}
+
+	/**
+	 * @return the number of values currently pinned
+	 */
+	public long getPinnedCount()
+	{
+		return pinnedValues == null ? 0 : pinnedValues.size();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.AbstractSQLFireCache#afterPropertiesSet
+	 * ()
+	 */
+	@Override
+	public void afterPropertiesSet()
+		throws Exception
+	{
+		if (isReplicated() && versionColumn != null)
+			throw new IllegalStateException(
+					"A replicated cache already holds every value locally");
+		super.afterPropertiesSet();
+		if (versionColumn != null)
+		{
+			versionedValues = CacheBuilder.newBuilder()
+					.maximumSize(versionedCacheSize).build();
+		}
+		if (hotKeyTracker != null && pinThreshold > 0)
+		{
+			pinnedValues = CacheBuilder.newBuilder()
+					.maximumSize(pinnedCacheSize)
+					.expireAfterWrite(pinTimeToLive, TimeUnit.MILLISECONDS)
+					.build();
+		}
+		if (!isReplicated())
+			return;
+		List<String> columns = new ArrayList<String>(Lists.transform(
+				getDataColumns(), valueNameFunction));
+		columns.add(idColumn.getName());
+		columns.add(modifiedColumn.getName());
+		String selectSQL = "SELECT "
+				+ StringUtils.collectionToDelimitedString(columns, ", ")
+				+ " FROM " + getFQTableName();
+		replica = isMultiplexed() ? new LocalReplica(getJdbcOperations(),
+				selectSQL, cacheNameColumn.getName() + "=?",
+				idColumn.getName(), modifiedColumn.getName(), getRowMapper(),
+				replicaRefreshInterval, getName()) : new LocalReplica(
+				getJdbcOperations(), selectSQL, null, idColumn.getName(),
+				modifiedColumn.getName(), getRowMapper(),
+				replicaRefreshInterval);
+		if (getTableInitialization() == TableInitialization.EAGER)
+		{
+			replica.load();
+		}
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(
+				"sqlfire-cache-replica-");
+		threadFactory.setDaemon(true);
+		replicaRefresher = Executors
+				.newSingleThreadScheduledExecutor(threadFactory);
+		replicaRefresher.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					if (replica.isLoaded())
+						refreshReplica();
+				}
+				catch (DataAccessException e)
+				{
+					log.warn("Error refreshing the replica of cache "
+							+ getName(), e);
+				}
+			}
+		}, replicaRefreshInterval, replicaRefreshInterval,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.gopivotal.spring.sqlfirecache.AbstractSQLFireCache#destroy()
+	 */
+	@Override
+	public void destroy()
+		throws Exception
+	{
+		if (replicaRefresher != null)
+		{
+			replicaRefresher.shutdownNow();
+		}
+		super.destroy();
+	}
+
+	/**
+	 * Reads the rows written since the last refresh into the replica, without
+	 * waiting for the next interval.
+	 */
+	public void refreshReplica()
+	{
+		if (replica != null)
+		{
+			ensureTableInitialized();
+			replica.refresh();
+		}
+	}
+
+	private Map<Object, Object> getReplicaEntries()
+	{
+		Map<Object, Object> entries = replica.getEntries();
+		if (entries == null)
+		{
+			synchronized (replica)
+			{
+				if (!replica.isLoaded())
+				{
+					ensureTableInitialized();
+					replica.load();
+				}
+			}
+			entries = replica.getEntries();
+		}
+		return entries;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.AbstractSQLFireCache#get(java.lang.
+	 * Object)
+	 */
+	@Override
+	public ValueWrapper get(Object key)
+	{
+		if (replica != null)
+		{
+			Map<Object, Object> entries = getReplicaEntries();
+			if (!entries.containsKey(key))
+				return null;
+			return new SimpleValueWrapper(entries.get(key));
+		}
+		if (hotKeyTracker == null)
+			return getFromTable(key);
+		int estimate = hotKeyTracker.record(key);
+		if (pinnedValues == null)
+			return getFromTable(key);
+		ValueWrapper pinned = pinnedValues.getIfPresent(key);
+		if (pinned != null)
+			return pinned;
+		ValueWrapper wrapper = getFromTable(key);
+		if (wrapper != null && estimate >= pinThreshold)
+		{
+			Object value = wrapper.get();
+			Object resolved = resolveValue(key, value);
+			if (resolved != null || value == null)
+			{
+				wrapper = new SimpleValueWrapper(resolved);
+				pinnedValues.put(key, wrapper);
+			}
+		}
+		return wrapper;
+	}
+
+	private ValueWrapper getFromTable(Object key)
+	{
+		if (versionedValues != null)
+			return getVersioned(key);
+		return super.get(key);
+	}
+
+	private ValueWrapper getVersioned(Object key)
+	{
+		try
+		{
+			List<Long> current = queryForKey(getVersionSelectSQL(), key,
+					versionMapper);
+			if (current.isEmpty())
+			{
+				versionedValues.invalidate(key);
+				return null;
+			}
+			VersionedValue held = versionedValues.getIfPresent(key);
+			if (held != null && held.version == current.get(0).longValue())
+			{
+				validatedCount.incrementAndGet();
+				return held.wrapper;
+			}
+			fetchCount.incrementAndGet();
+			// The value may be replaced again while it is resolved, so try twice
+			for (int attempt = 0; attempt < 2; attempt++)
+			{
+				List<VersionedValue> rows = queryForKey(
+						getVersionedSelectSQL(), key, versionedRowMapper);
+				if (rows.isEmpty())
+				{
+					versionedValues.invalidate(key);
+					return null;
+				}
+				VersionedValue row = rows.get(0);
+				Object value = row.wrapper.get();
+				Object resolved = resolveValue(key, value);
+				if (resolved == null && value != null)
+					continue;
+				VersionedValue fetched = new VersionedValue(row.version,
+						resolved);
+				versionedValues.put(key, fetched);
+				return fetched.wrapper;
+			}
+			return null;
+		}
+		catch (DataAccessException e)
+		{
+			log.warn("Error executing select statement for cache get", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Resolves a value read from the data columns, before it is held or
+	 * pinned locally, for subclasses storing parts of values elsewhere.
+	 * 
+	 * @param key
+	 *            The key the value was read for
+	 * @param value
+	 *            The value mapped from the row
+	 * @return The value to hold, or null if the value it referred to has
+	 *         already been replaced
+	 */
+	protected Object resolveValue(Object key, Object value)
+	{
+		return value;
+	}
+
+	private String getVersionSelectSQL()
+	{
+		return "SELECT " + versionColumn.getName() + " FROM "
+				+ getFQTableName() + " WHERE " + buildKeyCondition();
+	}
+
+	private String getVersionedSelectSQL()
+	{
+		return "SELECT "
+				+ StringUtils.collectionToDelimitedString(
+						Lists.transform(getDataColumns(), valueNameFunction),
+						", ") + ", " + versionColumn.getName() + " FROM "
+				+ getFQTableName() + " WHERE " + buildKeyCondition();
+	}
+
+	private final RowMapper<Long> versionMapper = new RowMapper<Long>()
+	{
+		@Override
+		public Long mapRow(ResultSet rs, int rowNum)
+			throws SQLException
+		{
+			return rs.getLong(1);
+		}
+	};
+
+	private final RowMapper<VersionedValue> versionedRowMapper = new RowMapper<VersionedValue>()
+	{
+		@Override
+		public VersionedValue mapRow(ResultSet rs, int rowNum)
+			throws SQLException
+		{
+			// The value columns come first, as in the plain select
+			Object value = getRowMapper().mapRow(rs, rowNum);
+			return new VersionedValue(
+					rs.getLong(versionColumn.getName()), value);
+		}
+	};
+
+	/**
+	 * A value held locally with the version of the row it was read from.
+	 */
+	private static final class VersionedValue
+	{
+		final long version;
+
+		final ValueWrapper wrapper;
+
+		VersionedValue(long version, Object value)
+		{
+			this.version = version;
+			this.wrapper = new SimpleValueWrapper(value);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.AbstractSQLFireCache#write(java.lang
+	 * .Object, java.lang.Object)
+	 */
+	@Override
+	protected boolean write(Object key, Object value)
+	{
+		boolean written = super.write(key, value);
+		if (pinnedValues != null)
+		{
+			pinnedValues.invalidate(key);
+		}
+		if (versionedValues != null)
+		{
+			versionedValues.invalidate(key);
+		}
+		if (replica != null && replica.isLoaded())
+		{
+			try
+			{
+				// Read back as others will, rather than holding the instance
+				replica.update(key, queryForKey(key, getRowMapper()));
+			}
+			catch (DataAccessException e)
+			{
+				log.warn("Error reading back a put into the replica", e);
+			}
+		}
+		return written;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.AbstractSQLFireCache#evict(java.lang
+	 * .Object)
+	 */
+	@Override
+	public void evict(Object key)
+	{
+		super.evict(key);
+		if (pinnedValues != null)
+		{
+			pinnedValues.invalidate(key);
+		}
+		if (versionedValues != null)
+		{
+			versionedValues.invalidate(key);
+		}
+		if (replica != null)
+		{
+			replica.update(key, Collections.emptyList());
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.gopivotal.spring.sqlfirecache.AbstractSQLFireCache#clear()
+	 */
+	@Override
+	public void clear()
+	{
+		super.clear();
+		if (pinnedValues != null)
+		{
+			pinnedValues.invalidateAll();
+		}
+		if (versionedValues != null)
+		{
+			versionedValues.invalidateAll();
+		}
+		if (replica != null)
+		{
+			replica.clear();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.gopivotal.spring.sqlfirecache.AbstractSQLFireCache#
+	 * getWriteParameterSource
+	 * (org.springframework.jdbc.core.namedparam.SqlParameterSource)
+	 */
+	@Override
+	protected SqlParameterSource getWriteParameterSource(
+			SqlParameterSource source)
+	{
+		if (modifiedColumn == null && versionColumn == null)
+			return source;
+		MapSqlParameterSource written = new MapSqlParameterSource();
+		if (modifiedColumn != null)
+		{
+			written.addValue(modifiedColumn.getName(),
+					System.currentTimeMillis());
+			written.registerSqlType(modifiedColumn.getName(), modifiedColumn
+					.getType().getJdbcType());
+		}
+		if (versionColumn != null)
+		{
+			written.addValue(versionColumn.getName(), versions.nextLong());
+			written.registerSqlType(versionColumn.getName(), versionColumn
+					.getType().getJdbcType());
+		}
+		return new PrioritySqlParameterSource(source, written);
+	}
+
+	/**
+	 * @return the data columns, followed by the last modified column of a
+	 *         replicated cache and the version column of a versioned one
+	 */
+	private List<ColumnDefinition> getWrittenColumns()
+	{
+		if (modifiedColumn == null && versionColumn == null)
+			return getDataColumns();
+		List<ColumnDefinition> columns = new ArrayList<ColumnDefinition>(
+				getDataColumns());
+		if (modifiedColumn != null)
+			columns.add(modifiedColumn);
+		if (versionColumn != null)
+			columns.add(versionColumn);
+		return columns;
+	}
+
 	private Function<ColumnDefinition, String> valueNameFunction = new Function<ColumnDefinition, String>()
 	{
 		public String apply(ColumnDefinition input)
@@ -83,7 +789,7 @@ public abstract class AbstractColumnDefinedSQLFireCache
 					public String apply(ColumnDefinition input)
 					{
 						return input.getName() + " "
-								+ input.buildColumnTypeDefinitionSQL();
+								+ input.buildColumnTypeDefinitionSQL(getDialect());
 					}
 				}), ", ");
 	}
@@ -98,7 +804,47 @@ public abstract class AbstractColumnDefinedSQLFireCache
 	 */
 	private String buildPrimaryKeyClause(ColumnDefinition idColumns)
 	{
-		return "PRIMARY KEY(" + idColumn.getName() + ")";
+		if (isMultiplexed())
+		{
+			return "PRIMARY KEY(" + cacheNameColumn.getName() + ", "
+					+ idColumns.getName() + ")";
+		}
+		return "PRIMARY KEY(" + idColumns.getName() + ")";
+	}
+
+	/**
+	 * Creates the key columns fragment for the create statement.
+	 * 
+	 * @return The SQL fragment defining the key columns.
+	 */
+	private String buildCreateKeyColumnsFragment()
+	{
+		String keyColumns = idColumn.getName() + " "
+				+ idColumn.buildColumnTypeDefinitionSQL(getDialect());
+		if (isMultiplexed())
+		{
+			keyColumns += ", " + cacheNameColumn.getName() + " "
+					+ cacheNameColumn.buildColumnTypeDefinitionSQL(getDialect())
+					+ " NOT NULL";
+		}
+		return keyColumns;
+	}
+
+	/**
+	 * Creates the WHERE condition that identifies a single cached object.
+	 * 
+	 * @return The SQL condition matching the key columns against their
+	 *         placeholders.
+	 */
+	private String buildKeyCondition()
+	{
+		String condition = nameAndPlaceholderFunction.apply(idColumn);
+		if (isMultiplexed())
+		{
+			condition = nameAndPlaceholderFunction.apply(cacheNameColumn)
+					+ " AND " + condition;
+		}
+		return condition;
 	}
 
 	/*
@@ -110,11 +856,11 @@ public abstract class AbstractColumnDefinedSQLFireCache
 	@Override
 	protected String getCreateSQL()
 	{
-		return "CREATE TABLE " + getFQTableName() + " (" + idColumn.getName()
-				+ " " + idColumn.buildColumnTypeDefinitionSQL() + ", "
-				+ buildCreateColumnsFragment(getDataColumns()) + ", "
+		return "CREATE TABLE " + getFQTableName() + " ("
+				+ buildCreateKeyColumnsFragment() + ", "
+				+ buildCreateColumnsFragment(getWrittenColumns()) + ", "
 				+ buildPrimaryKeyClause(idColumn) + ")"
-				+ " PARTITION BY PRIMARY KEY";
+				+ getDialect().getPartitionClause();
 	}
 
 	/**
@@ -153,7 +899,64 @@ public abstract class AbstractColumnDefinedSQLFireCache
 	 */
 	protected SqlParameterSource getIdParameterSource(final Object key)
 	{
-		return new MapSqlParameterSource(idColumn.getName(), key);
+		MapSqlParameterSource source = new MapSqlParameterSource(
+				idColumn.getName(), key);
+		source.registerSqlType(idColumn.getName(), idColumn.getType()
+				.getJdbcType());
+		if (isMultiplexed())
+		{
+			source.addValue(cacheNameColumn.getName(), getName());
+			source.registerSqlType(cacheNameColumn.getName(), cacheNameColumn
+					.getType().getJdbcType());
+		}
+		return source;
+	}
+
+	/**
+	 * Provides a default strategy for producing the parameter source of the
+	 * data columns.
+	 * 
+	 * A single data column is bound to the value itself, mirroring the single
+	 * column row mapper used to read it back.
+	 * 
+	 * Multiple data columns are mapped from the elements of an Object[], the
+	 * entries of a Map, or the property names of any other object, through
+	 * getters looked up once per class. The value must be of the target type,
+	 * as rows are read back as that type.
+	 * 
+	 * Either way, parameters are bound with the JDBC types of their columns.
+	 * 
+	 * @param value
+	 *            The value object to store.
+	 * @return The parameter source
+	 * @throws IllegalArgumentException
+	 *             If the value would not be read back as the same type
+	 */
+	protected SqlParameterSource getValueParameterSource(final Object value)
+	{
+		List<ColumnDefinition> dataColumns = getDataColumns();
+		if (dataColumns.size() == 1)
+		{
+			ColumnDefinition column = dataColumns.get(0);
+			MapSqlParameterSource source = new MapSqlParameterSource(
+					column.getName(), value);
+			source.registerSqlType(column.getName(), column.getType()
+					.getJdbcType());
+			return source;
+		}
+		if (!getTargetType().isInstance(value))
+			throw new IllegalArgumentException(value.getClass()
+					+ " would be read back as " + getTargetType()
+					+ "; set the target type of cache " + getName()
+					+ " to the type of its values");
+		ColumnBinder binder = valueBinder;
+		if (binder == null || binder.getColumns() != dataColumns)
+		{
+			// The data columns are configurable, so rebuild when they change
+			binder = new ColumnBinder(dataColumns);
+			valueBinder = binder;
+		}
+		return binder.bind(value);
 	}
 
 	/*
@@ -187,7 +990,36 @@ public abstract class AbstractColumnDefinedSQLFireCache
 	@Override
 	protected String getDeleteWhereClause()
 	{
-		return "WHERE " + nameAndPlaceholderFunction.apply(idColumn);
+		return "WHERE " + buildKeyCondition();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.AbstractSQLFireCache#getClearWhereClause
+	 * ()
+	 */
+	@Override
+	protected String getClearWhereClause()
+	{
+		if (isMultiplexed())
+		{
+			return "WHERE " + nameAndPlaceholderFunction.apply(cacheNameColumn);
+		}
+		return null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.gopivotal.spring.sqlfirecache.AbstractSQLFireCache#
+	 * getClearPreparedStatementSetter()
+	 */
+	@Override
+	protected SqlParameterSource getClearPreparedStatementSetter()
+	{
+		return new MapSqlParameterSource(cacheNameColumn.getName(), getName());
 	}
 
 	/**
@@ -197,7 +1029,23 @@ public abstract class AbstractColumnDefinedSQLFireCache
 	 */
 	protected String getFQTableName()
 	{
-		return getSchemaName() + "." + getName();
+		return getSchemaName() + "." + getTableName();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.AbstractSQLFireCache#getTableName()
+	 */
+	@Override
+	protected String getTableName()
+	{
+		if (isMultiplexed())
+		{
+			return sharedTableName;
+		}
+		return super.getTableName();
 	}
 
 	/*
@@ -210,9 +1058,8 @@ public abstract class AbstractColumnDefinedSQLFireCache
 	protected SqlParameterSource getInsertPreparedStatementSetter(
 			final Object key, final Object value)
 	{
-		return new PrioritySqlParameterSource(new MapSqlParameterSource(
-				idColumn.getName(), key), new BeanPropertySqlParameterSource(
-				value));
+		return new PrioritySqlParameterSource(getIdParameterSource(key),
+				getValueParameterSource(value));
 	}
 
 	private Function<ColumnDefinition, String> placeHolderFunction = new Function<ColumnDefinition, String>()
@@ -237,18 +1084,42 @@ public abstract class AbstractColumnDefinedSQLFireCache
 				+ "("
 				+ idColumn.getName()
 				+ ", "
+				+ (isMultiplexed() ? cacheNameColumn.getName() + ", " : "")
 				+ StringUtils.collectionToDelimitedString(
-						Lists.transform(getDataColumns(), valueNameFunction),
+						Lists.transform(getWrittenColumns(), valueNameFunction),
 						", ")
 				+ ") VALUES ("
 				+ placeHolderFunction.apply(idColumn)
 				+ ", "
+				+ (isMultiplexed() ? placeHolderFunction
+						.apply(cacheNameColumn) + ", " : "")
 				+ StringUtils.collectionToDelimitedString(
-						Lists.transform(getDataColumns(), placeHolderFunction),
+						Lists.transform(getWrittenColumns(), placeHolderFunction),
 						", ") + ")";
 		return insertSQL;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.AbstractSQLFireCache#getUpsertSQL()
+	 */
+	@Override
+	protected String getUpsertSQL()
+	{
+		List<String> keyColumns = new ArrayList<String>();
+		if (isMultiplexed())
+		{
+			keyColumns.add(cacheNameColumn.getName());
+		}
+		keyColumns.add(idColumn.getName());
+		List<String> columns = new ArrayList<String>(keyColumns);
+		columns.addAll(Lists.transform(getWrittenColumns(), valueNameFunction));
+		return getDialect().buildUpsertSQL(getFQTableName(), keyColumns,
+				columns);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -263,15 +1134,65 @@ public abstract class AbstractColumnDefinedSQLFireCache
 			return getSingleColumnRowMapper(getDataColumns().get(0).getType()
 					.getJavaType());
 		}
-		else
+		TypedRowMapper mapper = rowMapper;
+		if (mapper == null || mapper.getColumns() != getDataColumns()
+				|| mapper.getTargetType() != getTargetType())
 		{
-			return BeanPropertyRowMapper.newInstance(Object.class);
+			mapper = new TypedRowMapper(getTargetType(), getDataColumns());
+			rowMapper = mapper;
 		}
+		return mapper;
+	}
+
+	/**
+	 * Returns the type rows of multiple data columns are mapped to. By default
+	 * rows are mapped to maps of column names to values.
+	 * 
+	 * @return The type, which may be Object[], a Map, a class with a
+	 *         constructor taking each column in order, or a bean
+	 */
+	protected Class<?> getTargetType()
+	{
+		return Map.class;
 	}
 
 	private <T> SingleColumnRowMapper<T> getSingleColumnRowMapper(Class<T> type)
 	{
-		return new SingleColumnRowMapper<T>(type);
+		return new FirstColumnRowMapper<T>(type);
+	}
+
+	/**
+	 * Maps the first column of a row, ignoring the key columns a replica
+	 * selects after it.
+	 */
+	private static class FirstColumnRowMapper<T>
+		extends SingleColumnRowMapper<T>
+	{
+		private final Class<T> type;
+
+		FirstColumnRowMapper(Class<T> type)
+		{
+			super(type);
+			this.type = type;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * org.springframework.jdbc.core.SingleColumnRowMapper#mapRow(java.sql
+		 * .ResultSet, int)
+		 */
+		@Override
+		@SuppressWarnings("unchecked")
+		public T mapRow(ResultSet rs, int rowNum)
+			throws SQLException
+		{
+			Object result = getColumnValue(rs, 1, type);
+			if (result != null && !type.isInstance(result))
+				return (T) convertValueToRequiredType(result, type);
+			return (T) result;
+		}
 	}
 
 	/*
@@ -303,7 +1224,7 @@ public abstract class AbstractColumnDefinedSQLFireCache
 				+ " FROM "
 				+ getFQTableName()
 				+ " WHERE "
-				+ nameAndPlaceholderFunction.apply(idColumn);
+				+ buildKeyCondition();
 	}
 
 	/*
@@ -316,9 +1237,8 @@ public abstract class AbstractColumnDefinedSQLFireCache
 	protected SqlParameterSource getUpdatePreparedStatementSetter(Object key,
 			Object value)
 	{
-		return new PrioritySqlParameterSource(new MapSqlParameterSource(
-				idColumn.getName(), key), new BeanPropertySqlParameterSource(
-				value));
+		return new PrioritySqlParameterSource(getIdParameterSource(key),
+				getValueParameterSource(value));
 	}
 
 	/*
@@ -334,10 +1254,10 @@ public abstract class AbstractColumnDefinedSQLFireCache
 				+ getFQTableName()
 				+ " SET "
 				+ StringUtils.collectionToDelimitedString(Lists.transform(
-						getDataColumns(), nameAndPlaceholderFunction),
+						getWrittenColumns(), nameAndPlaceholderFunction),
 						", ")
 				+ " WHERE "
-				+ nameAndPlaceholderFunction.apply(idColumn);
+				+ buildKeyCondition();
 	}
 
 }
\ No newline at end of file
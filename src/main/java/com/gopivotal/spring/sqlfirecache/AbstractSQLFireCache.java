@@ -18,26 +18,28 @@
  */
 package com.gopivotal.spring.sqlfirecache;
 
-import java.sql.Connection;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.sql.DataSource;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.cache.Cache;
 import org.springframework.cache.support.SimpleValueWrapper;
 import org.springframework.dao.DataAccessException;
-import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcOperations;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
-import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.SqlParameterSource;
 
+import com.gopivotal.spring.sqlfirecache.dialect.Dialect;
+import com.gopivotal.spring.sqlfirecache.dialect.SQLFireDialect;
+
 /**
  * A simple base class for caches that use SQL Statements to retrieve and store
  * data in SQLFire.
@@ -45,7 +47,7 @@ import org.springframework.jdbc.core.namedparam.SqlParameterSource;
  * @author cdelashmutt
  */
 public abstract class AbstractSQLFireCache
-	implements InitializingBean, Cache
+	implements InitializingBean, DisposableBean, Cache
 {
 
 	private String schemaName = "SPRINGCACHE";
@@ -56,7 +58,17 @@ public abstract class AbstractSQLFireCache
 
 	private JdbcTemplate template;
 
-	private NamedParameterJdbcTemplate namedTemplate;
+	private final ConcurrentMap<String, CompiledStatement> statements = new ConcurrentHashMap<String, CompiledStatement>();
+
+	private Dialect dialect = new SQLFireDialect();
+
+	private TableInitialization tableInitialization = TableInitialization.EAGER;
+
+	private volatile boolean tableInitialized;
+
+	private final Object tableInitializationLock = new Object();
+
+	private volatile long initializationTime = -1;
 
 	private Logger log = LoggerFactory
 			.getLogger(AbstractColumnDefinedSQLFireCache.class);
@@ -72,88 +84,103 @@ public abstract class AbstractSQLFireCache
 		throws Exception
 	{
 		template = new JdbcTemplate(dataSource);
-		namedTemplate = new NamedParameterJdbcTemplate(template);
-		template.execute(new ConnectionCallback<Object>()
+		if (tableInitialization == TableInitialization.EAGER)
 		{
-			private void createTable(Statement stm)
-				throws SQLException
-			{
-				log.debug("Creating table: " + schemaName + "." + getName());
-				String createSQL = getCreateSQL();
-				log.trace(createSQL);
-				stm.execute(createSQL);
-			}
+			initializeTable();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	@Override
+	public void destroy()
+		throws Exception
+	{
+		// Nothing to release by default
+	}
 
-			@Override
-			public Object doInConnection(Connection con)
-				throws SQLException, DataAccessException
+	/**
+	 * Checks the catalog for the schema and table backing this cache, and
+	 * creates them if they are missing.
+	 */
+	protected void initializeTable()
+	{
+		long start = System.currentTimeMillis();
+		template.execute(new TableInitializingCallback(dialect, schemaName,
+				getTableName(), getCreateSQL()));
+		markTableInitialized(System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Initializes the table on first use for caches using
+	 * {@link TableInitialization#LAZY}. Only the first caller performs the
+	 * catalog check, concurrent callers wait for it to finish.
+	 */
+	protected void ensureTableInitialized()
+	{
+		if (!tableInitialized
+				&& tableInitialization == TableInitialization.LAZY)
+		{
+			synchronized (tableInitializationLock)
 			{
-				Statement stm = null;
-				try
+				if (!tableInitialized)
 				{
-					stm = con.createStatement();
-					ResultSet schemas = stm
-							.executeQuery("select * from SYS.SYSSCHEMAS where SCHEMANAME='"
-									+ schemaName + "'");
-					boolean foundSchema = false;
-					try
-					{
-						while (schemas.next())
-						{
-							// We only get here if we found the schema.
-							log.trace("Found schema: " + schemaName);
-							foundSchema = true;
-							break;
-						}
-					}
-					finally
-					{
-						if (schemas != null)
-							schemas.close();
-					}
-					if (!foundSchema)
-					{
-						log.debug("Creating schema: " + schemaName);
-						stm.execute("CREATE SCHEMA " + schemaName);
-						createTable(stm);
-					}
-					else
-					{
-						ResultSet tables = stm
-								.executeQuery("select * from SYS.SYSTABLES where TABLESCHEMANAME='"
-										+ schemaName
-										+ "' and TABLENAME='"
-										+ getName().toUpperCase() + "'");
-						boolean foundTable = false;
-						try
-						{
-							while (tables.next())
-							{
-								// Only get here if we have the cache table
-								log.trace("Found cache table: " + getName());
-								foundTable = true;
-								break;
-							}
-						}
-						finally
-						{
-							if (tables != null)
-								tables.close();
-						}
-						if (!foundTable)
-						{
-							createTable(stm);
-						}
-					}
+					initializeTable();
 				}
-				finally
-				{
-					if (stm != null)
-						stm.close();
-				}
-				return null;
 			}
-		});
+		}
+	}
+
+	/**
+	 * Records that the table backing this cache has been checked or created,
+	 * possibly by someone else, such as a {@link SQLFireCacheManager}.
+	 * 
+	 * @param millis
+	 *            The time in milliseconds it took to initialize the table
+	 */
+	void markTableInitialized(long millis)
+	{
+		initializationTime = millis;
+		tableInitialized = true;
+		log.debug("Initialized table for cache " + getName() + " in " + millis
+				+ " ms");
+	}
+
+	/**
+	 * @return the time in milliseconds it took to check or create the table
+	 *         backing this cache, or -1 if it has not been initialized yet
+	 */
+	public long getInitializationTime()
+	{
+		return initializationTime;
+	}
+
+	/**
+	 * @return true if the table backing this cache is known to exist
+	 */
+	public boolean isTableInitialized()
+	{
+		return tableInitialized;
+	}
+
+	/**
+	 * @return the tableInitialization mode
+	 */
+	public TableInitialization getTableInitialization()
+	{
+		return tableInitialization;
+	}
+
+	/**
+	 * @param tableInitialization
+	 *            the tableInitialization mode to set
+	 */
+	public void setTableInitialization(TableInitialization tableInitialization)
+	{
+		this.tableInitialization = tableInitialization;
 	}
 
 	/*
@@ -164,7 +191,17 @@ public abstract class AbstractSQLFireCache
 	@Override
 	public void clear()
 	{
-		template.execute(getDeleteSQL());
+		ensureTableInitialized();
+		String clearWhereClause = getClearWhereClause();
+		if (clearWhereClause == null)
+		{
+			template.execute(getDeleteSQL());
+		}
+		else
+		{
+			update(getDeleteSQL() + " " + clearWhereClause,
+					getClearPreparedStatementSetter());
+		}
 	}
 
 	/*
@@ -175,7 +212,8 @@ public abstract class AbstractSQLFireCache
 	@Override
 	public void evict(Object key)
 	{
-		namedTemplate.update(getDeleteSQL() + " " + getDeleteWhereClause(),
+		ensureTableInitialized();
+		update(getDeleteSQL() + " " + getDeleteWhereClause(),
 				getDeletePreparedStatementSetter(key));
 	}
 
@@ -189,8 +227,7 @@ public abstract class AbstractSQLFireCache
 	{
 		try
 		{
-			List<?> results = namedTemplate.query(getSelectSQL(),
-					getSelectPreparedStatementSetter(key), getRowMapper());
+			List<?> results = queryForKey(key, getRowMapper());
 
 			if (results.size() == 0)
 			{
@@ -215,6 +252,33 @@ public abstract class AbstractSQLFireCache
 		}
 	}
 
+	/**
+	 * Returns a fragment WHERE clause used with the getDeleteSQL statement to
+	 * remove every object belonging to this cache, for tables that are shared
+	 * with other caches.
+	 * 
+	 * By default this returns null, which means the whole table is cleared.
+	 * 
+	 * @return The clear SQL WHERE clause fragment, or null to delete every row
+	 *         in the table.
+	 */
+	protected String getClearWhereClause()
+	{
+		return null;
+	}
+
+	/**
+	 * Provides a setter that can set any necessary parameters in the clear
+	 * WHERE clause.
+	 * 
+	 * @return The setter that can set parameters on the prepared clear SQL
+	 *         Statement.
+	 */
+	protected SqlParameterSource getClearPreparedStatementSetter()
+	{
+		return new MapSqlParameterSource();
+	}
+
 	/**
 	 * Returns the create SQL string used for creating the cache table, if
 	 * needed.
@@ -305,6 +369,17 @@ public abstract class AbstractSQLFireCache
 		return null;
 	}
 
+	/**
+	 * Returns the name of the table backing this cache. By default, this is
+	 * the name of the cache.
+	 * 
+	 * @return The unqualified table name.
+	 */
+	protected String getTableName()
+	{
+		return getName();
+	}
+
 	/**
 	 * Maps a returned record from for the execution of the select SQL statement
 	 * to an object.
@@ -345,6 +420,18 @@ public abstract class AbstractSQLFireCache
 	 */
 	protected abstract String getSelectSQL();
 
+	/**
+	 * Returns a single statement that inserts or replaces a cached object, if
+	 * the dialect supports one. Puts then bind the insert parameters to this
+	 * statement instead of running an update followed by an insert.
+	 * 
+	 * @return The upsert SQL string, or null to update and then insert.
+	 */
+	protected String getUpsertSQL()
+	{
+		return null;
+	}
+
 	/**
 	 * Provides a setter that can set any necessary parameters in the update SQL
 	 * String.
@@ -378,17 +465,45 @@ public abstract class AbstractSQLFireCache
 	 * java.lang.Object)
 	 */
 	@Override
-	public void put(final Object key, final Object value)
+	public void put(Object key, Object value)
+	{
+		write(key, value);
+	}
+
+	/**
+	 * Writes a value to the cache table with an upsert, or an update followed
+	 * by an insert if no row was updated. Problems writing the value are
+	 * logged rather than thrown, so they don't stop the cached method.
+	 * 
+	 * @param key
+	 *            The key
+	 * @param value
+	 *            The value
+	 * @return true if the value was written
+	 */
+	protected boolean write(Object key, Object value)
 	{
 		try
 		{
-			int updateCount = namedTemplate.update(getUpdateSQL(),
-					getUpdatePreparedStatementSetter(key, value));
+			ensureTableInitialized();
+			String upsertSQL = getUpsertSQL();
+			if (upsertSQL != null)
+			{
+				update(upsertSQL,
+						getWriteParameterSource(getInsertPreparedStatementSetter(
+								key, value)));
+				return true;
+			}
+			int updateCount = update(getUpdateSQL(),
+					getWriteParameterSource(getUpdatePreparedStatementSetter(
+							key, value)));
 			if (updateCount == 0)
 			{
-				namedTemplate.update(getInsertSQL(),
-						getInsertPreparedStatementSetter(key, value));
+				update(getInsertSQL(),
+						getWriteParameterSource(getInsertPreparedStatementSetter(
+								key, value)));
 			}
+			return true;
 		}
 		catch (Exception e)
 		{
@@ -396,7 +511,104 @@ public abstract class AbstractSQLFireCache
 			log.warn(
 					"Exception while attempting to update or insert to cache table.",
 					e);
+			return false;
+		}
+	}
+
+	/**
+	 * Adds any parameters shared by every write to the parameters of an
+	 * upsert, update or insert statement. By default the parameters are used
+	 * as they are.
+	 * 
+	 * @param source
+	 *            The parameters of the statement
+	 * @return The parameters to bind
+	 */
+	protected SqlParameterSource getWriteParameterSource(
+			SqlParameterSource source)
+	{
+		return source;
+	}
+
+	/**
+	 * Returns the compiled form of a statement with named placeholders,
+	 * compiling it the first time it is used.
+	 * 
+	 * @param namedSql
+	 *            The statement
+	 * @return The compiled statement
+	 */
+	private CompiledStatement compile(String namedSql)
+	{
+		CompiledStatement statement = statements.get(namedSql);
+		if (statement == null)
+		{
+			CompiledStatement compiled = new CompiledStatement(namedSql);
+			statement = statements.putIfAbsent(namedSql, compiled);
+			if (statement == null)
+				statement = compiled;
 		}
+		return statement;
+	}
+
+	/**
+	 * Runs the select statement for a key with the given row mapper, such as
+	 * one reading stored values without converting them.
+	 * 
+	 * @param key
+	 *            The key to select
+	 * @param rowMapper
+	 *            The mapper of the selected row
+	 * @return The mapped rows
+	 */
+	protected <T> List<T> queryForKey(Object key, RowMapper<T> rowMapper)
+	{
+		return queryForKey(getSelectSQL(), key, rowMapper);
+	}
+
+	/**
+	 * Runs a select statement other than the one for values, such as one
+	 * reading other columns, bound with the select parameters of a key.
+	 * 
+	 * @param namedSql
+	 *            The statement, with placeholders in the form used by the
+	 *            NamedParameterJdbcTemplate
+	 * @param key
+	 *            The key to select
+	 * @param rowMapper
+	 *            The mapper of the selected row
+	 * @return The mapped rows
+	 */
+	protected <T> List<T> queryForKey(String namedSql, Object key,
+			RowMapper<T> rowMapper)
+	{
+		ensureTableInitialized();
+		CompiledStatement select = compile(namedSql);
+		return template.query(select.getSql(),
+				select.bind(getSelectPreparedStatementSetter(key)), rowMapper);
+	}
+
+	private int update(String namedSql, SqlParameterSource source)
+	{
+		CompiledStatement statement = compile(namedSql);
+		return template.update(statement.getSql(), statement.bind(source));
+	}
+
+	/**
+	 * @return the operations to access the cache database through, available
+	 *         once the cache is initialized
+	 */
+	protected JdbcOperations getJdbcOperations()
+	{
+		return template;
+	}
+
+	/**
+	 * @return the dataSource
+	 */
+	public DataSource getDataSource()
+	{
+		return dataSource;
 	}
 
 	/**
@@ -408,6 +620,23 @@ public abstract class AbstractSQLFireCache
 		this.dataSource = dataSource;
 	}
 
+	/**
+	 * @return the dialect
+	 */
+	public Dialect getDialect()
+	{
+		return dialect;
+	}
+
+	/**
+	 * @param dialect
+	 *            the dialect of the database the cache is stored in
+	 */
+	public void setDialect(Dialect dialect)
+	{
+		this.dialect = dialect;
+	}
+
 	/**
 	 * @param name
 	 *            The name to set for this cache
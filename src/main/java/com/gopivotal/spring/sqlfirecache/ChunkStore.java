@@ -0,0 +1,600 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.SqlTypeValue;
+import org.springframework.util.StringUtils;
+
+import com.gopivotal.spring.sqlfirecache.dialect.Dialect;
+
+/**
+ * Stores values too large for a single row as numbered chunk rows in a table
+ * beside the cache table, colocated with the cache row of the same key.
+ * 
+ * Each write stores its chunks under a new version, and the cache row then
+ * points at that version through a {@link ChunkedValue} descriptor. Replacing
+ * the descriptor is a single row update, so readers see either the old or the
+ * new version, never a mix. Once the descriptor is written, the chunks of the
+ * version it replaced are deleted, and only those, so concurrent writers never
+ * delete each other's chunks. A reader that loses the race with that delete
+ * finds chunks missing and treats the value as absent.
+ * 
+ * @author cdelashmutt
+ */
+class ChunkStore
+{
+	private Logger log = LoggerFactory.getLogger(ChunkStore.class);
+
+	private static final Random versions = new Random();
+
+	private final JdbcOperations template;
+
+	private final Dialect dialect;
+
+	private final String schemaName;
+
+	private final String tableName;
+
+	private final String parentTableName;
+
+	private final List<ColumnDefinition> keyColumns;
+
+	private final String keyCondition;
+
+	private ExecutorService readExecutor;
+
+	private volatile boolean tableInitialized;
+
+	/**
+	 * Creates a chunk store.
+	 * 
+	 * @param template
+	 *            The operations to access the chunk table through
+	 * @param dialect
+	 *            The dialect of the database
+	 * @param schemaName
+	 *            The schema of the chunk table
+	 * @param tableName
+	 *            The unqualified name of the chunk table
+	 * @param parentTableName
+	 *            The schema qualified name of the cache table
+	 * @param keyColumns
+	 *            The key columns of the cache table, in primary key order
+	 */
+	ChunkStore(JdbcOperations template, Dialect dialect, String schemaName,
+			String tableName, String parentTableName,
+			List<ColumnDefinition> keyColumns)
+	{
+		this.template = template;
+		this.dialect = dialect;
+		this.schemaName = schemaName;
+		this.tableName = tableName;
+		this.parentTableName = parentTableName;
+		this.keyColumns = keyColumns;
+		List<String> conditions = new ArrayList<String>();
+		for (ColumnDefinition column : keyColumns)
+		{
+			conditions.add(column.getName() + "=?");
+		}
+		this.keyCondition = StringUtils.collectionToDelimitedString(
+				conditions, " AND ");
+	}
+
+	/**
+	 * @param readExecutor
+	 *            The executor to fetch chunks in parallel with, or null to
+	 *            read them as one ordered stream. The executor is owned by the
+	 *            caller, which shuts it down.
+	 */
+	void setReadExecutor(ExecutorService readExecutor)
+	{
+		this.readExecutor = readExecutor;
+	}
+
+	private String getFQTableName()
+	{
+		return schemaName + "." + tableName;
+	}
+
+	private void ensureTableInitialized()
+	{
+		if (!tableInitialized)
+		{
+			synchronized (this)
+			{
+				if (!tableInitialized)
+				{
+					template.execute(new TableInitializingCallback(dialect,
+							schemaName, tableName, getCreateSQL()));
+					tableInitialized = true;
+				}
+			}
+		}
+	}
+
+	private String getCreateSQL()
+	{
+		List<String> keyNames = new ArrayList<String>();
+		StringBuilder sql = new StringBuilder("CREATE TABLE ").append(
+				getFQTableName()).append(" (");
+		for (ColumnDefinition column : keyColumns)
+		{
+			keyNames.add(column.getName());
+			sql.append(column.getName()).append(' ')
+					.append(column.buildColumnTypeDefinitionSQL(dialect))
+					.append(" NOT NULL, ");
+		}
+		String keyList = StringUtils.collectionToDelimitedString(keyNames,
+				", ");
+		sql.append("VERSION BIGINT NOT NULL, CHUNK_NO INTEGER NOT NULL, DATA ")
+				.append(new ColumnDefinition("DATA", SQLFType.BLOB)
+						.buildColumnTypeDefinitionSQL(dialect))
+				.append(", PRIMARY KEY(").append(keyList)
+				.append(", VERSION, CHUNK_NO))")
+				.append(dialect.buildColocationClause(keyNames, parentTableName));
+		return sql.toString();
+	}
+
+	private Object[] append(Object[] keyValues, Object... values)
+	{
+		Object[] args = Arrays.copyOf(keyValues, keyValues.length
+				+ values.length);
+		System.arraycopy(values, 0, args, keyValues.length, values.length);
+		return args;
+	}
+
+	/**
+	 * Writes a value as a new version of chunks in one batch.
+	 * 
+	 * @param keyValues
+	 *            The values of the key columns
+	 * @param data
+	 *            The array holding the value
+	 * @param length
+	 *            The length of the value
+	 * @param chunkSize
+	 *            The largest chunk size in bytes
+	 * @return The descriptor to store in the cache row
+	 */
+	ChunkedValue write(Object[] keyValues, byte[] data, int length,
+			int chunkSize)
+	{
+		ensureTableInitialized();
+		ChunkedValue chunked = new ChunkedValue(newVersion(), length, chunkSize);
+		String sql = "INSERT INTO " + getFQTableName() + " ("
+				+ StringUtils.collectionToDelimitedString(getKeyNames(), ", ")
+				+ ", VERSION, CHUNK_NO, DATA) VALUES ("
+				+ buildPlaceholders(keyValues.length + 3) + ")";
+		List<Object[]> batch = new ArrayList<Object[]>(chunked.count);
+		for (int i = 0; i < chunked.count; i++)
+		{
+			int offset = i * chunkSize;
+			batch.add(append(keyValues, chunked.version, i, dialect
+					.createBlobValue(data, offset, Math.min(chunkSize, length
+							- offset))));
+		}
+		int[] types = new int[keyValues.length + 3];
+		Arrays.fill(types, SqlTypeValue.TYPE_UNKNOWN);
+		types[keyValues.length] = Types.BIGINT;
+		types[keyValues.length + 1] = Types.INTEGER;
+		types[keyValues.length + 2] = Types.BLOB;
+		template.batchUpdate(sql, batch, types);
+		return chunked;
+	}
+
+	private static String buildPlaceholders(int count)
+	{
+		StringBuilder placeholders = new StringBuilder("?");
+		for (int i = 1; i < count; i++)
+		{
+			placeholders.append(", ?");
+		}
+		return placeholders.toString();
+	}
+
+	private List<String> getKeyNames()
+	{
+		List<String> names = new ArrayList<String>();
+		for (ColumnDefinition column : keyColumns)
+		{
+			names.add(column.getName());
+		}
+		return names;
+	}
+
+	private static long newVersion()
+	{
+		return (System.currentTimeMillis() << 20) ^ versions.nextInt(1 << 20);
+	}
+
+	/**
+	 * Reads the chunks of a value and deserializes it.
+	 * 
+	 * @param keyValues
+	 *            The values of the key columns
+	 * @param chunked
+	 *            The descriptor read from the cache row
+	 * @param serializer
+	 *            The serializer to deserialize the value with
+	 * @return The value, or null if chunks of the version are missing
+	 */
+	Object read(Object[] keyValues, ChunkedValue chunked,
+			ObjectSerializer serializer)
+	{
+		ensureTableInitialized();
+		try
+		{
+			if (readExecutor == null || chunked.count == 1)
+				return readOrdered(keyValues, chunked, serializer);
+			byte[] data = readParallel(keyValues, chunked);
+			return data == null ? null : serializer.deserialize(data);
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException("Error de-serializing object", e);
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new RuntimeException("Error de-serializing object", e);
+		}
+	}
+
+	/**
+	 * Reads the chunks of a value into one array, without deserializing it.
+	 * 
+	 * @param keyValues
+	 *            The values of the key columns
+	 * @param chunked
+	 *            The descriptor read from the cache row
+	 * @return The serialized value, or null if chunks of the version are
+	 *         missing
+	 */
+	byte[] readBytes(Object[] keyValues, final ChunkedValue chunked)
+	{
+		ensureTableInitialized();
+		try
+		{
+			if (readExecutor != null && chunked.count > 1)
+				return readParallel(keyValues, chunked);
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException("Error reading chunks", e);
+		}
+		return template.query("SELECT DATA FROM " + getFQTableName()
+				+ " WHERE " + keyCondition + " AND VERSION=? ORDER BY CHUNK_NO",
+				append(keyValues, chunked.version),
+				new ResultSetExtractor<byte[]>()
+				{
+					@Override
+					public byte[] extractData(ResultSet rs)
+						throws SQLException, DataAccessException
+					{
+						ChunkInputStream in = new ChunkInputStream(rs);
+						byte[] data = new byte[chunked.length];
+						try
+						{
+							new DataInputStream(in).readFully(data);
+						}
+						catch (IOException e)
+						{
+							if (in.chunks < chunked.count)
+							{
+								log.debug("Chunks missing for version "
+										+ chunked.version, e);
+								return null;
+							}
+							throw new SQLException("Error reading chunks", e);
+						}
+						return in.chunks == chunked.count ? data : null;
+					}
+				});
+	}
+
+	private Object readOrdered(Object[] keyValues, final ChunkedValue chunked,
+			final ObjectSerializer serializer)
+	{
+		return template.query("SELECT DATA FROM " + getFQTableName()
+				+ " WHERE " + keyCondition + " AND VERSION=? ORDER BY CHUNK_NO",
+				append(keyValues, chunked.version),
+				new ResultSetExtractor<Object>()
+				{
+					@Override
+					public Object extractData(ResultSet rs)
+						throws SQLException, DataAccessException
+					{
+						ChunkInputStream in = new ChunkInputStream(rs);
+						try
+						{
+							Object value = serializer.deserialize(in);
+							return in.chunks == chunked.count ? value : null;
+						}
+						catch (IOException e)
+						{
+							if (in.chunks < chunked.count)
+							{
+								log.debug("Chunks missing for version "
+										+ chunked.version, e);
+								return null;
+							}
+							throw new RuntimeException(
+									"Error de-serializing object", e);
+						}
+						catch (ClassNotFoundException e)
+						{
+							throw new RuntimeException(
+									"Error de-serializing object", e);
+						}
+					}
+				});
+	}
+
+	private byte[] readParallel(final Object[] keyValues,
+			final ChunkedValue chunked)
+		throws IOException
+	{
+		final byte[] data = new byte[chunked.length];
+		final String sql = "SELECT DATA FROM " + getFQTableName() + " WHERE "
+				+ keyCondition + " AND VERSION=? AND CHUNK_NO=?";
+		List<Future<Boolean>> reads = new ArrayList<Future<Boolean>>(
+				chunked.count);
+		for (int i = 0; i < chunked.count; i++)
+		{
+			final int chunk = i;
+			reads.add(readExecutor.submit(new Callable<Boolean>()
+			{
+				@Override
+				public Boolean call()
+					throws Exception
+				{
+					return template.query(sql,
+							append(keyValues, chunked.version, chunk),
+							new ResultSetExtractor<Boolean>()
+							{
+								@Override
+								public Boolean extractData(ResultSet rs)
+									throws SQLException, DataAccessException
+								{
+									if (!rs.next())
+										return false;
+									int offset = chunk * chunked.chunkSize;
+									readFully(dialect.getBlobStream(rs, "DATA"),
+											data, offset, Math.min(
+													chunked.chunkSize,
+													data.length - offset));
+									return true;
+								}
+							});
+				}
+			}));
+		}
+		boolean complete = true;
+		for (Future<Boolean> read : reads)
+		{
+			try
+			{
+				complete &= read.get();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while reading chunks", e);
+			}
+			catch (ExecutionException e)
+			{
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw new IOException("Error reading chunk", e.getCause());
+			}
+		}
+		return complete ? data : null;
+	}
+
+	private static void readFully(InputStream in, byte[] target, int offset,
+			int length)
+		throws SQLException
+	{
+		try
+		{
+			try
+			{
+				new DataInputStream(in).readFully(target, offset, length);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException e)
+		{
+			throw new SQLException("Error reading chunk", e);
+		}
+	}
+
+	/**
+	 * Deletes the chunks of one version of a key.
+	 * 
+	 * @param keyValues
+	 *            The values of the key columns
+	 * @param version
+	 *            The version to delete
+	 */
+	void deleteVersion(Object[] keyValues, long version)
+	{
+		ensureTableInitialized();
+		template.update("DELETE FROM " + getFQTableName() + " WHERE "
+				+ keyCondition + " AND VERSION=?", append(keyValues, version));
+	}
+
+	/**
+	 * Deletes the chunks of every key matching a condition.
+	 * 
+	 * @param condition
+	 *            The WHERE condition with positional placeholders, or null
+	 * @param args
+	 *            The placeholder values
+	 */
+	void deleteWhere(String condition, Object... args)
+	{
+		ensureTableInitialized();
+		template.update("DELETE FROM " + getFQTableName()
+				+ (condition != null ? " WHERE " + condition : ""), args);
+	}
+
+	/**
+	 * Points a cache row at a version of chunks.
+	 */
+	static class ChunkedValue
+	{
+		final long version;
+
+		final int count;
+
+		final int length;
+
+		final int chunkSize;
+
+		ChunkedValue(long version, int length, int chunkSize)
+		{
+			this.version = version;
+			this.length = length;
+			this.chunkSize = chunkSize;
+			this.count = (length + chunkSize - 1) / chunkSize;
+		}
+
+		/**
+		 * Writes the descriptor, starting with
+		 * {@link ObjectSerializer#CHUNKED_ID}.
+		 */
+		void write(OutputStream out)
+			throws IOException
+		{
+			DataOutputStream data = new DataOutputStream(out);
+			data.writeByte(ObjectSerializer.CHUNKED_ID);
+			data.writeLong(version);
+			data.writeInt(length);
+			data.writeInt(chunkSize);
+			data.flush();
+		}
+
+		/**
+		 * Reads a descriptor whose first byte has already been read.
+		 */
+		static ChunkedValue read(InputStream in)
+			throws IOException
+		{
+			DataInputStream data = new DataInputStream(in);
+			return new ChunkedValue(data.readLong(), data.readInt(),
+					data.readInt());
+		}
+	}
+
+	/**
+	 * Reads the chunk BLOBs of an ordered result set as one stream.
+	 */
+	private class ChunkInputStream
+		extends InputStream
+	{
+		private final ResultSet rs;
+
+		private final byte[] single = new byte[1];
+
+		private InputStream current;
+
+		private boolean done;
+
+		int chunks;
+
+		ChunkInputStream(ResultSet rs)
+		{
+			this.rs = rs;
+		}
+
+		private boolean advance()
+			throws IOException
+		{
+			if (done)
+				return false;
+			try
+			{
+				if (!rs.next())
+				{
+					done = true;
+					return false;
+				}
+				chunks++;
+				current = dialect.getBlobStream(rs, "DATA");
+				return true;
+			}
+			catch (SQLException e)
+			{
+				throw new IOException("Error reading chunk", e);
+			}
+		}
+
+		@Override
+		public int read()
+			throws IOException
+		{
+			return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len)
+			throws IOException
+		{
+			if (len == 0)
+				return 0;
+			while (true)
+			{
+				if (current == null && !advance())
+					return -1;
+				if (current == null)
+					continue;
+				int count = current.read(b, off, len);
+				if (count > 0)
+					return count;
+				current.close();
+				current = null;
+			}
+		}
+	}
+}
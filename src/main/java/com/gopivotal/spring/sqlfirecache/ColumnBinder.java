@@ -0,0 +1,322 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache;
+
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.BeanUtils;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * Binds values to a list of data columns, in each of the shapes
+ * {@link TypedRowMapper} reads rows back as, so whatever a cache returns can
+ * be put back:
+ * <ul>
+ * <li>Object[], holding the column values in order</li>
+ * <li>Map, holding the column values by column name</li>
+ * <li>any other object, whose properties are matched to columns by name,
+ * ignoring case and underscores</li>
+ * </ul>
+ * 
+ * The getter of each column is looked up once per value class and kept in a
+ * table indexed by column position, so binding a value only calls the
+ * getters, and every parameter reports the exact JDBC type of its column.
+ * 
+ * @author cdelashmutt
+ */
+class ColumnBinder
+{
+	private final List<ColumnDefinition> columns;
+
+	private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+	private final Map<Class<?>, Method[]> getters = new ConcurrentHashMap<Class<?>, Method[]>();
+
+	/**
+	 * Creates a binder for the given columns.
+	 * 
+	 * @param columns
+	 *            The data columns, in statement order
+	 */
+	ColumnBinder(List<ColumnDefinition> columns)
+	{
+		this.columns = columns;
+		for (int i = 0; i < columns.size(); i++)
+		{
+			indexes.put(columns.get(i).getName(), i);
+		}
+	}
+
+	/**
+	 * @return The columns this binder binds
+	 */
+	List<ColumnDefinition> getColumns()
+	{
+		return columns;
+	}
+
+	/**
+	 * Binds a value to the columns.
+	 * 
+	 * @param value
+	 *            The value object, array or map
+	 * @return The parameter source
+	 * @throws IllegalArgumentException
+	 *             If the value is an array not holding one element per column
+	 */
+	SqlParameterSource bind(Object value)
+	{
+		if (value instanceof Object[])
+		{
+			Object[] elements = (Object[]) value;
+			if (elements.length != columns.size())
+				throw new IllegalArgumentException("Array of "
+						+ elements.length + " values does not match the "
+						+ columns.size() + " data columns");
+			return new ArrayParameterSource(elements);
+		}
+		if (value instanceof Map)
+			return new MapParameterSource((Map<?, ?>) value);
+		return new BoundParameterSource(value, getGetters(value.getClass()));
+	}
+
+	private Method[] getGetters(Class<?> type)
+	{
+		Method[] typeGetters = getters.get(type);
+		if (typeGetters == null)
+		{
+			typeGetters = new Method[columns.size()];
+			Map<String, Method> readMethods = new HashMap<String, Method>();
+			for (PropertyDescriptor property : BeanUtils
+					.getPropertyDescriptors(type))
+			{
+				if (property.getReadMethod() != null)
+					readMethods.put(normalize(property.getName()),
+							property.getReadMethod());
+			}
+			for (int i = 0; i < typeGetters.length; i++)
+			{
+				Method getter = readMethods.get(normalize(columns.get(i)
+						.getName()));
+				if (getter != null)
+				{
+					ReflectionUtils.makeAccessible(getter);
+					typeGetters[i] = getter;
+				}
+			}
+			getters.put(type, typeGetters);
+		}
+		return typeGetters;
+	}
+
+	private static String normalize(String name)
+	{
+		return name.replace("_", "").toLowerCase();
+	}
+
+	/**
+	 * Binds the columns by position, reporting the JDBC type of each.
+	 */
+	private abstract class ColumnParameterSource
+		implements ShapedSqlParameterSource
+	{
+		/**
+		 * @param index
+		 *            The position of the column
+		 * @return Whether the value supplies the column
+		 */
+		abstract boolean hasColumn(int index);
+
+		/**
+		 * @param index
+		 *            The position of the column, which the value supplies
+		 * @return The value of the column
+		 */
+		abstract Object getColumn(int index);
+
+		/**
+		 * @param paramName
+		 *            The name of a column the value does not supply
+		 * @return The message reporting it
+		 */
+		abstract String describeMissing(String paramName);
+
+		@Override
+		public boolean hasValue(String paramName)
+		{
+			Integer index = indexes.get(paramName);
+			return index != null && hasColumn(index);
+		}
+
+		@Override
+		public Object getValue(String paramName)
+			throws IllegalArgumentException
+		{
+			Integer index = indexes.get(paramName);
+			if (index == null || !hasColumn(index))
+				throw new IllegalArgumentException(describeMissing(paramName));
+			return getColumn(index);
+		}
+
+		@Override
+		public int getSqlType(String paramName)
+		{
+			Integer index = indexes.get(paramName);
+			return index == null ? TYPE_UNKNOWN : columns.get(index).getType()
+					.getJdbcType();
+		}
+
+		@Override
+		public String getTypeName(String paramName)
+		{
+			return null;
+		}
+	}
+
+	private class ArrayParameterSource
+		extends ColumnParameterSource
+	{
+		private final Object[] elements;
+
+		ArrayParameterSource(Object[] elements)
+		{
+			this.elements = elements;
+		}
+
+		@Override
+		boolean hasColumn(int index)
+		{
+			return true;
+		}
+
+		@Override
+		public Object getShape()
+		{
+			// Every column is provided
+			return ColumnBinder.this;
+		}
+
+		@Override
+		Object getColumn(int index)
+		{
+			return elements[index];
+		}
+
+		@Override
+		String describeMissing(String paramName)
+		{
+			return "No element for column " + paramName;
+		}
+	}
+
+	private class MapParameterSource
+		extends ColumnParameterSource
+	{
+		private final Map<?, ?> entries;
+
+		MapParameterSource(Map<?, ?> entries)
+		{
+			this.entries = entries;
+		}
+
+		@Override
+		boolean hasColumn(int index)
+		{
+			return entries.containsKey(columns.get(index).getName());
+		}
+
+		@Override
+		public Object getShape()
+		{
+			return entries.keySet();
+		}
+
+		@Override
+		Object getColumn(int index)
+		{
+			return entries.get(columns.get(index).getName());
+		}
+
+		@Override
+		String describeMissing(String paramName)
+		{
+			return "No entry of the map for column " + paramName;
+		}
+	}
+
+	private class BoundParameterSource
+		extends ColumnParameterSource
+	{
+		private final Object value;
+
+		private final Method[] valueGetters;
+
+		BoundParameterSource(Object value, Method[] valueGetters)
+		{
+			this.value = value;
+			this.valueGetters = valueGetters;
+		}
+
+		@Override
+		boolean hasColumn(int index)
+		{
+			return valueGetters[index] != null;
+		}
+
+		@Override
+		public Object getShape()
+		{
+			// The getters are looked up once for each class
+			return valueGetters;
+		}
+
+		@Override
+		Object getColumn(int index)
+		{
+			try
+			{
+				return valueGetters[index].invoke(value);
+			}
+			catch (IllegalAccessException e)
+			{
+				throw new IllegalStateException(e);
+			}
+			catch (InvocationTargetException e)
+			{
+				throw new IllegalArgumentException("Error reading "
+						+ columns.get(index).getName() + " of "
+						+ value.getClass(), e.getCause());
+			}
+		}
+
+		@Override
+		String describeMissing(String paramName)
+		{
+			return "No property of " + value.getClass() + " for column "
+					+ paramName;
+		}
+	}
+}
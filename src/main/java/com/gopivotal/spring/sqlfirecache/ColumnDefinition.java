@@ -18,6 +18,9 @@
  */
 package com.gopivotal.spring.sqlfirecache;
 
+import com.gopivotal.spring.sqlfirecache.dialect.Dialect;
+import com.gopivotal.spring.sqlfirecache.dialect.SQLFireDialect;
+
 /**
  * A column definition.
  * 
@@ -25,6 +28,8 @@ package com.gopivotal.spring.sqlfirecache;
  */
 public class ColumnDefinition
 {
+	private static final Dialect DEFAULT_DIALECT = new SQLFireDialect();
+
 	private String name;
 
 	private SQLFType type;
@@ -208,59 +213,18 @@ public class ColumnDefinition
 	 */
 	public String buildColumnTypeDefinitionSQL()
 	{
-		String columnDef = this.getType().getSQLName();
-		switch (this.getType())
-		{
-			//Possibly Length, and Suffix needed
-			case BINARY:
-			case VARBINARY:
-				if(this.getLength() != null)
-					columnDef += "(" + this.getLength() + ")";
-				columnDef += " FOR BIT DATA";
-				break;
-				
-			// Length and Unit
-			case BLOB:
-			case CLOB:
-				if(this.getLength() != null)
-				{
-					columnDef += "(" + this.getLength();
-					if(this.getUnit() != null)
-					{
-						columnDef += this.getUnit().name();
-					}
-					columnDef += ")";
-				}
-				break;
-				
-			//Length only
-			case CHAR:
-			case VARCHAR:
-				if(this.getLength() != null)
-				{
-					columnDef += "(" + this.getLength() + ")";
-				}
-				break;
-				
-			//Precision and Scale
-			case DECIMAL:
-			case NUMERIC:
-				if(this.getPrecision() != null)
-				{
-					columnDef += "(" + this.getPrecision();
-					if(this.getScale() != null)
-					{
-						columnDef += ", " + this.getScale();
-					}
-					columnDef += ")";
-				}
-				break;
-				
-			//Nothing else needs to happen.
-			default:
-				break;
-		}
-		return columnDef;
+		return buildColumnTypeDefinitionSQL(DEFAULT_DIALECT);
+	}
+
+	/**
+	 * Creates an SQL column type definition fragment for the given dialect.
+	 *
+	 * @param dialect The dialect of the database the column is created in
+	 * @return A type string with no column name that is suitable for appending to the column name.
+	 */
+	public String buildColumnTypeDefinitionSQL(Dialect dialect)
+	{
+		return dialect.buildColumnTypeDefinitionSQL(this);
 	}
 
 	/* (non-Javadoc)
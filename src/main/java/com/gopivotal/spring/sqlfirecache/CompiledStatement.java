@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.jdbc.core.ParameterDisposer;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.SqlParameter;
+import org.springframework.jdbc.core.StatementCreatorUtils;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterUtils;
+import org.springframework.jdbc.core.namedparam.ParsedSql;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+
+/**
+ * A statement with named placeholders, parsed once into positional SQL and
+ * the ordered list of its parameter names.
+ * 
+ * When bound to a {@link PrioritySqlParameterSource}, each parameter is
+ * resolved to the first of its sources that provides it, and the resolution
+ * is kept for the shape of the sources, so later bindings of sources of the
+ * same shape read every parameter straight from its source without asking
+ * any source whether it has it. Sources whose shape is not known, see
+ * {@link ShapedSqlParameterSource}, are resolved on every binding.
+ * 
+ * @author cdelashmutt
+ */
+class CompiledStatement
+{
+	/**
+	 * Caps the shapes kept, as values of many classes or maps with many key
+	 * sets could each bring another.
+	 */
+	private static final int MAX_SHAPES = 64;
+
+	private final String sql;
+
+	private final String[] names;
+
+	private final ConcurrentMap<Object, int[]> slots = new ConcurrentHashMap<Object, int[]>();
+
+	/**
+	 * Parses a statement with named placeholders.
+	 * 
+	 * @param namedSql
+	 *            The statement, with placeholders in the form used by the
+	 *            NamedParameterJdbcTemplate
+	 */
+	CompiledStatement(String namedSql)
+	{
+		ParsedSql parsed = NamedParameterUtils.parseSqlStatement(namedSql);
+		sql = NamedParameterUtils.substituteNamedParameters(parsed, null);
+		List<SqlParameter> parameters = NamedParameterUtils
+				.buildSqlParameterList(parsed, new MapSqlParameterSource());
+		names = new String[parameters.size()];
+		for (int i = 0; i < names.length; i++)
+		{
+			names[i] = parameters.get(i).getName();
+		}
+	}
+
+	/**
+	 * @return The statement with positional placeholders
+	 */
+	String getSql()
+	{
+		return sql;
+	}
+
+	/**
+	 * Creates a setter binding the parameters of this statement from a source.
+	 * 
+	 * @param source
+	 *            The source of the parameter values
+	 * @return The setter, which also disposes of LOB values once the statement
+	 *         is executed
+	 */
+	PreparedStatementSetter bind(SqlParameterSource source)
+	{
+		return new Binding(source);
+	}
+
+	private SqlParameterSource[] resolve(SqlParameterSource source)
+	{
+		SqlParameterSource[] resolved = new SqlParameterSource[names.length];
+		if (!(source instanceof PrioritySqlParameterSource))
+		{
+			for (int i = 0; i < names.length; i++)
+			{
+				resolved[i] = source;
+			}
+			return resolved;
+		}
+		PrioritySqlParameterSource priority = (PrioritySqlParameterSource) source;
+		List<SqlParameterSource> checked = new ArrayList<SqlParameterSource>();
+		priority.addSources(checked);
+		Object shape = priority.getShape();
+		int[] resolvedSlots = shape == null ? null : slots.get(shape);
+		if (resolvedSlots == null)
+		{
+			resolvedSlots = new int[names.length];
+			for (int i = 0; i < names.length; i++)
+			{
+				resolvedSlots[i] = findSlot(checked, names[i]);
+			}
+			if (shape != null && slots.size() < MAX_SHAPES)
+				slots.putIfAbsent(copyShape(shape), resolvedSlots);
+		}
+		for (int i = 0; i < names.length; i++)
+		{
+			resolved[i] = checked.get(resolvedSlots[i]);
+		}
+		return resolved;
+	}
+
+	private static int findSlot(List<SqlParameterSource> checked, String name)
+	{
+		for (int i = 0; i < checked.size(); i++)
+		{
+			if (checked.get(i).hasValue(name))
+				return i;
+		}
+		throw new InvalidDataAccessApiUsageException(
+				"No value supplied for the SQL parameter '" + name + "'");
+	}
+
+	/**
+	 * Copies the sets in a shape, which may be views of the values of a
+	 * source, so the shape kept does not change with the source.
+	 */
+	private static Object copyShape(Object shape)
+	{
+		if (shape instanceof List)
+		{
+			List<Object> copy = new ArrayList<Object>();
+			for (Object element : (List<?>) shape)
+			{
+				copy.add(copyShape(element));
+			}
+			return copy;
+		}
+		if (shape instanceof Set)
+			return new HashSet<Object>((Set<?>) shape);
+		return shape;
+	}
+
+	private class Binding
+		implements PreparedStatementSetter, ParameterDisposer
+	{
+		private final SqlParameterSource source;
+
+		private final Object[] values = new Object[names.length];
+
+		Binding(SqlParameterSource source)
+		{
+			this.source = source;
+		}
+
+		@Override
+		public void setValues(PreparedStatement ps)
+			throws SQLException
+		{
+			SqlParameterSource[] resolved = resolve(source);
+			for (int i = 0; i < names.length; i++)
+			{
+				String name = names[i];
+				values[i] = resolved[i].getValue(name);
+				StatementCreatorUtils.setParameterValue(ps, i + 1,
+						resolved[i].getSqlType(name),
+						resolved[i].getTypeName(name), values[i]);
+			}
+		}
+
+		@Override
+		public void cleanupParameters()
+		{
+			StatementCreatorUtils.cleanupParameters(values);
+		}
+	}
+}
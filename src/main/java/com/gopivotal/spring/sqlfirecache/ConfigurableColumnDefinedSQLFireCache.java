@@ -20,6 +20,7 @@ package com.gopivotal.spring.sqlfirecache;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A simple, column oriented cache intended to be configured via dependency injection.
@@ -32,6 +33,8 @@ public class ConfigurableColumnDefinedSQLFireCache
 	
 	List<ColumnDefinition> dataColumns = new ArrayList<ColumnDefinition>();
 
+	private Class<?> targetType = Map.class;
+
 	/* (non-Javadoc)
 	 * @see com.gopivotal.spring.sqlfirecache.AbstractColumnDefinedSQLFireCache#getDataColumns()
 	 */
@@ -50,4 +53,26 @@ public class ConfigurableColumnDefinedSQLFireCache
 		this.dataColumns = dataColumns;
 	}
 
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.AbstractColumnDefinedSQLFireCache#getTargetType()
+	 */
+	@Override
+	public Class<?> getTargetType()
+	{
+		return targetType;
+	}
+
+	/**
+	 * @param targetType
+	 *            the type rows of multiple data columns are read back as:
+	 *            Object[], Map, the default, a class with a constructor taking
+	 *            each data column in order, or a bean with properties named
+	 *            after the data columns. Only values of this type are stored,
+	 *            so caches of beans must set it to their class.
+	 */
+	public void setTargetType(Class<?> targetType)
+	{
+		this.targetType = targetType;
+	}
+
 }
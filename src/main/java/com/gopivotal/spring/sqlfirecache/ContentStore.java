@@ -0,0 +1,343 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.util.FileCopyUtils;
+
+import com.gopivotal.spring.sqlfirecache.dialect.Dialect;
+
+/**
+ * Stores each distinct serialized value once, keyed by its SHA-256 hash, with
+ * a count of the cache rows referring to it. Cache rows hold a
+ * {@link ContentRef} instead of the value.
+ * 
+ * References must be added and removed in the transaction that writes the
+ * cache row referring to them. Changing a count locks the content row until
+ * that transaction ends, so a reference added while another is removed waits
+ * for the removal to commit, and stores the value again if it was deleted.
+ * Concurrent first puts of a key can count a reference too many, which only
+ * leaves an unused row behind.
+ * 
+ * @author cdelashmutt
+ */
+class ContentStore
+{
+	private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>()
+	{
+		@Override
+		protected MessageDigest initialValue()
+		{
+			try
+			{
+				return MessageDigest.getInstance("SHA-256");
+			}
+			catch (NoSuchAlgorithmException e)
+			{
+				throw new IllegalStateException("SHA-256 is not available", e);
+			}
+		}
+	};
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final JdbcOperations template;
+
+	private final Dialect dialect;
+
+	private final String schemaName;
+
+	private final String tableName;
+
+	private volatile boolean tableInitialized;
+
+	/**
+	 * Creates a content store.
+	 * 
+	 * @param template
+	 *            The operations to access the content table through
+	 * @param dialect
+	 *            The dialect of the database
+	 * @param schemaName
+	 *            The schema of the content table
+	 * @param tableName
+	 *            The unqualified name of the content table
+	 */
+	ContentStore(JdbcOperations template, Dialect dialect, String schemaName,
+			String tableName)
+	{
+		this.template = template;
+		this.dialect = dialect;
+		this.schemaName = schemaName;
+		this.tableName = tableName;
+	}
+
+	private String getFQTableName()
+	{
+		return schemaName + "." + tableName;
+	}
+
+	/**
+	 * Creates the content table if it is missing. Called outside of the
+	 * transactions changing references, as not every database takes DDL
+	 * inside a transaction.
+	 */
+	void ensureTableInitialized()
+	{
+		if (!tableInitialized)
+		{
+			synchronized (this)
+			{
+				if (!tableInitialized)
+				{
+					template.execute(new TableInitializingCallback(dialect,
+							schemaName, tableName, "CREATE TABLE "
+									+ getFQTableName()
+									+ " (HASH CHAR(64) NOT NULL, REFS INTEGER NOT NULL, DATA "
+									+ new ColumnDefinition("DATA", SQLFType.BLOB)
+											.buildColumnTypeDefinitionSQL(dialect)
+									+ ", PRIMARY KEY(HASH))"
+									+ dialect.getPartitionClause()));
+					tableInitialized = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hashes a serialized value.
+	 * 
+	 * @param data
+	 *            The array holding the value
+	 * @param length
+	 *            The length of the value
+	 * @return The reference to store in the cache row
+	 */
+	static ContentRef hash(byte[] data, int length)
+	{
+		MessageDigest digest = digests.get();
+		digest.reset();
+		digest.update(data, 0, length);
+		return new ContentRef(digest.digest());
+	}
+
+	/**
+	 * Counts a new reference to a value, storing the value if it is not
+	 * stored yet. Called in the transaction writing the referring row.
+	 * 
+	 * @param ref
+	 *            The reference to the value
+	 * @param data
+	 *            The array holding the value
+	 * @param length
+	 *            The length of the value
+	 */
+	void addReference(ContentRef ref, byte[] data, int length)
+	{
+		ensureTableInitialized();
+		String hash = ref.toHex();
+		String increment = "UPDATE " + getFQTableName()
+				+ " SET REFS=REFS+1 WHERE HASH=?";
+		if (template.update(increment, hash) > 0)
+			return;
+		try
+		{
+			template.update("INSERT INTO " + getFQTableName()
+					+ " (HASH, REFS, DATA) VALUES (?, 1, ?)", new Object[] {
+					hash, dialect.createBlobValue(data, 0, length) },
+					new int[] { Types.CHAR, Types.BLOB });
+		}
+		catch (DataIntegrityViolationException e)
+		{
+			// Someone else stored the same value first
+			template.update(increment, hash);
+		}
+	}
+
+	/**
+	 * Drops a reference to a value, deleting the value once it has none.
+	 * Called in the transaction writing or deleting the referring row.
+	 * 
+	 * @param ref
+	 *            The reference to the value
+	 */
+	void removeReference(ContentRef ref)
+	{
+		ensureTableInitialized();
+		String hash = ref.toHex();
+		template.update("UPDATE " + getFQTableName()
+				+ " SET REFS=REFS-1 WHERE HASH=?", hash);
+		template.update("DELETE FROM " + getFQTableName()
+				+ " WHERE HASH=? AND REFS<=0", hash);
+	}
+
+	/**
+	 * Reads and deserializes a stored value.
+	 * 
+	 * @param ref
+	 *            The reference to the value
+	 * @param serializer
+	 *            The serializer to deserialize the value with
+	 * @return The value, or null if it is no longer stored
+	 */
+	Object read(ContentRef ref, final ObjectSerializer serializer)
+	{
+		ensureTableInitialized();
+		return template.query("SELECT DATA FROM " + getFQTableName()
+				+ " WHERE HASH=?", new Object[] { ref.toHex() },
+				new ResultSetExtractor<Object>()
+				{
+					@Override
+					public Object extractData(ResultSet rs)
+						throws SQLException, DataAccessException
+					{
+						if (!rs.next())
+							return null;
+						InputStream in = dialect.getBlobStream(rs, "DATA");
+						try
+						{
+							try
+							{
+								return serializer.deserialize(in);
+							}
+							finally
+							{
+								in.close();
+							}
+						}
+						catch (Exception e)
+						{
+							throw new RuntimeException(
+									"Error de-serializing object", e);
+						}
+					}
+				});
+	}
+
+	/**
+	 * Reads a stored value without deserializing it.
+	 * 
+	 * @param ref
+	 *            The reference to the value
+	 * @return The serialized value, or null if it is no longer stored
+	 */
+	byte[] readBytes(ContentRef ref)
+	{
+		ensureTableInitialized();
+		return template.query("SELECT DATA FROM " + getFQTableName()
+				+ " WHERE HASH=?", new Object[] { ref.toHex() },
+				new ResultSetExtractor<byte[]>()
+				{
+					@Override
+					public byte[] extractData(ResultSet rs)
+						throws SQLException, DataAccessException
+					{
+						if (!rs.next())
+							return null;
+						try
+						{
+							return FileCopyUtils.copyToByteArray(dialect
+									.getBlobStream(rs, "DATA"));
+						}
+						catch (IOException e)
+						{
+							throw new SQLException("Error reading content", e);
+						}
+					}
+				});
+	}
+
+	/**
+	 * Points a cache row at a stored value.
+	 */
+	static class ContentRef
+	{
+		final byte[] hash;
+
+		ContentRef(byte[] hash)
+		{
+			this.hash = hash;
+		}
+
+		String toHex()
+		{
+			char[] hex = new char[hash.length * 2];
+			for (int i = 0; i < hash.length; i++)
+			{
+				hex[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+				hex[i * 2 + 1] = HEX[hash[i] & 0xF];
+			}
+			return new String(hex);
+		}
+
+		/**
+		 * Writes the reference, starting with
+		 * {@link ObjectSerializer#DEDUPLICATED_ID}.
+		 */
+		void write(OutputStream out)
+			throws IOException
+		{
+			DataOutputStream data = new DataOutputStream(out);
+			data.writeByte(ObjectSerializer.DEDUPLICATED_ID);
+			data.writeByte(hash.length);
+			data.write(hash);
+			data.flush();
+		}
+
+		/**
+		 * Reads a reference whose first byte has already been read.
+		 */
+		static ContentRef read(InputStream in)
+			throws IOException
+		{
+			DataInputStream data = new DataInputStream(in);
+			byte[] hash = new byte[data.readUnsignedByte()];
+			data.readFully(hash);
+			return new ContentRef(hash);
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			return obj instanceof ContentRef
+					&& Arrays.equals(hash, ((ContentRef) obj).hash);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Arrays.hashCode(hash);
+		}
+	}
+}
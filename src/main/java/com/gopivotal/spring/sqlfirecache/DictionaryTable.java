@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.util.FileCopyUtils;
+
+import com.gopivotal.spring.sqlfirecache.dialect.Dialect;
+
+/**
+ * A small metadata table holding compression dictionaries by id. Dictionaries
+ * are never changed once stored, so rows compressed with an older dictionary
+ * stay readable after a newer one is added, and every dictionary read is
+ * kept in memory.
+ * 
+ * @author cdelashmutt
+ */
+class DictionaryTable
+{
+	private Logger log = LoggerFactory.getLogger(DictionaryTable.class);
+
+	private static final int MAX_ATTEMPTS = 10;
+
+	private final JdbcOperations template;
+
+	private final Dialect dialect;
+
+	private final String schemaName;
+
+	private final String tableName;
+
+	private final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<Integer, byte[]>();
+
+	private volatile boolean tableInitialized;
+
+	/**
+	 * Creates an accessor for a dictionary table.
+	 * 
+	 * @param template
+	 *            The operations to access the table through
+	 * @param dialect
+	 *            The dialect of the database
+	 * @param schemaName
+	 *            The schema of the table
+	 * @param tableName
+	 *            The unqualified table name
+	 */
+	DictionaryTable(JdbcOperations template, Dialect dialect,
+			String schemaName, String tableName)
+	{
+		this.template = template;
+		this.dialect = dialect;
+		this.schemaName = schemaName;
+		this.tableName = tableName;
+	}
+
+	private String getFQTableName()
+	{
+		return schemaName + "." + tableName;
+	}
+
+	private void ensureTableInitialized()
+	{
+		if (!tableInitialized)
+		{
+			synchronized (this)
+			{
+				if (!tableInitialized)
+				{
+					template.execute(new TableInitializingCallback(dialect,
+							schemaName, tableName, "CREATE TABLE "
+									+ getFQTableName()
+									+ " (DICT_ID INTEGER NOT NULL, DICTIONARY "
+									+ new ColumnDefinition("DICTIONARY",
+											SQLFType.BLOB)
+											.buildColumnTypeDefinitionSQL(dialect)
+									+ ", PRIMARY KEY(DICT_ID))"));
+					tableInitialized = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The id of the newest dictionary, or null if there is none
+	 */
+	Integer getLatestId()
+	{
+		ensureTableInitialized();
+		return template.queryForObject("SELECT MAX(DICT_ID) FROM "
+				+ getFQTableName(), Integer.class);
+	}
+
+	/**
+	 * Stores a dictionary under the next free id.
+	 * 
+	 * @param dictionary
+	 *            The dictionary
+	 * @return The id of the dictionary
+	 */
+	int add(byte[] dictionary)
+	{
+		ensureTableInitialized();
+		int attempts = 0;
+		while (true)
+		{
+			Integer latest = getLatestId();
+			int next = latest == null ? 1 : latest + 1;
+			try
+			{
+				template.update("INSERT INTO " + getFQTableName()
+						+ " (DICT_ID, DICTIONARY) VALUES (?, ?)", new Object[] {
+						next, dialect.createBlobValue(dictionary) }, new int[] {
+						Types.INTEGER, Types.BLOB });
+				log.debug("Stored dictionary " + next + " of "
+						+ dictionary.length + " bytes in " + getFQTableName());
+				dictionaries.put(next, dictionary);
+				return next;
+			}
+			catch (DataIntegrityViolationException e)
+			{
+				if (++attempts >= MAX_ATTEMPTS)
+					throw e;
+				// Someone else stored a dictionary with the id first
+			}
+		}
+	}
+
+	/**
+	 * Returns a dictionary, reading it from the table the first time.
+	 * 
+	 * @param id
+	 *            The id of the dictionary
+	 * @return The dictionary
+	 * @throws IllegalStateException
+	 *             If there is no dictionary with the id
+	 */
+	byte[] get(int id)
+	{
+		byte[] dictionary = dictionaries.get(id);
+		if (dictionary != null)
+			return dictionary;
+		ensureTableInitialized();
+		dictionary = template.query("SELECT DICTIONARY FROM " + getFQTableName()
+				+ " WHERE DICT_ID=?", new Object[] { id },
+				new ResultSetExtractor<byte[]>()
+				{
+					@Override
+					public byte[] extractData(ResultSet rs)
+						throws SQLException, DataAccessException
+					{
+						if (!rs.next())
+							return null;
+						InputStream in = dialect.getBlobStream(rs, "DICTIONARY");
+						try
+						{
+							return FileCopyUtils.copyToByteArray(in);
+						}
+						catch (IOException e)
+						{
+							throw new SQLException("Error reading dictionary", e);
+						}
+					}
+				});
+		if (dictionary == null)
+			throw new IllegalStateException("No dictionary with id " + id
+					+ " in " + getFQTableName());
+		dictionaries.put(id, dictionary);
+		return dictionary;
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Estimates how often keys are read with a count-min sketch, and keeps the
+ * most frequently read keys.
+ * 
+ * Each key increments one counter in each of four rows, and its estimate is
+ * the smallest of them, which may overcount but never undercounts. After a
+ * fixed number of reads every counter is halved, so the estimates follow
+ * recent traffic rather than all traffic since startup. The sketch takes a
+ * fixed amount of memory however many keys are read.
+ * 
+ * @author cdelashmutt
+ */
+public class HotKeyTracker
+{
+	private static final int DEPTH = 4;
+
+	private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35,
+			0x27D4EB2F };
+
+	private final int shift;
+
+	private final int width;
+
+	private final int sampleSize;
+
+	private final int topKeyCount;
+
+	private final AtomicIntegerArray counters;
+
+	private final AtomicInteger samples = new AtomicInteger();
+
+	private final Map<Object, Integer> topKeys = new HashMap<Object, Integer>();
+
+	private volatile int topMinimum;
+
+	/**
+	 * Creates a tracker with 1024 counters a row, halved every 10240 reads.
+	 * 
+	 * @param topKeyCount
+	 *            The number of most frequently read keys to keep
+	 */
+	public HotKeyTracker(int topKeyCount)
+	{
+		this(topKeyCount, 1024, 10240);
+	}
+
+	/**
+	 * Creates a tracker.
+	 * 
+	 * @param topKeyCount
+	 *            The number of most frequently read keys to keep
+	 * @param width
+	 *            The number of counters in each row, rounded up to a power of
+	 *            two. Wider rows mistake fewer keys for hot ones.
+	 * @param sampleSize
+	 *            The number of reads after which every count is halved
+	 */
+	public HotKeyTracker(int topKeyCount, int width, int sampleSize)
+	{
+		if (topKeyCount < 1 || width < 2 || sampleSize < 1)
+			throw new IllegalArgumentException(
+					"The key count, width and sample size must be positive");
+		this.topKeyCount = topKeyCount;
+		this.width = Integer.highestOneBit(width - 1) << 1;
+		this.shift = 32 - Integer.numberOfTrailingZeros(this.width);
+		this.sampleSize = sampleSize;
+		counters = new AtomicIntegerArray(DEPTH * this.width);
+	}
+
+	/**
+	 * Counts a read of a key.
+	 * 
+	 * @param key
+	 *            The key read
+	 * @return The estimated number of recent reads of the key, including this
+	 *         one
+	 */
+	public int record(Object key)
+	{
+		int hash = spread(key.hashCode());
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++)
+		{
+			estimate = Math.min(estimate,
+					counters.incrementAndGet(indexOf(hash, row)));
+		}
+		if (samples.incrementAndGet() >= sampleSize)
+		{
+			decay();
+		}
+		if (estimate > topMinimum)
+		{
+			offer(key, estimate);
+		}
+		return estimate;
+	}
+
+	/**
+	 * @param key
+	 *            The key
+	 * @return The estimated number of recent reads of the key
+	 */
+	public int estimate(Object key)
+	{
+		int hash = spread(key.hashCode());
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++)
+		{
+			estimate = Math.min(estimate, counters.get(indexOf(hash, row)));
+		}
+		return estimate;
+	}
+
+	private static int spread(int hash)
+	{
+		hash ^= hash >>> 16;
+		hash *= 0x85EBCA6B;
+		return hash ^ (hash >>> 13);
+	}
+
+	private int indexOf(int hash, int row)
+	{
+		return row * width + ((hash * SEEDS[row]) >>> shift);
+	}
+
+	private synchronized void offer(Object key, int estimate)
+	{
+		topKeys.put(key, estimate);
+		if (topKeys.size() > topKeyCount)
+		{
+			topKeys.remove(findColdest());
+		}
+		updateMinimum();
+	}
+
+	private Object findColdest()
+	{
+		Object coldest = null;
+		int lowest = Integer.MAX_VALUE;
+		for (Map.Entry<Object, Integer> entry : topKeys.entrySet())
+		{
+			if (entry.getValue() < lowest)
+			{
+				lowest = entry.getValue();
+				coldest = entry.getKey();
+			}
+		}
+		return coldest;
+	}
+
+	private void updateMinimum()
+	{
+		// Until the top keys are full, any read key may join them
+		topMinimum = topKeys.size() < topKeyCount ? 0 : topKeys
+				.get(findColdest());
+	}
+
+	private synchronized void decay()
+	{
+		if (samples.get() < sampleSize)
+			return;
+		samples.set(0);
+		// Reads counted while halving may be lost, which only lowers estimates
+		for (int i = 0; i < counters.length(); i++)
+		{
+			counters.set(i, counters.get(i) >>> 1);
+		}
+		for (Iterator<Map.Entry<Object, Integer>> entries = topKeys.entrySet()
+				.iterator(); entries.hasNext();)
+		{
+			Map.Entry<Object, Integer> entry = entries.next();
+			if (entry.getValue() <= 1)
+				entries.remove();
+			else
+				entry.setValue(entry.getValue() >>> 1);
+		}
+		updateMinimum();
+	}
+
+	/**
+	 * @return the most frequently read keys with their estimated number of
+	 *         recent reads, hottest first
+	 */
+	public synchronized Map<Object, Integer> getTopKeys()
+	{
+		List<Map.Entry<Object, Integer>> entries = new ArrayList<Map.Entry<Object, Integer>>(
+				topKeys.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<Object, Integer>>()
+		{
+			@Override
+			public int compare(Map.Entry<Object, Integer> first,
+					Map.Entry<Object, Integer> second)
+			{
+				return second.getValue().compareTo(first.getValue());
+			}
+		});
+		Map<Object, Integer> sorted = new LinkedHashMap<Object, Integer>();
+		for (Map.Entry<Object, Integer> entry : entries)
+		{
+			sorted.put(entry.getKey(), entry.getValue());
+		}
+		return sorted;
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.List;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+
+/**
+ * A cache that stores objects as UTF-8 encoded JSON in a single BLOB column.
+ * 
+ * Values are written with a streaming Jackson generator straight into a pooled
+ * byte buffer, and read back with a streaming parser into the target type,
+ * without building an intermediate String. The stored JSON stays readable
+ * from other languages. Jackson is an optional dependency, needed only when
+ * this cache is used.
+ * 
+ * @author cdelashmutt
+ */
+public class JsonObjectCache
+	extends AbstractColumnDefinedSQLFireCache
+{
+	private Logger log = LoggerFactory.getLogger(JsonObjectCache.class);
+
+	final ColumnDefinition dataColumn = new ColumnDefinition("DATA",
+			SQLFType.BLOB);
+
+	final List<ColumnDefinition> dataColumns = Arrays.asList(dataColumn);
+
+	private ObjectMapper objectMapper = new ObjectMapper();
+
+	private Class<?> targetType = Object.class;
+
+	private SerializationBufferPool bufferPool = SerializationBufferPool.getSharedPool();
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.AbstractColumnDefinedSQLFireCache#getDataColumns()
+	 */
+	@Override
+	protected List<ColumnDefinition> getDataColumns()
+	{
+		return dataColumns;
+	}
+
+	/**
+	 * @return the mapper values are written and read with
+	 */
+	public ObjectMapper getObjectMapper()
+	{
+		return objectMapper;
+	}
+
+	/**
+	 * @param objectMapper
+	 *            the mapper to write and read values with, for custom
+	 *            serializers or features
+	 */
+	public void setObjectMapper(ObjectMapper objectMapper)
+	{
+		this.objectMapper = objectMapper;
+	}
+
+	/**
+	 * @return the type values are read back as
+	 */
+	public Class<?> getTargetType()
+	{
+		return targetType;
+	}
+
+	/**
+	 * @param targetType
+	 *            the type to read values back as. With Object, the default,
+	 *            values are read as maps, lists and simple types.
+	 */
+	public void setTargetType(Class<?> targetType)
+	{
+		this.targetType = targetType;
+	}
+
+	/**
+	 * @return the pool of buffers values are written into
+	 */
+	public SerializationBufferPool getBufferPool()
+	{
+		return bufferPool;
+	}
+
+	/**
+	 * @param bufferPool
+	 *            the pool of buffers to write values into, instead of the
+	 *            shared pool
+	 */
+	public void setBufferPool(SerializationBufferPool bufferPool)
+	{
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * A value already written into a pooled buffer by {@link #put}.
+	 */
+	private static final class Encoded
+	{
+		final SerializationBuffer buffer;
+
+		Encoded(SerializationBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.AbstractSQLFireCache#put(java.lang.
+	 * Object, java.lang.Object)
+	 */
+	@Override
+	public void put(Object key, Object value)
+	{
+		SerializationBuffer buffer = bufferPool.acquire();
+		try
+		{
+			try
+			{
+				JsonGenerator generator = objectMapper.getJsonFactory()
+						.createJsonGenerator(buffer, JsonEncoding.UTF8);
+				objectMapper.writeValue(generator, value);
+				generator.flush();
+			}
+			catch (IOException e)
+			{
+				log.warn("Exception while writing object to cache as JSON.", e);
+				return;
+			}
+			super.put(key, new Encoded(buffer));
+		}
+		finally
+		{
+			buffer.release();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.AbstractColumnDefinedSQLFireCache#getValueParameterSource(java.lang.Object)
+	 */
+	@Override
+	protected SqlParameterSource getValueParameterSource(Object value)
+	{
+		SerializationBuffer buffer = ((Encoded) value).buffer;
+		MapSqlParameterSource source = new MapSqlParameterSource(
+				dataColumn.getName(), getDialect().createBlobValue(
+						buffer.getBuffer(), 0, buffer.size()));
+		source.registerSqlType(dataColumn.getName(), Types.BLOB);
+		return source;
+	}
+
+	final RowMapper<Object> rowMapper = new RowMapper<Object>()
+	{
+		@Override
+		public Object mapRow(ResultSet rs, int rowNum)
+			throws SQLException
+		{
+			// Parsed straight from the LOB stream, detecting the encoding
+			InputStream data = getDialect().getBlobStream(rs,
+					dataColumn.getName());
+			try
+			{
+				return objectMapper.readValue(data, targetType);
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException("Error reading JSON object", e);
+			}
+			finally
+			{
+				try
+				{
+					if (data != null)
+						data.close();
+				}
+				catch (IOException e)
+				{
+					// Can't do anything on a close error
+					log.warn("Error while closing input stream to Blob", e);
+				}
+			}
+		}
+	};
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.AbstractSQLFireCache#getRowMapper()
+	 */
+	@Override
+	protected RowMapper<Object> getRowMapper()
+	{
+		return rowMapper;
+	}
+}
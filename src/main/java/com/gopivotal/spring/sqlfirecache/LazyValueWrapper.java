@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache;
+
+import org.springframework.cache.Cache.ValueWrapper;
+
+/**
+ * Holds a value as read from the cache table, and deserializes it on the
+ * first call to {@link #get()}. Callers that only check whether a value is
+ * present, or never unwrap it, skip deserialization entirely. The value is
+ * deserialized at most once, however many threads unwrap it.
+ * 
+ * @author cdelashmutt
+ */
+public class LazyValueWrapper
+	implements ValueWrapper
+{
+	private final ObjectSerializer serializer;
+
+	private volatile byte[] data;
+
+	private Object value;
+
+	/**
+	 * Creates a wrapper for a serialized value.
+	 * 
+	 * @param data
+	 *            The serialized value
+	 * @param serializer
+	 *            The serializer to deserialize the value with
+	 */
+	public LazyValueWrapper(byte[] data, ObjectSerializer serializer)
+	{
+		this.data = data;
+		this.serializer = serializer;
+	}
+
+	/**
+	 * @return true once the value has been deserialized
+	 */
+	public boolean isDeserialized()
+	{
+		return data == null;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.cache.Cache.ValueWrapper#get()
+	 */
+	@Override
+	public Object get()
+	{
+		// The volatile read of data orders the read of value after it
+		if (data != null)
+		{
+			synchronized (this)
+			{
+				if (data != null)
+				{
+					try
+					{
+						value = serializer.deserialize(data);
+					}
+					catch (Exception e)
+					{
+						throw new IllegalStateException(
+								"Error de-serializing object", e);
+					}
+					data = null;
+				}
+			}
+		}
+		return value;
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+
+/**
+ * An immutable copy of every entry of a cache table, kept up to date by
+ * reading the rows modified since the last refresh.
+ * 
+ * Changes are applied to a copy of the entries, which then replaces them in
+ * one step, so readers never wait and never see part of a refresh. Rows
+ * deleted by others are not visible to an incremental refresh, so it falls
+ * back to a full reload when the row count of the table no longer matches.
+ * 
+ * @author cdelashmutt
+ */
+class LocalReplica
+{
+	private Logger log = LoggerFactory.getLogger(LocalReplica.class);
+
+	private final JdbcOperations template;
+
+	private final String selectSQL;
+
+	private final String countSQL;
+
+	private final String condition;
+
+	private final String idColumnName;
+
+	private final String modifiedColumnName;
+
+	private final RowMapper<?> valueMapper;
+
+	private final long overlap;
+
+	private final Object[] args;
+
+	private volatile Map<Object, Object> entries;
+
+	private final Object writeLock = new Object();
+
+	private long highWaterMark;
+
+	/**
+	 * Creates a replica of a table. Nothing is read until it is loaded.
+	 * 
+	 * @param template
+	 *            The operations to access the table through
+	 * @param selectSQL
+	 *            A select of the value, id and modified columns of every row,
+	 *            without a WHERE clause
+	 * @param condition
+	 *            A condition limiting the rows to this cache, or null
+	 * @param idColumnName
+	 *            The column holding the key
+	 * @param modifiedColumnName
+	 *            The column holding the time a row was last written
+	 * @param valueMapper
+	 *            The mapper of the value columns, which come first
+	 * @param overlap
+	 *            How far in milliseconds before the latest modification seen
+	 *            a refresh starts reading, covering writes committed late or
+	 *            stamped by a slower clock
+	 * @param args
+	 *            The arguments of the condition
+	 */
+	LocalReplica(JdbcOperations template, String selectSQL, String condition,
+			String idColumnName, String modifiedColumnName,
+			RowMapper<?> valueMapper, long overlap, Object... args)
+	{
+		this.template = template;
+		this.selectSQL = selectSQL;
+		this.countSQL = "SELECT COUNT(*)"
+				+ selectSQL.substring(selectSQL.indexOf(" FROM "))
+				+ (condition == null ? "" : " WHERE " + condition);
+		this.condition = condition;
+		this.idColumnName = idColumnName;
+		this.modifiedColumnName = modifiedColumnName;
+		this.valueMapper = valueMapper;
+		this.overlap = overlap;
+		this.args = args;
+	}
+
+	/**
+	 * @return true once the replica has been loaded
+	 */
+	boolean isLoaded()
+	{
+		return entries != null;
+	}
+
+	/**
+	 * @return the entries, which never change once returned, or null if the
+	 *         replica has not been loaded
+	 */
+	Map<Object, Object> getEntries()
+	{
+		return entries;
+	}
+
+	/**
+	 * Reads every row of the table, replacing the entries held.
+	 */
+	void load()
+	{
+		Map<Object, Object> loaded = new HashMap<Object, Object>();
+		long loadedMark = read(loaded, selectSQL
+				+ (condition == null ? "" : " WHERE " + condition), args);
+		synchronized (writeLock)
+		{
+			highWaterMark = loadedMark;
+			entries = Collections.unmodifiableMap(loaded);
+		}
+		log.debug("Loaded " + loaded.size() + " entries from "
+				+ selectSQL.substring(selectSQL.indexOf(" FROM ") + 6));
+	}
+
+	/**
+	 * Reads the rows modified since the last refresh, reloading everything if
+	 * rows have been deleted since.
+	 */
+	void refresh()
+	{
+		if (entries == null)
+		{
+			load();
+			return;
+		}
+		long since;
+		synchronized (writeLock)
+		{
+			since = highWaterMark - overlap;
+		}
+		Object[] refreshArgs = new Object[args.length + 1];
+		System.arraycopy(args, 0, refreshArgs, 0, args.length);
+		refreshArgs[args.length] = since;
+		Map<Object, Object> changed = new HashMap<Object, Object>();
+		long changedMark = read(changed, selectSQL + " WHERE "
+				+ (condition == null ? "" : condition + " AND ")
+				+ modifiedColumnName + " >= ?", refreshArgs);
+		int count = template.queryForInt(countSQL, args);
+		synchronized (writeLock)
+		{
+			Map<Object, Object> copy = new HashMap<Object, Object>(entries);
+			copy.putAll(changed);
+			if (copy.size() != count)
+			{
+				// Deletes only show in the count, so start over
+				load();
+				return;
+			}
+			highWaterMark = Math.max(highWaterMark, changedMark);
+			entries = Collections.unmodifiableMap(copy);
+		}
+	}
+
+	private long read(final Map<Object, Object> into, String sql,
+			Object[] sqlArgs)
+	{
+		final long[] mark = { Long.MIN_VALUE + overlap };
+		template.query(sql, sqlArgs, new RowCallbackHandler()
+		{
+			int rowNum;
+
+			@Override
+			public void processRow(ResultSet rs)
+				throws SQLException
+			{
+				Object value = valueMapper.mapRow(rs, rowNum++);
+				into.put(rs.getObject(idColumnName), value);
+				mark[0] = Math.max(mark[0], rs.getLong(modifiedColumnName));
+			}
+		});
+		return mark[0];
+	}
+
+	/**
+	 * Replaces the entry of a key written through this member.
+	 * 
+	 * @param key
+	 *            The key
+	 * @param values
+	 *            The values read back for the key, empty if there is none
+	 */
+	void update(Object key, List<?> values)
+	{
+		synchronized (writeLock)
+		{
+			if (entries == null)
+				return;
+			Map<Object, Object> copy = new HashMap<Object, Object>(entries);
+			if (values.isEmpty())
+				copy.remove(key);
+			else
+				copy.put(key, values.get(0));
+			entries = Collections.unmodifiableMap(copy);
+		}
+	}
+
+	/**
+	 * Removes every entry, after the table is cleared through this member.
+	 */
+	void clear()
+	{
+		synchronized (writeLock)
+		{
+			if (entries != null)
+				entries = Collections.emptyMap();
+		}
+	}
+}
@@ -0,0 +1,431 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.List;
+import java.util.Map;
+
+import com.gopivotal.spring.sqlfirecache.codec.JavaSerializationCodec;
+import com.gopivotal.spring.sqlfirecache.codec.RegisteredTypeCodec;
+import com.gopivotal.spring.sqlfirecache.codec.ValueCodec;
+import com.gopivotal.spring.sqlfirecache.compression.CompressionStats;
+import com.gopivotal.spring.sqlfirecache.compression.Compressor;
+import com.gopivotal.spring.sqlfirecache.compression.DeflateCompressor;
+import com.gopivotal.spring.sqlfirecache.externalizer.Externalizer;
+import com.gopivotal.spring.sqlfirecache.externalizer.TypeRegistry;
+
+/**
+ * Turns cached values into bytes and back through {@link ValueCodec}s. Values
+ * are written with the configured codec, and read with whichever registered
+ * codec's id they start with, so rows written by an earlier codec stay
+ * readable. Java serialization is always registered and is the default.
+ * Values whose class is in the {@link TypeRegistry}, if one is set, are always
+ * written by a {@link RegisteredTypeCodec}.
+ *
+ * If a {@link Compressor} is set, encoded values of at least the compression
+ * threshold are compressed, and stored with a header naming the compressor and
+ * the original length. Compressed and uncompressed values can be mixed.
+ *
+ * @author cdelashmutt
+ */
+public class ObjectSerializer
+{
+
+	private final JavaSerializationCodec javaCodec = new JavaSerializationCodec();
+
+	private final ValueCodec[] codecsById = new ValueCodec[256];
+
+	private ValueCodec codec = javaCodec;
+
+	private RegisteredTypeCodec typeCodec;
+
+	/**
+	 * The first byte of compressed values. No codec may use this id.
+	 */
+	public static final byte COMPRESSED_ID = 3;
+
+	/**
+	 * The first byte of the descriptors {@link SerializedObjectCache} stores
+	 * in place of values split into chunks. No codec may use this id.
+	 */
+	public static final byte CHUNKED_ID = 4;
+
+	/**
+	 * The first byte of the references {@link SerializedObjectCache} stores
+	 * in place of deduplicated values. No codec may use this id.
+	 */
+	public static final byte DEDUPLICATED_ID = 5;
+
+	private final Compressor[] compressorsById = new Compressor[256];
+
+	private Compressor compressor;
+
+	private int compressionThreshold = 4096;
+
+	private final CompressionStats compressionStats = new CompressionStats();
+
+	private SerializationBufferPool bufferPool = SerializationBufferPool.getSharedPool();
+
+	/**
+	 * Creates a serializer using Java serialization, without compression.
+	 */
+	public ObjectSerializer()
+	{
+		register(javaCodec);
+		register(new DeflateCompressor());
+	}
+
+	/**
+	 * @return the compressor new values are compressed with, or null
+	 */
+	public Compressor getCompressor()
+	{
+		return compressor;
+	}
+
+	/**
+	 * Sets the compressor for new values of at least the compression
+	 * threshold, and registers it for reading.
+	 * 
+	 * @param compressor the compressor, or null to store values uncompressed
+	 */
+	public void setCompressor(Compressor compressor)
+	{
+		if (compressor != null)
+			register(compressor);
+		this.compressor = compressor;
+	}
+
+	/**
+	 * Registers additional compressors for reading values. Deflate is always
+	 * registered.
+	 * 
+	 * @param compressors the compressors to read with
+	 */
+	public void setCompressors(List<Compressor> compressors)
+	{
+		for (Compressor readCompressor : compressors)
+		{
+			register(readCompressor);
+		}
+	}
+
+	/**
+	 * @return the encoded size in bytes from which values are compressed
+	 */
+	public int getCompressionThreshold()
+	{
+		return compressionThreshold;
+	}
+
+	/**
+	 * @param compressionThreshold the encoded size in bytes from which values are compressed
+	 */
+	public void setCompressionThreshold(int compressionThreshold)
+	{
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	/**
+	 * @return the compression ratio and time spent compressing so far
+	 */
+	public CompressionStats getCompressionStats()
+	{
+		return compressionStats;
+	}
+
+	/**
+	 * @param bufferPool the pool of buffers values are encoded into before compression
+	 */
+	public void setBufferPool(SerializationBufferPool bufferPool)
+	{
+		this.bufferPool = bufferPool;
+	}
+
+	private void register(Compressor readCompressor)
+	{
+		compressorsById[readCompressor.getId() & 0xFF] = readCompressor;
+	}
+
+	/**
+	 * @param externalizers the externalizers to set on the Java serialization codec
+	 */
+	public void setExternalizers(
+			Map<Class<Object>, Externalizer<Object>> externalizers)
+	{
+		javaCodec.setExternalizers(externalizers);
+	}
+
+	/**
+	 * @return the externalizers of the Java serialization codec
+	 */
+	public Map<Class<Object>, Externalizer<Object>> getExternalizers()
+	{
+		return javaCodec.getExternalizers();
+	}
+
+	/**
+	 * @return the Java serialization codec, which is always registered
+	 */
+	public JavaSerializationCodec getJavaCodec()
+	{
+		return javaCodec;
+	}
+
+	/**
+	 * @return the codec new values are written with
+	 */
+	public ValueCodec getCodec()
+	{
+		return codec;
+	}
+
+	/**
+	 * Sets the codec new values are written with, and registers it for reading.
+	 * 
+	 * @param codec the codec to write with
+	 */
+	public void setCodec(ValueCodec codec)
+	{
+		register(codec);
+		this.codec = codec;
+	}
+
+	/**
+	 * Registers additional codecs for reading values, such as the codec a
+	 * cache used before it was switched to a new one.
+	 * 
+	 * @param codecs the codecs to read with
+	 */
+	public void setCodecs(List<ValueCodec> codecs)
+	{
+		for (ValueCodec readCodec : codecs)
+		{
+			register(readCodec);
+		}
+	}
+
+	/**
+	 * @return the registry of externalized types written by id, or null
+	 */
+	public TypeRegistry getTypeRegistry()
+	{
+		return typeCodec == null ? null : typeCodec.getRegistry();
+	}
+
+	/**
+	 * @param typeRegistry the registry of externalized types to write by id
+	 */
+	public void setTypeRegistry(TypeRegistry typeRegistry)
+	{
+		RegisteredTypeCodec newTypeCodec = new RegisteredTypeCodec(typeRegistry);
+		register(newTypeCodec);
+		typeCodec = newTypeCodec;
+	}
+
+	private void register(ValueCodec readCodec)
+	{
+		if (readCodec.getId() == COMPRESSED_ID || readCodec.getId() == CHUNKED_ID
+				|| readCodec.getId() == DEDUPLICATED_ID)
+			throw new IllegalArgumentException("Codec id " + readCodec.getId()
+					+ " is reserved");
+		// Rows written with Java serialization must stay readable
+		if (readCodec.getId() == JavaSerializationCodec.ID
+				&& readCodec != javaCodec)
+			throw new IllegalArgumentException("Codec id " + readCodec.getId()
+					+ " is reserved for Java serialization");
+		ValueCodec existing = codecsById[readCodec.getId() & 0xFF];
+		if (existing != null && existing != readCodec
+				&& existing != typeCodec)
+			throw new IllegalArgumentException("Codec id " + readCodec.getId()
+					+ " is already used by " + existing);
+		codecsById[readCodec.getId() & 0xFF] = readCodec;
+	}
+
+	private ValueCodec getCodec(int id)
+		throws IOException
+	{
+		ValueCodec readCodec = codecsById[id & 0xFF];
+		if (readCodec == null)
+			throw new IOException("No codec registered for id " + id);
+		return readCodec;
+	}
+	/**
+	 * Serializes a value into a new byte array.
+	 * 
+	 * @param value The value to serialize
+	 * @return The serialized form of the value
+	 * @throws IOException If the value could not be serialized
+	 */
+	public byte[] serialize(Object value)
+		throws IOException
+	{
+		SerializationBuffer buffer = bufferPool.acquire();
+		try
+		{
+			serialize(value, buffer);
+			return buffer.toByteArray();
+		}
+		finally
+		{
+			buffer.release();
+		}
+	}
+
+	/**
+	 * Serializes a value to a stream.
+	 * 
+	 * @param value The value to serialize
+	 * @param out The stream to write the serialized form to
+	 * @throws IOException If the value could not be serialized
+	 */
+	public void serialize(Object value, OutputStream out)
+		throws IOException
+	{
+		if (compressor == null)
+		{
+			encode(value, out);
+			return;
+		}
+		SerializationBuffer buffer = bufferPool.acquire();
+		try
+		{
+			encode(value, buffer);
+			int size = buffer.size();
+			if (size < compressionThreshold)
+			{
+				buffer.writeTo(out);
+				return;
+			}
+			long start = System.nanoTime();
+			SerializationBuffer compressedBuffer = bufferPool.acquire();
+			try
+			{
+				int compressed = compressor.compress(buffer.getBuffer(), 0,
+						size, compressedBuffer);
+				if (compressed + 6 >= size)
+				{
+					// Already compressed or random data, store it as it is
+					compressionStats.recordSkipped(System.nanoTime() - start);
+					buffer.writeTo(out);
+					return;
+				}
+				out.write(COMPRESSED_ID);
+				out.write(compressor.getId());
+				out.write(size >>> 24);
+				out.write(size >>> 16);
+				out.write(size >>> 8);
+				out.write(size);
+				compressedBuffer.writeTo(out);
+				compressionStats.recordCompression(size, compressed + 6,
+						System.nanoTime() - start);
+			}
+			finally
+			{
+				compressedBuffer.release();
+			}
+		}
+		finally
+		{
+			buffer.release();
+		}
+	}
+
+	private void encode(Object value, OutputStream out)
+		throws IOException
+	{
+		if (typeCodec != null && value != null)
+		{
+			int typeId = typeCodec.getRegistry().getId(value.getClass());
+			if (typeId >= 0)
+			{
+				typeCodec.encode(typeId, value, out);
+				return;
+			}
+		}
+		codec.encode(value, out);
+	}
+
+	/**
+	 * Deserializes a value from a byte array.
+	 * 
+	 * @param data The serialized form of a value
+	 * @return The value
+	 * @throws IOException If the value could not be read
+	 * @throws ClassNotFoundException If the class of the value is not available
+	 */
+	public Object deserialize(byte[] data)
+		throws IOException, ClassNotFoundException
+	{
+		if (data.length == 0)
+			throw new IOException("No serialized value");
+		if (data[0] == COMPRESSED_ID)
+			return deserialize(new ByteArrayInputStream(data));
+		return getCodec(data[0]).decode(new ByteArrayInputStream(data));
+	}
+
+	/**
+	 * Deserializes a value from a stream. The stream is not closed.
+	 * 
+	 * @param in The stream holding the serialized form of a value
+	 * @return The value
+	 * @throws IOException If the value could not be read
+	 * @throws ClassNotFoundException If the class of the value is not available
+	 */
+	public Object deserialize(InputStream in)
+		throws IOException, ClassNotFoundException
+	{
+		PushbackInputStream pin = new PushbackInputStream(in, 1);
+		int id = pin.read();
+		if (id < 0)
+			throw new IOException("No serialized value");
+		if (id == COMPRESSED_ID)
+			return deserialize(decompress(pin));
+		pin.unread(id);
+		return getCodec(id).decode(pin);
+	}
+
+	/**
+	 * Reads the rest of a compressed value, after its first byte.
+	 * 
+	 * @param in The stream positioned on the compressor id
+	 * @return The uncompressed value
+	 * @throws IOException If the value could not be read
+	 */
+	private byte[] decompress(InputStream in)
+		throws IOException
+	{
+		long start = System.nanoTime();
+		DataInputStream data = new DataInputStream(in);
+		int id = data.readUnsignedByte();
+		Compressor readCompressor = compressorsById[id];
+		if (readCompressor == null)
+			throw new IOException("No compressor registered for id " + id);
+		byte[] uncompressed = new byte[data.readInt()];
+		readCompressor.decompress(in, uncompressed);
+		compressionStats.recordDecompression(System.nanoTime() - start);
+		return uncompressed;
+	}
+}
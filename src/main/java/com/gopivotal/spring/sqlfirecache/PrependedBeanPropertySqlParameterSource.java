@@ -18,6 +18,9 @@
  */
 package com.gopivotal.spring.sqlfirecache;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.springframework.util.Assert;
 import org.springframework.jdbc.core.namedparam.BeanPropertySqlParameterSource;
 
@@ -31,6 +34,10 @@ public class PrependedBeanPropertySqlParameterSource
 {
 
 	private String prepend;
+
+	private String[] prependedNames;
+
+	private Map<String, String> propertyNames;
 	
 	/**
 	 * Constructs a BeanPropertySqlParameterSource that transforms the property names
@@ -52,10 +59,14 @@ public class PrependedBeanPropertySqlParameterSource
 	@Override
 	public String[] getReadablePropertyNames()
 	{
-		String props[] = super.getReadablePropertyNames(); 
-		for(int i = 0; i < props.length; i++)
-			props[i] = prepend + props[i];
-		return props;
+		if(prependedNames == null)
+		{
+			String props[] = super.getReadablePropertyNames().clone();
+			for(int i = 0; i < props.length; i++)
+				props[i] = prepend + props[i];
+			prependedNames = props;
+		}
+		return prependedNames;
 	}
 
 	/* (non-Javadoc)
@@ -89,7 +100,17 @@ public class PrependedBeanPropertySqlParameterSource
 
 	private String removePrepend(String paramName)
 	{
-		if(paramName.startsWith(prepend))
+		// Resolved once per name rather than cutting a substring on every call
+		if(propertyNames == null)
+		{
+			propertyNames = new HashMap<String, String>();
+			for(String name : getReadablePropertyNames())
+				propertyNames.put(name, name.substring(prepend.length()));
+		}
+		String propertyName = propertyNames.get(paramName);
+		if(propertyName != null)
+			return propertyName;
+		else if(paramName.startsWith(prepend))
 			return paramName.substring(prepend.length());
 		else
 			return paramName;
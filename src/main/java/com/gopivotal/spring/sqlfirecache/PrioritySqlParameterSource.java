@@ -22,6 +22,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.SqlParameterSource;
 
 /**
@@ -30,7 +31,7 @@ import org.springframework.jdbc.core.namedparam.SqlParameterSource;
  * @author cdelashmutt
  */
 public class PrioritySqlParameterSource
-	implements SqlParameterSource
+	implements ShapedSqlParameterSource
 {
 
 	List<SqlParameterSource> sources = new ArrayList<SqlParameterSource>();
@@ -44,6 +45,54 @@ public class PrioritySqlParameterSource
 		Collections.addAll(sources, parameterSources);
 	}
 
+	/**
+	 * Adds the sources checked to a list, in the order they are checked, with
+	 * the sources of nested priority sources in place of them, so statements
+	 * can read each parameter straight from the source that provides it.
+	 * 
+	 * @param checked
+	 *            The list to add the sources to
+	 */
+	public void addSources(List<SqlParameterSource> checked)
+	{
+		for(SqlParameterSource source : sources)
+		{
+			if(source instanceof PrioritySqlParameterSource)
+				((PrioritySqlParameterSource) source).addSources(checked);
+			else
+				checked.add(source);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.ShapedSqlParameterSource#getShape()
+	 */
+	@Override
+	public Object getShape()
+	{
+		List<Object> shape = new ArrayList<Object>(sources.size());
+		for(SqlParameterSource source : sources)
+		{
+			Object sourceShape = getShape(source);
+			if(sourceShape == null) return null;
+			shape.add(sourceShape);
+		}
+		return shape;
+	}
+
+	/**
+	 * @return The shape of a shaped source, the names of the values of a map
+	 *         source, or null if neither
+	 */
+	private static Object getShape(SqlParameterSource source)
+	{
+		if(source instanceof ShapedSqlParameterSource)
+			return ((ShapedSqlParameterSource) source).getShape();
+		if(source instanceof MapSqlParameterSource)
+			return ((MapSqlParameterSource) source).getValues().keySet();
+		return null;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.springframework.jdbc.core.namedparam.SqlParameterSource#hasValue(java.lang.String)
 	 */
@@ -24,6 +24,7 @@ import java.sql.Clob;
 import java.sql.Date;
 import java.sql.Time;
 import java.sql.Timestamp;
+import java.sql.Types;
 
 /**
  * Enumeration of SQLFire Types
@@ -32,31 +33,34 @@ import java.sql.Timestamp;
  */
 public enum SQLFType
 {
-	BIGINT(Long.class), BLOB(Blob.class), CHAR(String.class), BINARY(
-			byte[].class, "CHAR"), CLOB(Clob.class), DATE(Date.class), DECIMAL(
-			BigDecimal.class), DOUBLE(Double.class), FLOAT(Double.class),
-	INTEGER(Integer.class), LONGVARCHAR(String.class, "LONG VARCHAR"),
-	LONGVARBINARY(byte[].class, "LONG VARCHAR FOR BIT DATA"), NUMERIC(
-			BigDecimal.class), REAL(Float.class), SMALLINT(Short.class), TIME(
-			Time.class), TIMESTAMP(Timestamp.class), VARCHAR(String.class),
-	VARBINARY(byte[].class, "VARCHAR");
+	BIGINT(Long.class, Types.BIGINT), BLOB(Blob.class, Types.BLOB), CHAR(
+			String.class, Types.CHAR), BINARY(byte[].class, Types.BINARY,
+			"CHAR"), CLOB(Clob.class, Types.CLOB), DATE(Date.class, Types.DATE),
+	DECIMAL(BigDecimal.class, Types.DECIMAL), DOUBLE(Double.class,
+			Types.DOUBLE), FLOAT(Double.class, Types.FLOAT), INTEGER(
+			Integer.class, Types.INTEGER), LONGVARCHAR(String.class,
+			Types.LONGVARCHAR, "LONG VARCHAR"), LONGVARBINARY(byte[].class,
+			Types.LONGVARBINARY, "LONG VARCHAR FOR BIT DATA"), NUMERIC(
+			BigDecimal.class, Types.NUMERIC), REAL(Float.class, Types.REAL),
+	SMALLINT(Short.class, Types.SMALLINT), TIME(Time.class, Types.TIME),
+	TIMESTAMP(Timestamp.class, Types.TIMESTAMP), VARCHAR(String.class,
+			Types.VARCHAR), VARBINARY(byte[].class, Types.VARBINARY, "VARCHAR");
 
 	private String sqlName;
 
 	private Class<?> javaType;
 
-	SQLFType()
-	{
-	}
+	private int jdbcType;
 
-	SQLFType(Class<?> javaType)
+	SQLFType(Class<?> javaType, int jdbcType)
 	{
 		this.javaType = javaType;
+		this.jdbcType = jdbcType;
 	}
 
-	SQLFType(Class<?> javaType, String sqlName)
+	SQLFType(Class<?> javaType, int jdbcType, String sqlName)
 	{
-		this(javaType);
+		this(javaType, jdbcType);
 		this.sqlName = sqlName;
 	}
 
@@ -75,4 +79,12 @@ public enum SQLFType
 	{
 		return javaType;
 	}
+
+	/**
+	 * @return The {@link Types} constant values of this SQLFType are bound as.
+	 */
+	public int getJdbcType()
+	{
+		return jdbcType;
+	}
 }
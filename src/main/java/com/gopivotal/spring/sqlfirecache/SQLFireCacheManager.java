@@ -0,0 +1,584 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.MutablePropertyValues;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.support.BeanDefinitionRegistry;
+import org.springframework.beans.factory.support.ChildBeanDefinition;
+import org.springframework.cache.Cache;
+import org.springframework.cache.support.AbstractCacheManager;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+import com.gopivotal.spring.sqlfirecache.dialect.Dialect;
+import com.gopivotal.spring.sqlfirecache.dialect.SQLFireDialect;
+
+/**
+ * A CacheManager for SQLFire caches that checks the catalog once for all of
+ * its caches, instead of once per cache.
+ * 
+ * At start up, the schemas and tables of every cache that has not initialized
+ * its own table are read in a single catalog scan, and all missing schemas and
+ * tables are created in one batch, or in parallel on a bounded pool of
+ * initialization threads. The time taken for each cache is available from
+ * {@link #getInitializationTimes()}. Caches handed to this manager should
+ * usually use {@link TableInitialization#MANAGED} so they skip their own
+ * check.
+ * 
+ * If a cache template is set, unknown caches are created on the first call to
+ * {@link #getCache(String)} from the named bean definition, which is typically
+ * the abstract parent bean of the statically configured caches.
+ * 
+ * @author cdelashmutt
+ */
+public class SQLFireCacheManager
+	extends AbstractCacheManager
+	implements BeanFactoryAware
+{
+
+	private Logger log = LoggerFactory.getLogger(SQLFireCacheManager.class);
+
+	private DataSource dataSource;
+
+	private JdbcTemplate template;
+
+	private Dialect dialect = new SQLFireDialect();
+
+	private Collection<? extends AbstractSQLFireCache> caches = Collections
+			.emptySet();
+
+	private String cacheTemplate;
+
+	private BeanFactory beanFactory;
+
+	private int initializationThreads = 1;
+
+	private final Map<String, Long> initializationTimes = new ConcurrentHashMap<String, Long>();
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.springframework.cache.support.AbstractCacheManager#afterPropertiesSet
+	 * ()
+	 */
+	@Override
+	public void afterPropertiesSet()
+	{
+		Assert.notNull(dataSource, "A dataSource is required");
+		template = new JdbcTemplate(dataSource);
+		super.afterPropertiesSet();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.springframework.cache.support.AbstractCacheManager#loadCaches()
+	 */
+	@Override
+	protected Collection<? extends Cache> loadCaches()
+	{
+		initializeTables(caches);
+		return caches;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.springframework.cache.support.AbstractCacheManager#getCache(java.
+	 * lang.String)
+	 */
+	@Override
+	public Cache getCache(String name)
+	{
+		Cache cache = super.getCache(name);
+		if (cache == null && cacheTemplate != null)
+		{
+			synchronized (this)
+			{
+				cache = super.getCache(name);
+				if (cache == null)
+				{
+					AbstractSQLFireCache newCache = createCache(name);
+					initializeTables(Collections.singleton(newCache));
+					addCache(newCache);
+					cache = newCache;
+				}
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * Creates a new cache from the cache template bean definition.
+	 * 
+	 * @param name
+	 *            The name of the cache to create
+	 * @return The created cache, with its table not yet initialized
+	 */
+	private AbstractSQLFireCache createCache(String name)
+	{
+		Assert.isInstanceOf(BeanDefinitionRegistry.class, beanFactory,
+				"Creating caches from a template requires a bean definition registry");
+		BeanDefinitionRegistry registry = (BeanDefinitionRegistry) beanFactory;
+		String beanName = cacheTemplate + "#" + name;
+		MutablePropertyValues properties = new MutablePropertyValues();
+		properties.add("name", name);
+		properties.add("tableInitialization", TableInitialization.MANAGED);
+		registry.registerBeanDefinition(beanName, new ChildBeanDefinition(
+				cacheTemplate, properties));
+		log.debug("Creating cache " + name + " from template "
+				+ cacheTemplate);
+		return beanFactory.getBean(beanName, AbstractSQLFireCache.class);
+	}
+
+	/**
+	 * Checks the catalog once for all of the given caches that have not
+	 * initialized their own tables, and creates every missing schema and
+	 * table. Tables are created in a single batch, or in parallel when more
+	 * than one initialization thread is configured. Caches whose tables were
+	 * not created on their own thread are each credited with an equal share
+	 * of the total time rather than with the whole of it.
+	 * 
+	 * @param candidates
+	 *            The caches to initialize
+	 */
+	protected void initializeTables(
+			Collection<? extends AbstractSQLFireCache> candidates)
+	{
+		final List<AbstractSQLFireCache> pending = new ArrayList<AbstractSQLFireCache>();
+		for (AbstractSQLFireCache cache : candidates)
+		{
+			if (!cache.isTableInitialized())
+			{
+				pending.add(cache);
+			}
+		}
+		if (pending.isEmpty())
+		{
+			return;
+		}
+		long start = System.currentTimeMillis();
+		MissingObjects missing = template
+				.execute(new ConnectionCallback<MissingObjects>()
+				{
+					@Override
+					public MissingObjects doInConnection(Connection con)
+						throws SQLException, DataAccessException
+					{
+						Statement stm = con.createStatement();
+						try
+						{
+							MissingObjects missing = readMissingObjects(stm,
+									pending);
+							if (initializationThreads > 1)
+							{
+								executeBatch(stm, missing.schemaDDL, pending);
+							}
+							else
+							{
+								executeBatch(stm, missing.getAllDDL(), pending);
+							}
+							return missing;
+						}
+						finally
+						{
+							stm.close();
+						}
+					}
+				});
+
+		Map<String, Long> tableTimes = Collections.emptyMap();
+		if (initializationThreads > 1 && !missing.tableDDL.isEmpty())
+		{
+			tableTimes = createTablesInParallel(missing.tableDDL, pending);
+		}
+
+		long total = System.currentTimeMillis() - start;
+		int shared = 0;
+		for (AbstractSQLFireCache cache : pending)
+		{
+			if (!tableTimes.containsKey(getTableKey(cache)))
+			{
+				shared++;
+			}
+		}
+		for (AbstractSQLFireCache cache : pending)
+		{
+			Long time = tableTimes.get(getTableKey(cache));
+			cache.markTableInitialized(time != null ? time : total / shared);
+			initializationTimes.put(cache.getName(),
+					cache.getInitializationTime());
+		}
+		log.info("Initialized " + pending.size() + " cache tables in " + total
+				+ " ms");
+	}
+
+	/**
+	 * Runs the given DDL statements as one batch. If the batch fails, because
+	 * another member created some of the same objects first, the catalog is
+	 * checked again and only what is still missing is created.
+	 * 
+	 * @param stm
+	 *            The statement to run the DDL with
+	 * @param ddl
+	 *            The DDL statements to run
+	 * @param pending
+	 *            The caches whose tables need to exist
+	 * @throws SQLException
+	 *             If the missing objects could not be created
+	 */
+	private void executeBatch(Statement stm, List<String> ddl,
+			List<AbstractSQLFireCache> pending)
+		throws SQLException
+	{
+		if (ddl.isEmpty())
+		{
+			return;
+		}
+		try
+		{
+			for (String sql : ddl)
+			{
+				log.trace(sql);
+				stm.addBatch(sql);
+			}
+			stm.executeBatch();
+		}
+		catch (SQLException e)
+		{
+			log.debug("Batch creation of cache tables failed, retrying individually",
+					e);
+			stm.clearBatch();
+			createRemaining(stm, pending);
+		}
+	}
+
+	/**
+	 * Checks the catalog again and creates every schema and table that is
+	 * still missing, one statement at a time.
+	 * 
+	 * @param stm
+	 *            The statement to run the DDL with
+	 * @param pending
+	 *            The caches whose tables need to exist
+	 * @throws SQLException
+	 *             If the missing objects could not be created
+	 */
+	private void createRemaining(Statement stm,
+			List<AbstractSQLFireCache> pending)
+		throws SQLException
+	{
+		for (String sql : readMissingObjects(stm, pending).getAllDDL())
+		{
+			log.trace(sql);
+			stm.execute(sql);
+		}
+	}
+
+	/**
+	 * Creates the given tables in parallel on a bounded pool of
+	 * initialization threads, each using its own connection.
+	 * 
+	 * @param tableDDL
+	 *            The create statements, keyed by qualified table name
+	 * @param pending
+	 *            The caches whose tables need to exist
+	 * @return The time in milliseconds it took to create each table, keyed by
+	 *         qualified table name
+	 */
+	private Map<String, Long> createTablesInParallel(
+			Map<String, String> tableDDL,
+			final List<AbstractSQLFireCache> pending)
+	{
+		Map<String, Long> times = new HashMap<String, Long>();
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(initializationThreads, tableDDL.size()),
+				new CustomizableThreadFactory("sqlfire-cache-init-"));
+		try
+		{
+			Map<String, Future<Long>> results = new LinkedHashMap<String, Future<Long>>();
+			for (Map.Entry<String, String> entry : tableDDL.entrySet())
+			{
+				final String sql = entry.getValue();
+				results.put(entry.getKey(), executor.submit(new Callable<Long>()
+				{
+					@Override
+					public Long call()
+						throws Exception
+					{
+						long start = System.currentTimeMillis();
+						log.trace(sql);
+						template.execute(sql);
+						return System.currentTimeMillis() - start;
+					}
+				}));
+			}
+
+			boolean failed = false;
+			for (Map.Entry<String, Future<Long>> result : results.entrySet())
+			{
+				try
+				{
+					times.put(result.getKey(), result.getValue().get());
+				}
+				catch (ExecutionException e)
+				{
+					log.debug("Creation of cache table " + result.getKey()
+							+ " failed", e.getCause());
+					failed = true;
+				}
+			}
+			if (failed)
+			{
+				template.execute(new ConnectionCallback<Object>()
+				{
+					@Override
+					public Object doInConnection(Connection con)
+						throws SQLException, DataAccessException
+					{
+						Statement stm = con.createStatement();
+						try
+						{
+							createRemaining(stm, pending);
+						}
+						finally
+						{
+							stm.close();
+						}
+						return null;
+					}
+				});
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(
+					"Interrupted while creating cache tables", e);
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		return times;
+	}
+
+	/**
+	 * Reads the catalog and builds the DDL statements needed to create the
+	 * schemas and tables missing for the given caches.
+	 * 
+	 * @param stm
+	 *            The statement to read the catalog with
+	 * @param pending
+	 *            The caches whose tables need to exist
+	 * @return The missing schemas and tables
+	 * @throws SQLException
+	 *             If the catalog can not be read
+	 */
+	private MissingObjects readMissingObjects(Statement stm,
+			List<AbstractSQLFireCache> pending)
+		throws SQLException
+	{
+		Set<String> schemas = new HashSet<String>();
+		ResultSet rs = stm.executeQuery(dialect.getSchemasSQL());
+		try
+		{
+			while (rs.next())
+			{
+				schemas.add(rs.getString(1).toUpperCase());
+			}
+		}
+		finally
+		{
+			rs.close();
+		}
+
+		Set<String> tables = new HashSet<String>();
+		rs = stm.executeQuery(dialect.getTablesSQL());
+		try
+		{
+			while (rs.next())
+			{
+				tables.add(rs.getString(1).toUpperCase() + "."
+						+ rs.getString(2).toUpperCase());
+			}
+		}
+		finally
+		{
+			rs.close();
+		}
+
+		MissingObjects missing = new MissingObjects();
+		Set<String> createSchemas = new LinkedHashSet<String>();
+		for (AbstractSQLFireCache cache : pending)
+		{
+			String table = getTableKey(cache);
+			if (!schemas.contains(cache.getSchemaName().toUpperCase()))
+			{
+				createSchemas.add(cache.getSchemaName());
+			}
+			if (!tables.contains(table)
+					&& !missing.tableDDL.containsKey(table))
+			{
+				log.debug("Creating table: " + cache.getSchemaName() + "."
+						+ cache.getTableName());
+				missing.tableDDL.put(table, cache.getCreateSQL());
+			}
+		}
+		for (String schema : createSchemas)
+		{
+			log.debug("Creating schema: " + schema);
+			missing.schemaDDL.add("CREATE SCHEMA " + schema);
+		}
+		return missing;
+	}
+
+	/**
+	 * @param cache
+	 *            The cache to get the table key for
+	 * @return The upper case, schema qualified table name of the cache
+	 */
+	private String getTableKey(AbstractSQLFireCache cache)
+	{
+		return cache.getSchemaName().toUpperCase() + "."
+				+ cache.getTableName().toUpperCase();
+	}
+
+	/**
+	 * The schemas and tables found missing by a catalog scan.
+	 */
+	private static class MissingObjects
+	{
+		final List<String> schemaDDL = new ArrayList<String>();
+
+		final Map<String, String> tableDDL = new LinkedHashMap<String, String>();
+
+		List<String> getAllDDL()
+		{
+			List<String> ddl = new ArrayList<String>(schemaDDL);
+			ddl.addAll(tableDDL.values());
+			return ddl;
+		}
+	}
+
+	/**
+	 * @return the time in milliseconds it took to initialize the table of
+	 *         each cache initialized by this manager, keyed by cache name
+	 */
+	public Map<String, Long> getInitializationTimes()
+	{
+		return Collections.unmodifiableMap(initializationTimes);
+	}
+
+	/**
+	 * @param initializationThreads
+	 *            the number of threads used to create missing tables. With
+	 *            one thread, the default, all tables are created in a single
+	 *            batch.
+	 */
+	public void setInitializationThreads(int initializationThreads)
+	{
+		this.initializationThreads = initializationThreads;
+	}
+
+	/**
+	 * @param caches
+	 *            the statically configured caches to set
+	 */
+	public void setCaches(Collection<? extends AbstractSQLFireCache> caches)
+	{
+		this.caches = caches;
+	}
+
+	/**
+	 * @param dataSource
+	 *            the dataSource to set
+	 */
+	public void setDataSource(DataSource dataSource)
+	{
+		this.dataSource = dataSource;
+	}
+
+	/**
+	 * @param dialect
+	 *            the dialect of the database the caches are stored in
+	 */
+	public void setDialect(Dialect dialect)
+	{
+		this.dialect = dialect;
+	}
+
+	/**
+	 * @param cacheTemplate
+	 *            the name of the bean definition used to create unknown caches
+	 */
+	public void setCacheTemplate(String cacheTemplate)
+	{
+		this.cacheTemplate = cacheTemplate;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.springframework.beans.factory.BeanFactoryAware#setBeanFactory(org
+	 * .springframework.beans.factory.BeanFactory)
+	 */
+	@Override
+	public void setBeanFactory(BeanFactory beanFactory)
+		throws BeansException
+	{
+		this.beanFactory = beanFactory;
+	}
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A growable output buffer that can be reused between writes, and whose
+ * contents can be read in place instead of copied out with toByteArray().
+ * Buffers are usually obtained from a {@link SerializationBufferPool}.
+ * 
+ * @author cdelashmutt
+ */
+public class SerializationBuffer
+	extends ByteArrayOutputStream
+{
+	private final SerializationBufferPool pool;
+
+	boolean inUse;
+
+	/**
+	 * Creates a buffer that does not belong to a pool.
+	 * 
+	 * @param initialSize
+	 *            The initial capacity in bytes
+	 */
+	public SerializationBuffer(int initialSize)
+	{
+		this(initialSize, null);
+	}
+
+	/**
+	 * Creates a buffer holding the given bytes, without copying them.
+	 * 
+	 * @param data
+	 *            The contents
+	 */
+	public SerializationBuffer(byte[] data)
+	{
+		this(0, null);
+		buf = data;
+		count = data.length;
+	}
+
+	SerializationBuffer(int initialSize, SerializationBufferPool pool)
+	{
+		super(initialSize);
+		this.pool = pool;
+	}
+
+	/**
+	 * @return The array holding the contents, valid up to {@link #size()}
+	 */
+	public byte[] getBuffer()
+	{
+		return buf;
+	}
+
+	/**
+	 * @return A stream reading the contents in place
+	 */
+	public ByteArrayInputStream toInputStream()
+	{
+		return new ByteArrayInputStream(buf, 0, count);
+	}
+
+	/**
+	 * @return The current capacity in bytes
+	 */
+	public int capacity()
+	{
+		return buf.length;
+	}
+
+	/**
+	 * Drops the buffer array if it has grown above the given size, so a single
+	 * large value does not stay pinned in memory.
+	 * 
+	 * @param highWaterMark
+	 *            The largest capacity to keep
+	 * @param initialSize
+	 *            The capacity to return to
+	 */
+	void trim(int highWaterMark, int initialSize)
+	{
+		count = 0;
+		if (buf.length > highWaterMark)
+			buf = new byte[initialSize];
+	}
+
+	/**
+	 * Returns the buffer to its pool. The contents must no longer be used.
+	 */
+	public void release()
+	{
+		if (pool != null)
+			pool.release(this);
+		else
+			reset();
+	}
+}
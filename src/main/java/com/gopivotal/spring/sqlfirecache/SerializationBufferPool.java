@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache;
+
+/**
+ * Keeps a couple of reusable {@link SerializationBuffer}s per thread, so
+ * serializing a value does not allocate and grow a new buffer each time. Two
+ * buffers cover a value being compressed out of a second buffer. Buffers that
+ * grew above the high-water mark are shrunk when released. A thread that asks
+ * for more buffers than are pooled gets unpooled ones.
+ * 
+ * @author cdelashmutt
+ */
+public class SerializationBufferPool
+{
+	private static final SerializationBufferPool SHARED = new SerializationBufferPool();
+
+	private int initialSize = 4096;
+
+	private int highWaterMark = 256 * 1024;
+
+	private static final int BUFFERS_PER_THREAD = 2;
+
+	private final ThreadLocal<SerializationBuffer[]> buffers = new ThreadLocal<SerializationBuffer[]>()
+	{
+		@Override
+		protected SerializationBuffer[] initialValue()
+		{
+			SerializationBuffer[] threadBuffers = new SerializationBuffer[BUFFERS_PER_THREAD];
+			for (int i = 0; i < threadBuffers.length; i++)
+			{
+				threadBuffers[i] = new SerializationBuffer(initialSize,
+						SerializationBufferPool.this);
+			}
+			return threadBuffers;
+		}
+	};
+
+	/**
+	 * @return The pool shared by caches that are not given their own
+	 */
+	public static SerializationBufferPool getSharedPool()
+	{
+		return SHARED;
+	}
+
+	/**
+	 * @return An empty buffer, which must be released after use
+	 */
+	public SerializationBuffer acquire()
+	{
+		for (SerializationBuffer buffer : buffers.get())
+		{
+			if (!buffer.inUse)
+			{
+				buffer.inUse = true;
+				return buffer;
+			}
+		}
+		return new SerializationBuffer(initialSize);
+	}
+
+	void release(SerializationBuffer buffer)
+	{
+		buffer.trim(highWaterMark, initialSize);
+		buffer.inUse = false;
+	}
+
+	/**
+	 * @return the initial buffer capacity in bytes
+	 */
+	public int getInitialSize()
+	{
+		return initialSize;
+	}
+
+	/**
+	 * @param initialSize
+	 *            the initial buffer capacity in bytes
+	 */
+	public void setInitialSize(int initialSize)
+	{
+		this.initialSize = initialSize;
+	}
+
+	/**
+	 * @return the largest capacity in bytes a buffer keeps after release
+	 */
+	public int getHighWaterMark()
+	{
+		return highWaterMark;
+	}
+
+	/**
+	 * @param highWaterMark
+	 *            the largest capacity in bytes a buffer keeps after release
+	 */
+	public void setHighWaterMark(int highWaterMark)
+	{
+		this.highWaterMark = highWaterMark;
+	}
+}
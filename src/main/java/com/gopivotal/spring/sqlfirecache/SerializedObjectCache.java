@@ -18,27 +18,50 @@
  */
 package com.gopivotal.spring.sqlfirecache;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.sql.Blob;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.cache.support.SimpleValueWrapper;
+import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.namedparam.SqlParameterSource;
-import org.springframework.jdbc.core.support.SqlLobValue;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.FileCopyUtils;
 
-import com.gopivotal.spring.sqlfirecache.externalizer.ClassDescriptor;
+import com.gopivotal.spring.sqlfirecache.ChunkStore.ChunkedValue;
+import com.gopivotal.spring.sqlfirecache.ContentStore.ContentRef;
+import com.gopivotal.spring.sqlfirecache.codec.ValueCodec;
+import com.gopivotal.spring.sqlfirecache.compression.CompressionStats;
+import com.gopivotal.spring.sqlfirecache.compression.Compressor;
+import com.gopivotal.spring.sqlfirecache.compression.DeflateCompressor;
 import com.gopivotal.spring.sqlfirecache.externalizer.Externalizer;
+import com.gopivotal.spring.sqlfirecache.externalizer.TypeRegistry;
+import com.gopivotal.spring.sqlfirecache.tier.LocalTier;
+import com.gopivotal.spring.sqlfirecache.tier.OffHeapTier;
+import com.gopivotal.spring.sqlfirecache.tier.TierReader;
 
 /**
  * A simple SQLFire cache definition that serializes/de-serializes objects into
@@ -55,117 +78,1300 @@ public class SerializedObjectCache
 	private Logger log = LoggerFactory.getLogger(SerializedObjectCache.class);
 
 	final ColumnDefinition dataColumn = new ColumnDefinition("OBJECT", SQLFType.BLOB);
-	final List<ColumnDefinition> dataColumns = Arrays.asList(dataColumn);
+	List<ColumnDefinition> dataColumns = Arrays.asList(dataColumn);
+
+	ColumnDefinition inlineColumn;
+	
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.AbstractColumnDefinedSQLFireCache#getDataColumns()
+	 */
+	@Override
+	protected List<ColumnDefinition> getDataColumns()
+	{
+		return dataColumns;
+	}
+
+	private final ObjectSerializer serializer = new ObjectSerializer();
+
+	private Map<Class<Object>, Integer> typeIds = Collections.emptyMap();
+
+	private String typeIdTableName;
+
+	private SerializationBufferPool bufferPool = SerializationBufferPool.getSharedPool();
+
+	private int chunkThreshold;
+
+	private int chunkSize = 1024 * 1024;
+
+	private int chunkReadThreads;
+
+	private ChunkStore chunkStore;
+
+	private ExecutorService chunkReadExecutor;
+
+	private boolean deduplicate;
+
+	private boolean lazyDeserialization;
+
+	private LocalTier localTier;
+
+	private static final int TIER_STRIPES = 64;
+
+	/**
+	 * Counts the writes and evicts of each stripe of keys, so a value read
+	 * from the table on a tier miss is only held if no write or evict of its
+	 * stripe finished while it was read. Guarded by the lock of the stripe.
+	 */
+	private final long[] tierStamps = new long[TIER_STRIPES];
+
+	private final Object[] tierLocks = new Object[TIER_STRIPES];
+	{
+		for (int i = 0; i < TIER_STRIPES; i++)
+		{
+			tierLocks[i] = new Object();
+		}
+	}
+
+	private ContentStore contentStore;
+
+	private TransactionTemplate contentTransactions;
+
+	/**
+	 * @return the tier holding values in this JVM, or null
+	 */
+	public LocalTier getLocalTier()
+	{
+		return localTier;
+	}
+
+	/**
+	 * Serves reads from a tier local to this JVM, such as an
+	 * {@link OffHeapTier}, before reading the cache table. Values read from
+	 * the table, put and evicted through this cache are kept in the tier in
+	 * their serialized form. The tier does not see changes other members make
+	 * to the table.
+	 * 
+	 * @param localTier
+	 *            the tier to use for this cache only, or null, the default,
+	 *            to read every value from the table
+	 */
+	public void setLocalTier(LocalTier localTier)
+	{
+		this.localTier = localTier;
+	}
+
+	/**
+	 * @return whether values are deserialized when first unwrapped
+	 */
+	public boolean isLazyDeserialization()
+	{
+		return lazyDeserialization;
+	}
+
+	/**
+	 * Returns values read by {@link #get(Object)} in a
+	 * {@link LazyValueWrapper}, holding the stored bytes until the value is
+	 * first unwrapped. Values in the BLOB column are read into memory whole
+	 * rather than deserialized from the LOB stream.
+	 * 
+	 * @param lazyDeserialization
+	 *            whether to deserialize values when first unwrapped, false by
+	 *            default
+	 */
+	public void setLazyDeserialization(boolean lazyDeserialization)
+	{
+		this.lazyDeserialization = lazyDeserialization;
+	}
+
+	/**
+	 * @return whether identical values are stored once
+	 */
+	public boolean isDeduplicate()
+	{
+		return deduplicate;
+	}
+
+	/**
+	 * Stores each distinct serialized value once, in a second table named
+	 * after the cache table with a _CONTENT suffix, keyed by its SHA-256 hash
+	 * and counting the rows that refer to it. The cache row then holds the
+	 * hash, and putting a value that is already stored skips writing it.
+	 * Useful when many keys map to the same large value. Cannot be combined
+	 * with chunking.
+	 * 
+	 * @param deduplicate
+	 *            whether to store identical values once, false by default
+	 */
+	public void setDeduplicate(boolean deduplicate)
+	{
+		this.deduplicate = deduplicate;
+	}
+
+	/**
+	 * @return the serialized size in bytes from which values are split into
+	 *         chunks, or 0
+	 */
+	public int getChunkThreshold()
+	{
+		return chunkThreshold;
+	}
+
+	/**
+	 * Splits values that serialize to at least the given number of bytes into
+	 * chunk rows of a second table, named after the cache table with a
+	 * _CHUNKS suffix and colocated with it. The cache row then holds a small
+	 * descriptor. Once enabled, every put and evict also removes the chunks
+	 * of the value it replaced.
+	 * 
+	 * @param chunkThreshold
+	 *            the serialized size in bytes from which values are chunked,
+	 *            or 0, the default, to store every value in a single row
+	 */
+	public void setChunkThreshold(int chunkThreshold)
+	{
+		this.chunkThreshold = chunkThreshold;
+	}
+
+	/**
+	 * @return the largest chunk size in bytes
+	 */
+	public int getChunkSize()
+	{
+		return chunkSize;
+	}
+
+	/**
+	 * @param chunkSize
+	 *            the largest chunk size in bytes, 1 MB by default
+	 */
+	public void setChunkSize(int chunkSize)
+	{
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * @return the number of threads fetching chunks in parallel
+	 */
+	public int getChunkReadThreads()
+	{
+		return chunkReadThreads;
+	}
+
+	/**
+	 * @param chunkReadThreads
+	 *            the number of threads fetching the chunks of a value in
+	 *            parallel. With 1 or less, the default, chunks are read as one
+	 *            ordered stream and deserialized without being assembled.
+	 */
+	public void setChunkReadThreads(int chunkReadThreads)
+	{
+		this.chunkReadThreads = chunkReadThreads;
+	}
+
+	/**
+	 * @return the largest serialized size in bytes stored inline, or 0
+	 */
+	public int getInlineThreshold()
+	{
+		return inlineColumn == null ? 0 : inlineColumn.getLength();
+	}
+
+	/**
+	 * Stores values that serialize to at most the given number of bytes in an
+	 * INLINE_OBJECT binary string column, VARCHAR FOR BIT DATA on SQLFire,
+	 * instead of the BLOB column, so most reads and writes avoid the LOB API.
+	 * Larger values stay in the BLOB column. Caches sharing a table must use
+	 * the same threshold, and an existing table needs the extra column added
+	 * before this is enabled.
+	 * 
+	 * @param inlineThreshold
+	 *            the largest serialized size in bytes to store inline, up to
+	 *            the dialect's longest binary column (32672 bytes on SQLFire),
+	 *            or 0, the default, to store every value in the BLOB column
+	 */
+	public void setInlineThreshold(int inlineThreshold)
+	{
+		if (inlineThreshold > 0)
+		{
+			inlineColumn = new ColumnDefinition("INLINE_OBJECT",
+					SQLFType.VARBINARY, inlineThreshold);
+			dataColumns = Arrays.asList(dataColumn, inlineColumn);
+		}
+		else
+		{
+			inlineColumn = null;
+			dataColumns = Arrays.asList(dataColumn);
+		}
+	}
+
+	/**
+	 * @param externalizers the externalizers to set
+	 */
+	public void setExternalizers(
+			Map<Class<Object>, Externalizer<Object>> externalizers)
+	{
+		serializer.setExternalizers(externalizers);
+	}
+	
+	/**
+	 * @return the externalizers
+	 */
+	public Map<Class<Object>, Externalizer<Object>> getExternalizers()
+	{
+		return serializer.getExternalizers();
+	}
+
+	/**
+	 * @return whether externalizers are generated for classes without one
+	 */
+	public boolean isGenerateExternalizers()
+	{
+		return serializer.getJavaCodec().isGenerateExternalizers();
+	}
+
+	/**
+	 * @param generateExternalizers
+	 *            whether to derive externalizers from the fields of classes
+	 *            that are not serializable and have no configured externalizer
+	 */
+	public void setGenerateExternalizers(boolean generateExternalizers)
+	{
+		serializer.getJavaCodec().setGenerateExternalizers(generateExternalizers);
+	}
+
+	/**
+	 * @return the serializer used to turn values into bytes and back
+	 */
+	public ObjectSerializer getSerializer()
+	{
+		return serializer;
+	}
+
+	/**
+	 * @return the codec new values are written with
+	 */
+	public ValueCodec getCodec()
+	{
+		return serializer.getCodec();
+	}
+
+	/**
+	 * @param codec
+	 *            the codec to write new values with. Values written with Java
+	 *            serialization, the default, can still be read.
+	 */
+	public void setCodec(ValueCodec codec)
+	{
+		serializer.setCodec(codec);
+	}
+
+	/**
+	 * @param codecs
+	 *            additional codecs to read previously written values with
+	 */
+	public void setCodecs(List<ValueCodec> codecs)
+	{
+		serializer.setCodecs(codecs);
+	}
+
+	/**
+	 * @return the configured type ids of externalized classes
+	 */
+	public Map<Class<Object>, Integer> getTypeIds()
+	{
+		return typeIds;
+	}
+
+	/**
+	 * @param typeIds
+	 *            fixed ids for externalized classes. Values of these classes
+	 *            are written with their id instead of a serialized class
+	 *            descriptor.
+	 */
+	public void setTypeIds(Map<Class<Object>, Integer> typeIds)
+	{
+		this.typeIds = typeIds;
+	}
+
+	/**
+	 * @return the name of the table type ids are assigned in, or null
+	 */
+	public String getTypeIdTableName()
+	{
+		return typeIdTableName;
+	}
+
+	/**
+	 * @param typeIdTableName
+	 *            the name of a table, in the cache schema, to assign ids to
+	 *            externalized classes without a configured id. Caches sharing
+	 *            the table share the ids.
+	 */
+	public void setTypeIdTableName(String typeIdTableName)
+	{
+		this.typeIdTableName = typeIdTableName;
+	}
+
+	/**
+	 * @return the pool of buffers values are serialized into
+	 */
+	public SerializationBufferPool getBufferPool()
+	{
+		return bufferPool;
+	}
+
+	/**
+	 * @param bufferPool
+	 *            the pool of buffers to serialize values into, instead of the
+	 *            shared pool
+	 */
+	public void setBufferPool(SerializationBufferPool bufferPool)
+	{
+		this.bufferPool = bufferPool;
+		serializer.setBufferPool(bufferPool);
+	}
+
+	/**
+	 * @return the compressor for large values, or null
+	 */
+	public Compressor getCompressor()
+	{
+		return serializer.getCompressor();
+	}
+
+	/**
+	 * @param compressor
+	 *            the compressor for values of at least the compression
+	 *            threshold, such as a {@link DeflateCompressor}. Values stored
+	 *            uncompressed can still be read.
+	 */
+	public void setCompressor(Compressor compressor)
+	{
+		serializer.setCompressor(compressor);
+	}
+
+	/**
+	 * @return the serialized size in bytes from which values are compressed
+	 */
+	public int getCompressionThreshold()
+	{
+		return serializer.getCompressionThreshold();
+	}
+
+	/**
+	 * @param compressionThreshold
+	 *            the serialized size in bytes from which values are
+	 *            compressed, 4096 by default
+	 */
+	public void setCompressionThreshold(int compressionThreshold)
+	{
+		serializer.setCompressionThreshold(compressionThreshold);
+	}
+
+	/**
+	 * @return the compression ratio and time spent compressing for this cache
+	 */
+	public CompressionStats getCompressionStats()
+	{
+		return serializer.getCompressionStats();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.AbstractSQLFireCache#afterPropertiesSet()
+	 */
+	@Override
+	public void afterPropertiesSet()
+		throws Exception
+	{
+		if (deduplicate && chunkThreshold > 0)
+			throw new IllegalStateException(
+					"Deduplication cannot be combined with chunking");
+		if (isReplicated()
+				&& (deduplicate || chunkThreshold > 0 || localTier != null))
+			throw new IllegalStateException(
+					"A replicated cache holds whole values, without chunks, shared content or a local tier");
+		if (getVersionedCacheSize() > 0 && localTier != null)
+			throw new IllegalStateException(
+					"Versioned values cannot be combined with a local tier");
+		if (inlineColumn != null
+				&& inlineColumn.getLength() > getDialect().getMaxVarbinaryLength())
+			throw new IllegalStateException("The inline threshold of "
+					+ inlineColumn.getLength()
+					+ " bytes is larger than the longest binary column, "
+					+ getDialect().getMaxVarbinaryLength() + " bytes");
+		super.afterPropertiesSet();
+		List<ColumnDefinition> keyColumns = isMultiplexed() ? Arrays.asList(
+				getCacheNameColumn(), getIdColumn()) : Arrays
+				.asList(getIdColumn());
+		chunkStore = new ChunkStore(getJdbcOperations(), getDialect(),
+				getSchemaName(), getTableName() + "_CHUNKS", getFQTableName(),
+				keyColumns);
+		contentStore = new ContentStore(getJdbcOperations(), getDialect(),
+				getSchemaName(), getTableName() + "_CONTENT");
+		if (deduplicate)
+		{
+			// Reference counts change with the rows referring to them
+			contentTransactions = new TransactionTemplate(
+					new DataSourceTransactionManager(getDataSource()));
+			contentTransactions
+					.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+		}
+		if (chunkReadThreads > 1)
+		{
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(
+					"sqlfire-cache-chunks-");
+			threadFactory.setDaemon(true);
+			chunkReadExecutor = Executors.newFixedThreadPool(chunkReadThreads,
+					threadFactory);
+			chunkStore.setReadExecutor(chunkReadExecutor);
+		}
+		if (!typeIds.isEmpty() || typeIdTableName != null)
+		{
+			serializer.setTypeRegistry(buildTypeRegistry());
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.AbstractSQLFireCache#destroy()
+	 */
+	@Override
+	public void destroy()
+		throws Exception
+	{
+		if (chunkReadExecutor != null)
+		{
+			chunkReadExecutor.shutdownNow();
+		}
+		super.destroy();
+	}
+
+	/**
+	 * Registers the externalized classes with their configured ids, or ids
+	 * assigned in the type id table.
+	 * 
+	 * @return The registry
+	 */
+	private TypeRegistry buildTypeRegistry()
+	{
+		Map<Class<Object>, Externalizer<Object>> externalizers = getExternalizers();
+		TypeRegistry registry = new TypeRegistry();
+		for (Map.Entry<Class<Object>, Integer> entry : typeIds.entrySet())
+		{
+			// Generated externalizers can be given ids too
+			Externalizer<Object> externalizer = serializer.getJavaCodec()
+					.getExternalizer(entry.getKey());
+			if (externalizer == null)
+				throw new IllegalStateException("A type id is configured for "
+						+ entry.getKey() + " but it has no externalizer");
+			registry.register(entry.getValue(), entry.getKey(), externalizer);
+		}
+		List<String> unassigned = new ArrayList<String>();
+		for (Class<Object> type : externalizers.keySet())
+		{
+			if (!typeIds.containsKey(type))
+				unassigned.add(type.getName());
+		}
+		if (typeIdTableName != null && !unassigned.isEmpty())
+		{
+			Map<String, Integer> assigned = new TypeIdTable(getJdbcOperations(),
+					getDialect(), getSchemaName(), typeIdTableName)
+					.getIds(unassigned);
+			for (Map.Entry<Class<Object>, Externalizer<Object>> entry : externalizers.entrySet())
+			{
+				if (!typeIds.containsKey(entry.getKey()))
+					registry.register(assigned.get(entry.getKey().getName()),
+							entry.getKey(), entry.getValue());
+			}
+		}
+		return registry;
+	}
 	
+	/**
+	 * Reads a stored value, or the descriptor of a value stored elsewhere.
+	 * 
+	 * @param in
+	 *            The stored bytes
+	 * @return The value, a {@link ChunkedValue} or a {@link ContentRef}
+	 */
+	private Object readValue(InputStream in)
+		throws IOException, ClassNotFoundException
+	{
+		PushbackInputStream pin = new PushbackInputStream(in, 1);
+		int first = pin.read();
+		if (first == ObjectSerializer.CHUNKED_ID)
+			return ChunkedValue.read(pin);
+		if (first == ObjectSerializer.DEDUPLICATED_ID)
+			return ContentRef.read(pin);
+		if (first >= 0)
+			pin.unread(first);
+		return serializer.deserialize(pin);
+	}
+
+	/**
+	 * Wraps stored bytes for deserialization on first use. Descriptors of
+	 * values stored elsewhere are read straight away, so they can be
+	 * resolved.
+	 * 
+	 * @param data
+	 *            The stored bytes
+	 * @return A {@link LazyValueWrapper}, a {@link ChunkedValue} or a
+	 *         {@link ContentRef}
+	 */
+	private Object readLazily(byte[] data)
+		throws IOException, ClassNotFoundException
+	{
+		if (data.length > 0
+				&& (data[0] == ObjectSerializer.CHUNKED_ID || data[0] == ObjectSerializer.DEDUPLICATED_ID))
+			return readValue(new ByteArrayInputStream(data));
+		return new LazyValueWrapper(data, serializer);
+	}
+
+	final RowMapper<Object> rowMapper = new RowMapper<Object>()
+			{
+		@Override
+		public Object mapRow(ResultSet rs, int rowNum)
+			throws SQLException
+		{
+			if (inlineColumn != null)
+			{
+				byte[] inline = rs.getBytes(inlineColumn.getName());
+				if (inline != null)
+				{
+					try
+					{
+						if (lazyDeserialization)
+							return readLazily(inline);
+						return readValue(new ByteArrayInputStream(inline));
+					}
+					catch (Exception e)
+					{
+						throw new RuntimeException("Error de-serializing object", e);
+					}
+				}
+			}
+			// Larger values are deserialized straight from the LOB stream
+			InputStream data = getDialect().getBlobStream(rs, dataColumn.getName());
+			Object value = null;
+			try
+			{
+				if (lazyDeserialization)
+					value = readLazily(FileCopyUtils.copyToByteArray(data));
+				else
+					value = readValue(data);
+			}
+			catch (Exception e)
+			{
+				throw new RuntimeException("Error de-serializing object", e);
+			}
+			finally
+			{
+				try
+				{
+					if (data != null)
+						data.close();
+				}
+				catch (IOException e)
+				{
+					// Can't do anything on a close error
+					log.warn("Error while closing input stream to Blob", e);
+				}
+			}
+			return value;
+		}
+	};
+
+	/**
+	 * Reads the descriptor of a value stored elsewhere, without reading the
+	 * rest of a value stored in the row. Maps other rows to null.
+	 */
+	final RowMapper<Object> descriptorMapper = new RowMapper<Object>()
+	{
+		@Override
+		public Object mapRow(ResultSet rs, int rowNum)
+			throws SQLException
+		{
+			byte[] inline = inlineColumn == null ? null : rs
+					.getBytes(inlineColumn.getName());
+			InputStream data = inline != null ? new ByteArrayInputStream(
+					inline) : getDialect().getBlobStream(rs,
+					dataColumn.getName());
+			if (data == null)
+				return null;
+			try
+			{
+				int first = data.read();
+				if (first == ObjectSerializer.CHUNKED_ID)
+					return ChunkedValue.read(data);
+				if (first == ObjectSerializer.DEDUPLICATED_ID)
+					return ContentRef.read(data);
+				return null;
+			}
+			catch (IOException e)
+			{
+				throw new SQLException("Error reading value descriptor", e);
+			}
+			finally
+			{
+				try
+				{
+					data.close();
+				}
+				catch (IOException e)
+				{
+					// Can't do anything on a close error
+					log.warn("Error while closing input stream to Blob", e);
+				}
+			}
+		}
+	};
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.AbstractSQLFireCache#getRowMapper()
+	 */
+	@Override
+	protected RowMapper<Object> getRowMapper()
+	{
+		return rowMapper;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.AbstractColumnDefinedSQLFireCache#getInsertPreparedStatementSetter(java.lang.Object, java.lang.Object)
+	 */
+	protected SqlParameterSource getInsertPreparedStatementSetter(
+			final Object key, final Object value)
+	{
+		return new IntBlobParameterSource(key, value);
+	}
+
 	/* (non-Javadoc)
-	 * @see com.gopivotal.spring.sqlfirecache.AbstractColumnDefinedSQLFireCache#getDataColumns()
+	 * @see com.gopivotal.spring.sqlfirecache.AbstractColumnDefinedSQLFireCache#getUpdatePreparedStatementSetter(java.lang.Object, java.lang.Object)
 	 */
 	@Override
-	protected List<ColumnDefinition> getDataColumns()
+	protected SqlParameterSource getUpdatePreparedStatementSetter(
+			final Object key, final Object value)
 	{
-		return dataColumns;
+		return new IntBlobParameterSource(key, value);
+	}
+
+	/**
+	 * A value already serialized into a pooled buffer by {@link #put}.
+	 */
+	private static final class Encoded
+	{
+		final SerializationBuffer buffer;
+
+		Encoded(SerializationBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
 	}
 
-	private Map<Class<Object>,Externalizer<Object>> externalizers = Collections.emptyMap();
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.AbstractSQLFireCache#put(java.lang.
+	 * Object, java.lang.Object)
+	 */
+	@Override
+	public void put(Object key, Object value)
+	{
+		// Serialize once into a pooled buffer, and bind the statements to it
+		SerializationBuffer buffer = bufferPool.acquire();
+		try
+		{
+			try
+			{
+				serializer.serialize(value, buffer);
+			}
+			catch (Exception e)
+			{
+				log.warn("Exception while serializing object to cache.", e);
+				return;
+			}
+			store(key, buffer);
+		}
+		finally
+		{
+			buffer.release();
+		}
+	}
 
 	/**
-	 * @param externalizers the externalizers to set
+	 * Stores a value in its serialized form, as returned by
+	 * {@link #getBytes(Object)}, without deserializing it. The bytes are bound
+	 * to the statement as they are.
+	 * 
+	 * @param key
+	 *            The key
+	 * @param data
+	 *            The serialized value, readable by the codecs and compressors
+	 *            of this cache
+	 * @throws IllegalArgumentException
+	 *             If the data is a reference to a value stored elsewhere
 	 */
-	public void setExternalizers(
-			Map<Class<Object>, Externalizer<Object>> externalizers)
+	public void putBytes(Object key, byte[] data)
 	{
-		this.externalizers = externalizers;
+		if (data.length == 0 || data[0] == ObjectSerializer.CHUNKED_ID
+				|| data[0] == ObjectSerializer.DEDUPLICATED_ID)
+			throw new IllegalArgumentException(
+					"Data is not a serialized value");
+		store(key, new SerializationBuffer(data));
 	}
-	
+
+	private void store(Object key, SerializationBuffer buffer)
+	{
+		boolean written;
+		if (deduplicate)
+			written = putDeduplicated(key, buffer);
+		else if (chunkThreshold > 0)
+			written = putChunked(key, buffer);
+		else
+			written = write(key, new Encoded(buffer));
+		// The tier never holds a value the table doesn't
+		if (written && localTier != null)
+		{
+			int stripe = getTierStripe(key);
+			synchronized (tierLocks[stripe])
+			{
+				tierStamps[stripe]++;
+				localTier.put(key, buffer.getBuffer(), 0, buffer.size());
+			}
+		}
+	}
+
+	private static int getTierStripe(Object key)
+	{
+		int hash = key.hashCode();
+		return (hash ^ (hash >>> 16)) & (TIER_STRIPES - 1);
+	}
+
 	/**
-	 * @return the externalizers
+	 * Removes a key from the tier once it is deleted from the table, so a
+	 * concurrent miss that read the deleted row cannot hold it afterwards.
 	 */
-	public Map<Class<Object>, Externalizer<Object>> getExternalizers()
+	private void removeFromTier(Object key)
 	{
-		return externalizers;
+		int stripe = getTierStripe(key);
+		synchronized (tierLocks[stripe])
+		{
+			tierStamps[stripe]++;
+			localTier.remove(key);
+		}
 	}
-	
-	final RowMapper<Object> rowMapper = new RowMapper<Object>()
+
+	/**
+	 * Empties the tier once the table is cleared. A concurrent miss holding a
+	 * row read before the clear either finds its stamp changed or has its
+	 * value cleared with the rest.
+	 */
+	private void clearTier()
+	{
+		for (int stripe = 0; stripe < TIER_STRIPES; stripe++)
+		{
+			synchronized (tierLocks[stripe])
 			{
-		@Override
-		public Object mapRow(ResultSet rs, int rowNum)
-			throws SQLException
+				tierStamps[stripe]++;
+			}
+		}
+		localTier.clear();
+	}
+
+	/**
+	 * Returns the serialized form of a value without deserializing it, for
+	 * passing on to {@link #putBytes(Object, byte[])} or a consumer that
+	 * understands it.
+	 * 
+	 * @param key
+	 *            The key
+	 * @return The serialized value, or null if there is none
+	 */
+	public byte[] getBytes(Object key)
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try
 		{
-			Blob blob = rs.getBlob("OBJECT");
-			ObjectInputStream ois = null;
-			Object value = null;
-			try
+			return writeTo(key, out) ? out.toByteArray() : null;
+		}
+		catch (IOException e)
+		{
+			// Not thrown by a ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Copies the serialized form of a value to a stream without
+	 * deserializing it. Values in a single row are copied straight from the
+	 * LOB stream. Chunked values are assembled first, so a concurrent put
+	 * never produces a mix of two values.
+	 * 
+	 * @param key
+	 *            The key
+	 * @param out
+	 *            The stream to copy to, left open
+	 * @return true if there was a value to copy
+	 * @throws IOException
+	 *             If the stream cannot be written
+	 */
+	public boolean writeTo(Object key, final OutputStream out)
+		throws IOException
+	{
+		RowMapper<Object> copier = new RowMapper<Object>()
+		{
+			@Override
+			public Object mapRow(ResultSet rs, int rowNum)
+				throws SQLException
 			{
-				ois = new ObjectInputStream(blob.getBinaryStream());
-				value = ois.readObject();
-				if(value instanceof ClassDescriptor)
+				byte[] inline = inlineColumn == null ? null : rs
+						.getBytes(inlineColumn.getName());
+				InputStream data = inline != null ? new ByteArrayInputStream(
+						inline) : getDialect().getBlobStream(rs,
+						dataColumn.getName());
+				try
 				{
-					Class<? extends Object> clazz = ((ClassDescriptor)value).getClazz();
-					Externalizer<Object> externalizer = externalizers.get(clazz);
-					if(externalizer != null)
+					PushbackInputStream pin = new PushbackInputStream(data, 1);
+					int first = pin.read();
+					if (first == ObjectSerializer.CHUNKED_ID)
+						return ChunkedValue.read(pin);
+					if (first == ObjectSerializer.DEDUPLICATED_ID)
+						return ContentRef.read(pin);
+					if (first < 0)
+						return Boolean.TRUE;
+					out.write(first);
+					byte[] chunk = new byte[8192];
+					int count;
+					while ((count = pin.read(chunk)) >= 0)
 					{
-						value = externalizer.readObject(ois);
+						out.write(chunk, 0, count);
+					}
+					return Boolean.TRUE;
+				}
+				catch (IOException e)
+				{
+					throw new CopyException(e);
+				}
+				finally
+				{
+					try
+					{
+						if (data != null)
+							data.close();
+					}
+					catch (IOException e)
+					{
+						// Can't do anything on a close error
+						log.warn("Error while closing input stream to Blob", e);
 					}
-					else
-						throw new IllegalStateException("No suitable externalizer for serialized class of type: " + clazz.toString());
 				}
 			}
-			catch (Exception e)
-			{
-				throw new RuntimeException("Error de-serializing object", e);
-			}
-			finally
+		};
+		try
+		{
+			// A chunked value may be replaced while reading, try once more
+			for (int attempt = 0; attempt < 2; attempt++)
 			{
-				try
+				List<Object> rows = queryForKey(key, copier);
+				if (rows.isEmpty())
+					return false;
+				Object stored = rows.get(0);
+				byte[] data = null;
+				if (stored instanceof ChunkedValue)
+					data = chunkStore.readBytes(getChunkKeyValues(key),
+							(ChunkedValue) stored);
+				else if (stored instanceof ContentRef)
+					data = contentStore.readBytes((ContentRef) stored);
+				else
+					return true;
+				if (data != null)
 				{
-					if (ois != null)
-						ois.close();
+					out.write(data);
+					return true;
 				}
-				catch (IOException e)
+			}
+			return false;
+		}
+		catch (CopyException e)
+		{
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Carries an IOException of the caller's stream out of a row mapper.
+	 */
+	private static class CopyException
+		extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+
+		CopyException(IOException cause)
+		{
+			super(cause);
+		}
+
+		@Override
+		public synchronized IOException getCause()
+		{
+			return (IOException) super.getCause();
+		}
+	}
+
+	private boolean putChunked(Object key, SerializationBuffer buffer)
+	{
+		Object[] keyValues = getChunkKeyValues(key);
+		try
+		{
+			ensureTableInitialized();
+			// Only the version this put replaces is deleted, never the
+			// chunks of a concurrent put
+			Object previous = getDescriptor(key);
+			ChunkedValue chunked = null;
+			boolean written;
+			if (buffer.size() >= chunkThreshold)
+			{
+				chunked = chunkStore.write(keyValues, buffer.getBuffer(),
+						buffer.size(), chunkSize);
+				SerializationBuffer descriptor = new SerializationBuffer(32);
+				chunked.write(descriptor);
+				written = write(key, new Encoded(descriptor));
+			}
+			else
+			{
+				written = write(key, new Encoded(buffer));
+			}
+			if (!written)
+			{
+				// The row still points at the previous version
+				if (chunked != null)
+					chunkStore.deleteVersion(keyValues, chunked.version);
+				return false;
+			}
+			if (previous instanceof ChunkedValue)
+				chunkStore.deleteVersion(keyValues,
+						((ChunkedValue) previous).version);
+			return true;
+		}
+		catch (Exception e)
+		{
+			log.warn("Exception while attempting to write chunks to cache table.",
+					e);
+			return false;
+		}
+	}
+
+	private boolean putDeduplicated(final Object key,
+			final SerializationBuffer buffer)
+	{
+		final ContentRef ref = ContentStore.hash(buffer.getBuffer(),
+				buffer.size());
+		try
+		{
+			final SerializationBuffer descriptor = new SerializationBuffer(40);
+			ref.write(descriptor);
+			ensureTableInitialized();
+			contentStore.ensureTableInitialized();
+			return contentTransactions.execute(new TransactionCallback<Boolean>()
+			{
+				@Override
+				public Boolean doInTransaction(TransactionStatus status)
 				{
-					// Can't do anything on a close error
-					log.warn("Error while closing input stream to Blob", e);
+					ContentRef previous = lockContentRef(key);
+					if (ref.equals(previous))
+						return true;
+					contentStore.addReference(ref, buffer.getBuffer(),
+							buffer.size());
+					if (!write(key, new Encoded(descriptor)))
+					{
+						status.setRollbackOnly();
+						return false;
+					}
+					if (previous != null)
+						contentStore.removeReference(previous);
+					return true;
 				}
+			});
+		}
+		catch (Exception e)
+		{
+			log.warn("Exception while attempting to write content to cache table.",
+					e);
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the content reference held in the row of a key, locking the row
+	 * until the current transaction ends. Concurrent puts and evicts of the
+	 * key wait here, so each reference is released exactly once.
+	 * 
+	 * @param key
+	 *            The key
+	 * @return The reference, or null if the row holds the value itself or
+	 *         there is no row
+	 */
+	private ContentRef lockContentRef(Object key)
+	{
+		List<Object> values = queryForKey(getSelectSQL() + " FOR UPDATE", key,
+				descriptorMapper);
+		return !values.isEmpty() && values.get(0) instanceof ContentRef ? (ContentRef) values
+				.get(0) : null;
+	}
+
+	/**
+	 * Reads the descriptor held in the row of a key, never from values held
+	 * locally.
+	 * 
+	 * @param key
+	 *            The key
+	 * @return The {@link ChunkedValue} or {@link ContentRef} of the row, or
+	 *         null if the row holds the value itself or there is no row
+	 */
+	private Object getDescriptor(Object key)
+	{
+		List<Object> values = queryForKey(key, descriptorMapper);
+		return values.isEmpty() ? null : values.get(0);
+	}
+
+	private Object[] getChunkKeyValues(Object key)
+	{
+		return isMultiplexed() ? new Object[] { getName(), key }
+				: new Object[] { key };
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.AbstractSQLFireCache#get(java.lang.Object)
+	 */
+	@Override
+	public ValueWrapper get(Object key)
+	{
+		if (localTier != null)
+			return getThroughTier(key);
+		return getFromTable(key);
+	}
+
+	/**
+	 * Reads values in place from the tier, copying only those deserialized
+	 * lazily.
+	 */
+	private final TierReader<ValueWrapper> tierReader = new TierReader<ValueWrapper>()
+	{
+		@Override
+		public ValueWrapper read(InputStream in, int length)
+			throws IOException, ClassNotFoundException
+		{
+			if (lazyDeserialization)
+			{
+				byte[] data = new byte[length];
+				new DataInputStream(in).readFully(data);
+				return new LazyValueWrapper(data, serializer);
 			}
-			return value;
+			return new SimpleValueWrapper(serializer.deserialize(in));
 		}
 	};
 
+	private ValueWrapper getThroughTier(Object key)
+	{
+		int stripe = getTierStripe(key);
+		long stamp;
+		synchronized (tierLocks[stripe])
+		{
+			stamp = tierStamps[stripe];
+		}
+		try
+		{
+			ValueWrapper held = localTier.read(key, tierReader);
+			if (held != null)
+				return held;
+			byte[] data = getBytes(key);
+			if (data == null)
+				return null;
+			synchronized (tierLocks[stripe])
+			{
+				// A write or evict since the read may have made it stale
+				if (tierStamps[stripe] == stamp)
+					localTier.put(key, data, 0, data.length);
+			}
+			return tierReader.read(new ByteArrayInputStream(data), data.length);
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException("Error de-serializing object", e);
+		}
+	}
+
+	private ValueWrapper getFromTable(Object key)
+	{
+		ValueWrapper wrapper = super.get(key);
+		if (wrapper != null && wrapper.get() instanceof LazyValueWrapper)
+			return (LazyValueWrapper) wrapper.get();
+		if (wrapper != null && wrapper.get() instanceof ContentRef)
+			return getDeduplicated((ContentRef) wrapper.get());
+		if (wrapper == null || !(wrapper.get() instanceof ChunkedValue))
+			return wrapper;
+		try
+		{
+			Object value = chunkStore.read(getChunkKeyValues(key),
+					(ChunkedValue) wrapper.get(), serializer);
+			if (value == null)
+			{
+				// The chunks were replaced while reading, try the new version once
+				wrapper = super.get(key);
+				if (wrapper == null || !(wrapper.get() instanceof ChunkedValue))
+					return wrapper;
+				value = chunkStore.read(getChunkKeyValues(key),
+						(ChunkedValue) wrapper.get(), serializer);
+			}
+			return value == null ? null : new SimpleValueWrapper(value);
+		}
+		catch (DataAccessException e)
+		{
+			log.warn("Error reading chunks for cache get", e);
+			return null;
+		}
+	}
+
 	/* (non-Javadoc)
-	 * @see com.gopivotal.spring.sqlfirecache.AbstractSQLFireCache#getRowMapper()
+	 * @see com.gopivotal.spring.sqlfirecache.AbstractColumnDefinedSQLFireCache#resolveValue(java.lang.Object, java.lang.Object)
 	 */
 	@Override
-	protected RowMapper<Object> getRowMapper()
+	protected Object resolveValue(Object key, Object value)
 	{
-		return rowMapper;
+		// Versioned values are held whole, rather than as descriptors
+		if (value instanceof ContentRef)
+			return contentStore.read((ContentRef) value, serializer);
+		if (value instanceof ChunkedValue)
+			return chunkStore.read(getChunkKeyValues(key),
+					(ChunkedValue) value, serializer);
+		return value;
+	}
+
+	private ValueWrapper getDeduplicated(ContentRef ref)
+	{
+		try
+		{
+			Object value = contentStore.read(ref, serializer);
+			return value == null ? null : new SimpleValueWrapper(value);
+		}
+		catch (DataAccessException e)
+		{
+			log.warn("Error reading content for cache get", e);
+			return null;
+		}
 	}
 
 	/* (non-Javadoc)
-	 * @see com.gopivotal.spring.sqlfirecache.AbstractColumnDefinedSQLFireCache#getInsertPreparedStatementSetter(java.lang.Object, java.lang.Object)
+	 * @see com.gopivotal.spring.sqlfirecache.AbstractSQLFireCache#evict(java.lang.Object)
 	 */
-	protected SqlParameterSource getInsertPreparedStatementSetter(
-			final Object key, final Object value)
+	@Override
+	public void evict(Object key)
 	{
-		return new IntBlobParameterSource(key, value);
+		evictFromTable(key);
+		if (localTier != null)
+		{
+			removeFromTier(key);
+		}
+	}
+
+	private void evictFromTable(final Object key)
+	{
+		if (deduplicate)
+		{
+			ensureTableInitialized();
+			contentStore.ensureTableInitialized();
+			contentTransactions.execute(new TransactionCallbackWithoutResult()
+			{
+				@Override
+				protected void doInTransactionWithoutResult(
+						TransactionStatus status)
+				{
+					ContentRef previous = lockContentRef(key);
+					SerializedObjectCache.super.evict(key);
+					if (previous != null)
+						contentStore.removeReference(previous);
+				}
+			});
+			return;
+		}
+		Object previous = chunkThreshold > 0 ? getDescriptor(key) : null;
+		super.evict(key);
+		if (previous instanceof ChunkedValue)
+		{
+			chunkStore.deleteVersion(getChunkKeyValues(key),
+					((ChunkedValue) previous).version);
+		}
 	}
 
 	/* (non-Javadoc)
-	 * @see com.gopivotal.spring.sqlfirecache.AbstractColumnDefinedSQLFireCache#getUpdatePreparedStatementSetter(java.lang.Object, java.lang.Object)
+	 * @see com.gopivotal.spring.sqlfirecache.AbstractSQLFireCache#clear()
 	 */
 	@Override
-	protected SqlParameterSource getUpdatePreparedStatementSetter(
-			final Object key, final Object value)
+	public void clear()
 	{
-		return new IntBlobParameterSource(key, value);
+		clearTable();
+		if (localTier != null)
+		{
+			clearTier();
+		}
+	}
+
+	private void clearTable()
+	{
+		if (deduplicate)
+		{
+			ensureTableInitialized();
+			contentStore.ensureTableInitialized();
+			contentTransactions.execute(new TransactionCallbackWithoutResult()
+			{
+				@Override
+				protected void doInTransactionWithoutResult(
+						TransactionStatus status)
+				{
+					String sql = "SELECT * FROM " + getFQTableName();
+					List<Object> previous = isMultiplexed() ? getJdbcOperations()
+							.query(sql + " WHERE "
+									+ getCacheNameColumn().getName()
+									+ "=? FOR UPDATE", descriptorMapper,
+									getName()) : getJdbcOperations().query(
+							sql + " FOR UPDATE", descriptorMapper);
+					SerializedObjectCache.super.clear();
+					for (Object value : previous)
+					{
+						if (value instanceof ContentRef)
+							contentStore.removeReference((ContentRef) value);
+					}
+				}
+			});
+			return;
+		}
+		super.clear();
+		if (chunkThreshold > 0)
+		{
+			if (isMultiplexed())
+				chunkStore.deleteWhere(getCacheNameColumn().getName() + "=?",
+						getName());
+			else
+				chunkStore.deleteWhere(null);
+		}
+	}
+
+	private boolean isInline(SerializationBuffer buffer)
+	{
+		return inlineColumn != null
+				&& buffer.size() <= inlineColumn.getLength();
 	}
 
 	private class IntBlobParameterSource
-	implements SqlParameterSource
+	implements ShapedSqlParameterSource
 	{
 		final Object key;
 		final Object value;
 		final String idColumnName = getIdColumn().getName();
 		final String dataColumnName = dataColumn.getName();
+		final String inlineColumnName = inlineColumn != null ? inlineColumn
+				.getName() : null;
+		final String cacheNameColumnName = isMultiplexed() ? getCacheNameColumn()
+				.getName() : null;
 		
 		/**
 		 * TODO: Describe IntBlobParameterSource constructor
@@ -182,7 +1388,16 @@ public class SerializedObjectCache
 		public boolean hasValue(String paramName)
 		{
 			return idColumnName.equals(paramName)
-				|| dataColumnName.equals(paramName);
+				|| dataColumnName.equals(paramName)
+				|| paramName.equals(inlineColumnName)
+				|| paramName.equals(cacheNameColumnName);
+		}
+
+		@Override
+		public Object getShape()
+		{
+			// The columns are the same for every value of this cache
+			return SerializedObjectCache.this;
 		}
 
 		@Override
@@ -191,32 +1406,39 @@ public class SerializedObjectCache
 		{
 			if(dataColumnName.equals(paramName))
 			{
-				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				if(value instanceof Encoded)
+				{
+					SerializationBuffer buffer = ((Encoded)value).buffer;
+					if(isInline(buffer))
+						return null;
+					return getDialect().createBlobValue(buffer.getBuffer(), 0, buffer.size());
+				}
 				try
 				{
-					ObjectOutputStream oos = new ObjectOutputStream(bos);
-					Externalizer<Object> externalizer = null;
-					if(value!= null) externalizer = externalizers.get(value.getClass());
-					if(externalizer != null)
-					{
-						oos.writeObject(new ClassDescriptor(value.getClass()));
-						externalizer.writeObject(oos, value);
-					}
-					else
-					{
-						oos.writeObject(value);
-					}
+					return getDialect().createBlobValue(serializer.serialize(value));
 				}
 				catch(IOException e)
 				{
 					throw new RuntimeException("Error serializing object to cache", e);
 				}
-				return new SqlLobValue(bos.toByteArray());
+			}
+			else if(paramName.equals(inlineColumnName))
+			{
+				if(value instanceof Encoded && isInline(((Encoded)value).buffer))
+				{
+					SerializationBuffer buffer = ((Encoded)value).buffer;
+					return getDialect().createBinaryValue(buffer.getBuffer(), 0, buffer.size());
+				}
+				return null;
 			}
 			else if(idColumnName.equals(paramName))
 			{
 				return key;
 			}
+			else if(paramName.equals(cacheNameColumnName))
+			{
+				return getName();
+			}
 			else
 			{
 				throw new IllegalArgumentException("No parameter with name " + paramName);
@@ -228,10 +1450,16 @@ public class SerializedObjectCache
 		{
 			if(dataColumnName.equals(paramName))
 				return Types.BLOB;
+			else if(paramName.equals(inlineColumnName))
+				return Types.VARBINARY;
 			else if(idColumnName.equals(paramName))
 			{
 				return Types.INTEGER;
 			}
+			else if(paramName.equals(cacheNameColumnName))
+			{
+				return Types.VARCHAR;
+			}
 			else
 			{
 				return TYPE_UNKNOWN;
@@ -243,10 +1471,16 @@ public class SerializedObjectCache
 		{
 			if(dataColumnName.equals(paramName))
 				return "BLOB";
+			else if(paramName.equals(inlineColumnName))
+				return getDialect().buildTypeName(inlineColumn.getType());
 			else if(idColumnName.equals(paramName))
 			{
 				return "INTEGER";
 			}
+			else if(paramName.equals(cacheNameColumnName))
+			{
+				return "VARCHAR";
+			}
 			else
 			{
 				return null;
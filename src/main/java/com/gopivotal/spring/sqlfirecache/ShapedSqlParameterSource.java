@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache;
+
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+
+/**
+ * A parameter source that can tell which parameters it provides without being
+ * asked for each, so a {@link CompiledStatement} resolves the parameters of
+ * sources of the same shape only once.
+ * 
+ * @author cdelashmutt
+ */
+public interface ShapedSqlParameterSource
+	extends SqlParameterSource
+{
+	/**
+	 * Returns the shape of this source. Sources with equal shapes must provide
+	 * exactly the same parameters, for as long as they are bound.
+	 * 
+	 * @return The shape, or null if it is not known
+	 */
+	public Object getShape();
+}
@@ -18,19 +18,59 @@
  */
 package com.gopivotal.spring.sqlfirecache;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+
+import com.gopivotal.spring.sqlfirecache.compression.DictionaryCompressor;
+
 /**
  * A String cache that simply stores and retrieves strings.
+ * 
+ * Small strings that repeat the same content, like JSON documents with the
+ * same keys, can be compressed with a dictionary trained from sample values.
  *
  * @author cdelashmutt
  */
 public class StringCache
 	extends AbstractColumnDefinedSQLFireCache
 {
-	
-	final List<ColumnDefinition> dataColumns = Arrays.asList(new ColumnDefinition("DATA", SQLFType.LONGVARCHAR));
+	private Logger log = LoggerFactory.getLogger(StringCache.class);
+
+	final ColumnDefinition dataColumn = new ColumnDefinition("DATA", SQLFType.LONGVARCHAR);
+
+	List<ColumnDefinition> dataColumns = Arrays.asList(dataColumn);
+
+	final ColumnDefinition dictionaryIdColumn = new ColumnDefinition("DICT_ID", SQLFType.INTEGER);
+
+	ColumnDefinition compressedColumn;
+
+	private int dictionarySampleCount = 64;
+
+	private int dictionarySize = 16 * 1024;
+
+	private final DictionaryCompressor compressor = new DictionaryCompressor();
+
+	private DictionaryTable dictionaryTable;
+
+	private volatile Integer dictionaryId;
+
+	private volatile boolean dictionaryLoaded;
+
+	private final List<byte[]> samples = new ArrayList<byte[]>();
+
 	/* (non-Javadoc)
 	 * @see com.gopivotal.spring.sqlfirecache.AbstractColumnDefinedSQLFireCache#getDataColumns()
 	 */
@@ -39,5 +79,295 @@ public class StringCache
 	{
 		return dataColumns;
 	}
-	
+
+	/**
+	 * @return the largest compressed size in bytes stored, or 0
+	 */
+	public int getDictionaryCompressedLength()
+	{
+		return compressedColumn == null ? 0 : compressedColumn.getLength();
+	}
+
+	/**
+	 * Compresses values with a dictionary trained from sampled values, adding
+	 * a DICT_ID column and a COMPRESSED_DATA VARCHAR FOR BIT DATA column of
+	 * the given length. Dictionaries are stored in a table named after the
+	 * cache table with a _DICTS suffix. Until the first dictionary is trained,
+	 * and for values that do not compress to the given length, values are
+	 * stored uncompressed in the DATA column. Caches sharing a table must use
+	 * the same length, and an existing table needs the extra columns added
+	 * before this is enabled.
+	 * 
+	 * @param compressedLength
+	 *            the largest compressed size in bytes to store, or 0, the
+	 *            default, to store every value uncompressed
+	 */
+	public void setDictionaryCompressedLength(int compressedLength)
+	{
+		if (compressedLength > 0)
+		{
+			compressedColumn = new ColumnDefinition("COMPRESSED_DATA",
+					SQLFType.VARBINARY, compressedLength);
+			dataColumns = Arrays.asList(dataColumn, dictionaryIdColumn,
+					compressedColumn);
+		}
+		else
+		{
+			compressedColumn = null;
+			dataColumns = Arrays.asList(dataColumn);
+		}
+	}
+
+	/**
+	 * @return the number of values sampled to train a dictionary
+	 */
+	public int getDictionarySampleCount()
+	{
+		return dictionarySampleCount;
+	}
+
+	/**
+	 * @param dictionarySampleCount
+	 *            the number of values sampled to train a dictionary, 64 by
+	 *            default
+	 */
+	public void setDictionarySampleCount(int dictionarySampleCount)
+	{
+		this.dictionarySampleCount = dictionarySampleCount;
+	}
+
+	/**
+	 * @return the largest dictionary size in bytes
+	 */
+	public int getDictionarySize()
+	{
+		return dictionarySize;
+	}
+
+	/**
+	 * @param dictionarySize
+	 *            the largest dictionary size in bytes, 16 KB by default.
+	 *            Deflate uses no more than 32 KB.
+	 */
+	public void setDictionarySize(int dictionarySize)
+	{
+		this.dictionarySize = dictionarySize;
+	}
+
+	/**
+	 * @return the id of the dictionary new values are compressed with, or
+	 *         null
+	 */
+	public Integer getDictionaryId()
+	{
+		return dictionaryId;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.AbstractSQLFireCache#afterPropertiesSet()
+	 */
+	@Override
+	public void afterPropertiesSet()
+		throws Exception
+	{
+		super.afterPropertiesSet();
+		dictionaryTable = new DictionaryTable(getJdbcOperations(),
+				getDialect(), getSchemaName(), getTableName() + "_DICTS");
+	}
+
+	/**
+	 * Trains a new dictionary from values currently stored in this cache, and
+	 * compresses new values with it. Values compressed with earlier
+	 * dictionaries stay readable.
+	 * 
+	 * @return the id of the new dictionary, or null if the cache is empty
+	 */
+	public Integer trainDictionary()
+	{
+		if (compressedColumn == null)
+			throw new IllegalStateException("Dictionary compression is not enabled");
+		ensureTableInitialized();
+		final List<byte[]> stored = new ArrayList<byte[]>();
+		String sql = "SELECT " + dataColumn.getName() + ", "
+				+ dictionaryIdColumn.getName() + ", "
+				+ compressedColumn.getName() + " FROM " + getFQTableName();
+		RowCallbackHandler sampler = new RowCallbackHandler()
+		{
+			@Override
+			public void processRow(ResultSet rs)
+				throws SQLException
+			{
+				if (stored.size() < dictionarySampleCount)
+					stored.add(toBytes((String) rowMapper.mapRow(rs, 0)));
+			}
+		};
+		if (isMultiplexed())
+			getJdbcOperations().query(
+					sql + " WHERE " + getCacheNameColumn().getName() + "=?",
+					new Object[] { getName() }, sampler);
+		else
+			getJdbcOperations().query(sql, sampler);
+		if (stored.isEmpty())
+			return null;
+		return useDictionary(DictionaryCompressor.train(stored, dictionarySize));
+	}
+
+	private Integer useDictionary(byte[] dictionary)
+	{
+		dictionaryId = dictionaryTable.add(dictionary);
+		log.info("Compressing new values of cache " + getName()
+				+ " with dictionary " + dictionaryId);
+		dictionaryLoaded = true;
+		return dictionaryId;
+	}
+
+	/**
+	 * Returns the id of the dictionary to compress a value with, sampling the
+	 * value and training the first dictionary once enough are sampled.
+	 */
+	private Integer getDictionaryIdFor(byte[] value)
+	{
+		if (!dictionaryLoaded)
+		{
+			synchronized (samples)
+			{
+				if (!dictionaryLoaded)
+				{
+					if (samples.isEmpty())
+					{
+						// Another member may have trained one already
+						dictionaryId = dictionaryTable.getLatestId();
+						if (dictionaryId != null)
+						{
+							dictionaryLoaded = true;
+							return dictionaryId;
+						}
+					}
+					samples.add(value);
+					if (samples.size() < dictionarySampleCount)
+						return null;
+					useDictionary(DictionaryCompressor.train(samples,
+							dictionarySize));
+					samples.clear();
+				}
+			}
+		}
+		return dictionaryId;
+	}
+
+	private static byte[] toBytes(String value)
+	{
+		try
+		{
+			return value.getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A value compressed once by {@link #put}, however many statements bind
+	 * it.
+	 */
+	private static final class Compressed
+	{
+		final Integer dictionaryId;
+
+		final byte[] data;
+
+		Compressed(Integer dictionaryId, byte[] data)
+		{
+			this.dictionaryId = dictionaryId;
+			this.data = data;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.AbstractSQLFireCache#put(java.lang.
+	 * Object, java.lang.Object)
+	 */
+	@Override
+	public void put(Object key, Object value)
+	{
+		if (compressedColumn != null && value instanceof String)
+		{
+			byte[] bytes = toBytes((String) value);
+			Integer id = getDictionaryIdFor(bytes);
+			if (id != null)
+			{
+				byte[] compressed = compressor.compress(bytes,
+						dictionaryTable.get(id));
+				if (compressed.length <= compressedColumn.getLength())
+					value = new Compressed(id, compressed);
+			}
+		}
+		super.put(key, value);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.AbstractColumnDefinedSQLFireCache#getValueParameterSource(java.lang.Object)
+	 */
+	@Override
+	protected SqlParameterSource getValueParameterSource(Object value)
+	{
+		if (compressedColumn == null)
+			return super.getValueParameterSource(value);
+		MapSqlParameterSource source = new MapSqlParameterSource();
+		source.registerSqlType(dataColumn.getName(), Types.LONGVARCHAR);
+		source.registerSqlType(dictionaryIdColumn.getName(), Types.INTEGER);
+		source.registerSqlType(compressedColumn.getName(), Types.VARBINARY);
+		if (value instanceof Compressed)
+		{
+			source.addValue(dataColumn.getName(), null);
+			source.addValue(dictionaryIdColumn.getName(),
+					((Compressed) value).dictionaryId);
+			source.addValue(compressedColumn.getName(),
+					((Compressed) value).data);
+		}
+		else
+		{
+			source.addValue(dataColumn.getName(), value);
+			source.addValue(dictionaryIdColumn.getName(), null);
+			source.addValue(compressedColumn.getName(), null);
+		}
+		return source;
+	}
+
+	final RowMapper<Object> rowMapper = new RowMapper<Object>()
+	{
+		@Override
+		public Object mapRow(ResultSet rs, int rowNum)
+			throws SQLException
+		{
+			int id = rs.getInt(dictionaryIdColumn.getName());
+			if (rs.wasNull())
+				return rs.getString(dataColumn.getName());
+			byte[] compressed = rs.getBytes(compressedColumn.getName());
+			try
+			{
+				return new String(compressor.decompress(compressed,
+						dictionaryTable.get(id)), "UTF-8");
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException("Error decompressing string", e);
+			}
+		}
+	};
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.AbstractColumnDefinedSQLFireCache#getRowMapper()
+	 */
+	@Override
+	protected RowMapper<?> getRowMapper()
+	{
+		if (compressedColumn == null)
+			return super.getRowMapper();
+		return rowMapper;
+	}
 }
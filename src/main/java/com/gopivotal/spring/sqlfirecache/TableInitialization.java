@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache;
+
+/**
+ * Controls when a cache checks for, and creates, its backing table.
+ *
+ * @author cdelashmutt
+ */
+public enum TableInitialization
+{
+	/**
+	 * The cache checks the catalog on its own when its properties are set.
+	 */
+	EAGER,
+
+	/**
+	 * The cache checks the catalog on its first use. Concurrent first callers
+	 * wait for a single check to finish.
+	 */
+	LAZY,
+
+	/**
+	 * The table is checked and created by the {@link SQLFireCacheManager}
+	 * together with the tables of all other caches.
+	 */
+	MANAGED;
+}
@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+
+import com.gopivotal.spring.sqlfirecache.dialect.Dialect;
+
+/**
+ * Checks the catalog for a schema and table, and creates them if they are
+ * missing.
+ * 
+ * @author cdelashmutt
+ */
+public class TableInitializingCallback
+	implements ConnectionCallback<Object>
+{
+	private Logger log = LoggerFactory
+			.getLogger(TableInitializingCallback.class);
+
+	private final Dialect dialect;
+
+	private final String schemaName;
+
+	private final String tableName;
+
+	private final String createSQL;
+
+	/**
+	 * Creates a callback for the given table.
+	 * 
+	 * @param dialect
+	 *            The dialect used to read the catalog
+	 * @param schemaName
+	 *            The schema of the table
+	 * @param tableName
+	 *            The unqualified table name
+	 * @param createSQL
+	 *            The statement creating the table
+	 */
+	public TableInitializingCallback(Dialect dialect, String schemaName,
+			String tableName, String createSQL)
+	{
+		this.dialect = dialect;
+		this.schemaName = schemaName;
+		this.tableName = tableName;
+		this.createSQL = createSQL;
+	}
+
+	private void createTable(Statement stm)
+		throws SQLException
+	{
+		log.debug("Creating table: " + schemaName + "." + tableName);
+		log.trace(createSQL);
+		stm.execute(createSQL);
+	}
+
+	@Override
+	public Object doInConnection(Connection con)
+		throws SQLException, DataAccessException
+	{
+		Statement stm = null;
+		try
+		{
+			stm = con.createStatement();
+			ResultSet schemas = stm.executeQuery(dialect
+					.buildSchemaExistsSQL(schemaName));
+			boolean foundSchema = false;
+			try
+			{
+				while (schemas.next())
+				{
+					// We only get here if we found the schema.
+					log.trace("Found schema: " + schemaName);
+					foundSchema = true;
+					break;
+				}
+			}
+			finally
+			{
+				if (schemas != null)
+					schemas.close();
+			}
+			if (!foundSchema)
+			{
+				log.debug("Creating schema: " + schemaName);
+				stm.execute("CREATE SCHEMA " + schemaName);
+				createTable(stm);
+			}
+			else
+			{
+				ResultSet tables = stm.executeQuery(dialect
+						.buildTableExistsSQL(schemaName,
+								tableName.toUpperCase()));
+				boolean foundTable = false;
+				try
+				{
+					while (tables.next())
+					{
+						// Only get here if we have the cache table
+						log.trace("Found cache table: " + tableName);
+						foundTable = true;
+						break;
+					}
+				}
+				finally
+				{
+					if (tables != null)
+						tables.close();
+				}
+				if (!foundTable)
+				{
+					createTable(stm);
+				}
+			}
+		}
+		finally
+		{
+			if (stm != null)
+				stm.close();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import com.gopivotal.spring.sqlfirecache.dialect.Dialect;
+
+/**
+ * A small metadata table assigning stable integer ids to class names, so every
+ * cache sharing the table writes the same id for the same externalized class.
+ * Ids are assigned in ascending order. When two members assign an id at the
+ * same time, the unique constraints make one insert fail and the loser reads
+ * back the winner's id.
+ * 
+ * @author cdelashmutt
+ */
+public class TypeIdTable
+{
+	private Logger log = LoggerFactory.getLogger(TypeIdTable.class);
+
+	private static final int MAX_ATTEMPTS = 10;
+
+	private final JdbcOperations template;
+
+	private final Dialect dialect;
+
+	private final String schemaName;
+
+	private final String tableName;
+
+	/**
+	 * Creates an accessor for a type id table.
+	 * 
+	 * @param template
+	 *            The template to access the table through
+	 * @param dialect
+	 *            The dialect used to read the catalog
+	 * @param schemaName
+	 *            The schema of the table
+	 * @param tableName
+	 *            The unqualified table name
+	 */
+	public TypeIdTable(JdbcOperations template, Dialect dialect,
+			String schemaName, String tableName)
+	{
+		this.template = template;
+		this.dialect = dialect;
+		this.schemaName = schemaName;
+		this.tableName = tableName;
+	}
+
+	private String getFQTableName()
+	{
+		return schemaName + "." + tableName;
+	}
+
+	/**
+	 * Creates the table if it is missing, then returns the ids of the given
+	 * classes, assigning new ids to any class that has none yet.
+	 * 
+	 * @param classNames
+	 *            The names of the classes to look up
+	 * @return The ids by class name
+	 */
+	public Map<String, Integer> getIds(Collection<String> classNames)
+	{
+		template.execute(new TableInitializingCallback(dialect, schemaName,
+				tableName, "CREATE TABLE " + getFQTableName()
+						+ " (TYPE_ID INTEGER NOT NULL, CLASS_NAME VARCHAR(512) NOT NULL,"
+						+ " PRIMARY KEY(TYPE_ID), UNIQUE(CLASS_NAME))"));
+
+		Map<String, Integer> ids = readIds();
+		for (String className : classNames)
+		{
+			int attempts = 0;
+			while (!ids.containsKey(className))
+			{
+				int next = 0;
+				for (Integer id : ids.values())
+				{
+					next = Math.max(next, id + 1);
+				}
+				try
+				{
+					template.update("INSERT INTO " + getFQTableName()
+							+ " (TYPE_ID, CLASS_NAME) VALUES (?, ?)", next,
+							className);
+					log.debug("Assigned type id " + next + " to " + className);
+					ids.put(className, next);
+				}
+				catch (DataIntegrityViolationException e)
+				{
+					if (++attempts >= MAX_ATTEMPTS)
+						throw e;
+					// Someone else assigned the id or the class first
+					ids = readIds();
+				}
+			}
+		}
+		return ids;
+	}
+
+	private Map<String, Integer> readIds()
+	{
+		final Map<String, Integer> ids = new HashMap<String, Integer>();
+		template.query("SELECT TYPE_ID, CLASS_NAME FROM " + getFQTableName(),
+				new RowCallbackHandler()
+				{
+					@Override
+					public void processRow(ResultSet rs)
+						throws SQLException
+					{
+						ids.put(rs.getString(2), rs.getInt(1));
+					}
+				});
+		return ids;
+	}
+}
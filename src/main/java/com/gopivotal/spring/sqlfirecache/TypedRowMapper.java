@@ -0,0 +1,356 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache;
+
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.BeanUtils;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.NumberUtils;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * Maps rows whose columns are the given data columns, in order, to a target
+ * type. Everything is worked out when the mapper is created, so each row is
+ * read by column index with the getter matching the column type, and passed
+ * to setters or a constructor found once.
+ * 
+ * The target type can be:
+ * <ul>
+ * <li>Object[], holding the column values in order</li>
+ * <li>Map, holding the column values by column name, in order</li>
+ * <li>a class with a constructor taking one argument per column, in order</li>
+ * <li>a bean with a no argument constructor, whose properties are matched to
+ * columns by name, ignoring case and underscores</li>
+ * </ul>
+ * 
+ * BLOB and CLOB columns are read as byte[] and String, so values stay usable
+ * once the result set is closed.
+ * 
+ * @author cdelashmutt
+ */
+class TypedRowMapper
+	implements RowMapper<Object>
+{
+	private enum Shape
+	{
+		ARRAY, MAP, CONSTRUCTOR, BEAN
+	}
+
+	private final List<ColumnDefinition> columns;
+
+	private final Class<?> targetType;
+
+	private final SQLFType[] types;
+
+	private final String[] names;
+
+	private final Shape shape;
+
+	private Constructor<?> constructor;
+
+	private Method[] setters;
+
+	private Class<?>[] parameterTypes;
+
+	/**
+	 * Creates a mapper for rows of the given columns.
+	 * 
+	 * @param targetType
+	 *            The type to map rows to
+	 * @param columns
+	 *            The columns of the rows, in order
+	 * @throws IllegalArgumentException
+	 *             If the type is not an array, a Map, and has no suitable
+	 *             constructor
+	 */
+	TypedRowMapper(Class<?> targetType, List<ColumnDefinition> columns)
+	{
+		this.columns = columns;
+		this.targetType = targetType;
+		types = new SQLFType[columns.size()];
+		names = new String[columns.size()];
+		for (int i = 0; i < types.length; i++)
+		{
+			types[i] = columns.get(i).getType();
+			names[i] = columns.get(i).getName();
+		}
+		if (targetType == Object[].class)
+		{
+			shape = Shape.ARRAY;
+		}
+		else if (targetType.isAssignableFrom(LinkedHashMap.class))
+		{
+			shape = Shape.MAP;
+		}
+		else if ((constructor = findConstructor()) != null)
+		{
+			shape = Shape.CONSTRUCTOR;
+			parameterTypes = constructor.getParameterTypes();
+		}
+		else
+		{
+			shape = Shape.BEAN;
+			constructor = ClassUtils.getConstructorIfAvailable(targetType);
+			if (constructor == null)
+				throw new IllegalArgumentException(targetType
+						+ " has neither a no argument constructor nor one taking "
+						+ types.length + " column values");
+			findSetters();
+		}
+		if (constructor != null)
+			ReflectionUtils.makeAccessible(constructor);
+	}
+
+	/**
+	 * @return The columns this mapper reads
+	 */
+	List<ColumnDefinition> getColumns()
+	{
+		return columns;
+	}
+
+	/**
+	 * @return The type rows are mapped to
+	 */
+	Class<?> getTargetType()
+	{
+		return targetType;
+	}
+
+	private Constructor<?> findConstructor()
+	{
+		if (types.length == 0)
+			return null;
+		for (Constructor<?> candidate : targetType.getDeclaredConstructors())
+		{
+			Class<?>[] parameters = candidate.getParameterTypes();
+			if (parameters.length != types.length)
+				continue;
+			boolean matches = true;
+			for (int i = 0; matches && i < parameters.length; i++)
+			{
+				matches = isConvertible(types[i], parameters[i]);
+			}
+			if (matches)
+				return candidate;
+		}
+		return null;
+	}
+
+	private void findSetters()
+	{
+		Map<String, Method> writeMethods = new HashMap<String, Method>();
+		for (PropertyDescriptor property : BeanUtils
+				.getPropertyDescriptors(targetType))
+		{
+			if (property.getWriteMethod() != null)
+				writeMethods.put(normalize(property.getName()),
+						property.getWriteMethod());
+		}
+		setters = new Method[types.length];
+		parameterTypes = new Class<?>[types.length];
+		for (int i = 0; i < setters.length; i++)
+		{
+			Method setter = writeMethods.get(normalize(names[i]));
+			if (setter != null)
+			{
+				ReflectionUtils.makeAccessible(setter);
+				setters[i] = setter;
+				parameterTypes[i] = setter.getParameterTypes()[0];
+			}
+		}
+	}
+
+	private static String normalize(String name)
+	{
+		return name.replace("_", "").toLowerCase();
+	}
+
+	private static Class<?> getReadType(SQLFType type)
+	{
+		switch (type)
+		{
+			case BLOB:
+				return byte[].class;
+			case CLOB:
+				return String.class;
+			default:
+				return type.getJavaType();
+		}
+	}
+
+	private static boolean isConvertible(SQLFType type, Class<?> parameter)
+	{
+		Class<?> readType = getReadType(type);
+		return ClassUtils.isAssignable(parameter, readType)
+				|| (Number.class.isAssignableFrom(readType) && Number.class
+						.isAssignableFrom(ClassUtils
+								.resolvePrimitiveIfNecessary(parameter)));
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.jdbc.core.RowMapper#mapRow(java.sql.ResultSet, int)
+	 */
+	@Override
+	public Object mapRow(ResultSet rs, int rowNum)
+		throws SQLException
+	{
+		switch (shape)
+		{
+			case ARRAY:
+				Object[] values = new Object[types.length];
+				for (int i = 0; i < values.length; i++)
+				{
+					values[i] = read(rs, i);
+				}
+				return values;
+			case MAP:
+				Map<String, Object> map = new LinkedHashMap<String, Object>();
+				for (int i = 0; i < types.length; i++)
+				{
+					map.put(names[i], read(rs, i));
+				}
+				return map;
+			case CONSTRUCTOR:
+				Object[] arguments = new Object[types.length];
+				for (int i = 0; i < arguments.length; i++)
+				{
+					arguments[i] = convert(read(rs, i), parameterTypes[i]);
+				}
+				return instantiate(arguments);
+			default:
+				Object bean = instantiate();
+				for (int i = 0; i < setters.length; i++)
+				{
+					if (setters[i] == null)
+						continue;
+					Object value = convert(read(rs, i), parameterTypes[i]);
+					// Primitive properties keep their default for NULL
+					if (value != null || !parameterTypes[i].isPrimitive())
+						invoke(setters[i], bean, value);
+				}
+				return bean;
+		}
+	}
+
+	private Object read(ResultSet rs, int index)
+		throws SQLException
+	{
+		int column = index + 1;
+		Object value;
+		switch (types[index])
+		{
+			case BIGINT:
+				value = rs.getLong(column);
+				break;
+			case INTEGER:
+				value = rs.getInt(column);
+				break;
+			case SMALLINT:
+				value = rs.getShort(column);
+				break;
+			case DOUBLE:
+			case FLOAT:
+				value = rs.getDouble(column);
+				break;
+			case REAL:
+				value = rs.getFloat(column);
+				break;
+			case DECIMAL:
+			case NUMERIC:
+				return rs.getBigDecimal(column);
+			case CHAR:
+			case VARCHAR:
+			case LONGVARCHAR:
+			case CLOB:
+				return rs.getString(column);
+			case BINARY:
+			case VARBINARY:
+			case LONGVARBINARY:
+			case BLOB:
+				return rs.getBytes(column);
+			case DATE:
+				return rs.getDate(column);
+			case TIME:
+				return rs.getTime(column);
+			case TIMESTAMP:
+				return rs.getTimestamp(column);
+			default:
+				return rs.getObject(column);
+		}
+		// Primitive getters return 0 for NULL
+		return rs.wasNull() ? null : value;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object convert(Object value, Class<?> type)
+	{
+		Class<?> target = ClassUtils.resolvePrimitiveIfNecessary(type);
+		if (value instanceof Number && !target.isInstance(value)
+				&& Number.class.isAssignableFrom(target))
+			return NumberUtils.convertNumberToTargetClass((Number) value,
+					(Class<Number>) target);
+		return value;
+	}
+
+	private Object instantiate(Object... arguments)
+	{
+		try
+		{
+			return constructor.newInstance(arguments);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw new IllegalStateException("Error creating " + targetType,
+					e.getCause());
+		}
+		catch (Exception e)
+		{
+			throw new IllegalStateException("Error creating " + targetType, e);
+		}
+	}
+
+	private void invoke(Method setter, Object bean, Object value)
+	{
+		try
+		{
+			setter.invoke(bean, value);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw new IllegalStateException("Error calling " + setter,
+					e.getCause());
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+}
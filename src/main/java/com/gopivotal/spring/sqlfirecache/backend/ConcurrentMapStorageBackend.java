@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.backend;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps entries in an in-process concurrent map. Useful for tests, and for
+ * measuring serialization and cache logic costs without any network or
+ * database costs. Values are copied on the way in and out, so callers see the
+ * same isolation they would get from a remote store.
+ * 
+ * @author cdelashmutt
+ */
+public class ConcurrentMapStorageBackend
+	implements StorageBackend
+{
+	private final ConcurrentMap<Object, byte[]> store = new ConcurrentHashMap<Object, byte[]>();
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.backend.StorageBackend#get(java.lang.Object)
+	 */
+	@Override
+	public byte[] get(Object key)
+	{
+		return copy(store.get(key));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.backend.StorageBackend#put(java.lang.Object, byte[])
+	 */
+	@Override
+	public void put(Object key, byte[] value)
+	{
+		store.put(key, copy(value));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.backend.StorageBackend#delete(java.lang.Object)
+	 */
+	@Override
+	public void delete(Object key)
+	{
+		store.remove(key);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.backend.StorageBackend#getAll(java.util.Collection)
+	 */
+	@Override
+	public Map<Object, byte[]> getAll(Collection<?> keys)
+	{
+		Map<Object, byte[]> found = new HashMap<Object, byte[]>();
+		for (Object key : keys)
+		{
+			byte[] value = store.get(key);
+			if (value != null)
+				found.put(key, copy(value));
+		}
+		return found;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.backend.StorageBackend#putAll(java.util.Map)
+	 */
+	@Override
+	public void putAll(Map<?, byte[]> entries)
+	{
+		for (Map.Entry<?, byte[]> entry : entries.entrySet())
+		{
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.backend.StorageBackend#scan(com.gopivotal.spring.sqlfirecache.backend.EntryCallback)
+	 */
+	@Override
+	public void scan(EntryCallback callback)
+	{
+		for (Map.Entry<Object, byte[]> entry : store.entrySet())
+		{
+			callback.processEntry(entry.getKey(), copy(entry.getValue()));
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.backend.StorageBackend#clear()
+	 */
+	@Override
+	public void clear()
+	{
+		store.clear();
+	}
+
+	/**
+	 * @return The number of stored entries
+	 */
+	public int size()
+	{
+		return store.size();
+	}
+
+	private static byte[] copy(byte[] value)
+	{
+		return value == null ? null : value.clone();
+	}
+}
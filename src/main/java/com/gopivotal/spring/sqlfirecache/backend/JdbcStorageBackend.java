@@ -0,0 +1,391 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.backend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.util.FileCopyUtils;
+
+import com.gopivotal.spring.sqlfirecache.ColumnDefinition;
+import com.gopivotal.spring.sqlfirecache.SQLFType;
+import com.gopivotal.spring.sqlfirecache.TableInitializingCallback;
+import com.gopivotal.spring.sqlfirecache.dialect.Dialect;
+import com.gopivotal.spring.sqlfirecache.dialect.SQLFireDialect;
+
+/**
+ * Stores encoded values in a table with a key column, INTEGER unless another
+ * is set, and a BLOB value column, the same layout
+ * {@link com.gopivotal.spring.sqlfirecache.SerializedObjectCache} uses. The
+ * table is checked for, and created if needed, at start up.
+ * 
+ * Only a {@link StorageBackendCache} stores through this backend.
+ * SerializedObjectCache writes its own table, as it also stores values inline,
+ * in chunks and deduplicated, which a backend holding one BLOB per key does
+ * not.
+ * 
+ * @author cdelashmutt
+ */
+public class JdbcStorageBackend
+	implements StorageBackend, InitializingBean
+{
+	private DataSource dataSource;
+
+	private String schemaName = "SPRINGCACHE";
+
+	private String tableName;
+
+	private Dialect dialect = new SQLFireDialect();
+
+	private ColumnDefinition idColumn = new ColumnDefinition("k_ID",
+			SQLFType.INTEGER);
+
+	private final ColumnDefinition dataColumn = new ColumnDefinition(
+			"OBJECT", SQLFType.BLOB);
+
+	private JdbcTemplate template;
+
+	private NamedParameterJdbcTemplate namedTemplate;
+
+	private String selectSQL;
+
+	private String selectAllSQL;
+
+	private String scanSQL;
+
+	private String insertSQL;
+
+	private String updateSQL;
+
+	private String upsertSQL;
+
+	private String deleteSQL;
+
+	private String clearSQL;
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	@Override
+	public void afterPropertiesSet()
+		throws Exception
+	{
+		if (tableName == null)
+			throw new IllegalStateException("A tableName is required");
+		template = new JdbcTemplate(dataSource);
+		namedTemplate = new NamedParameterJdbcTemplate(template);
+
+		String table = getFQTableName();
+		String id = idColumn.getName();
+		String data = dataColumn.getName();
+		selectSQL = "SELECT " + data + " FROM " + table + " WHERE " + id
+				+ "=:" + id;
+		selectAllSQL = "SELECT " + id + ", " + data + " FROM " + table
+				+ " WHERE " + id + " IN (:" + id + ")";
+		scanSQL = "SELECT " + id + ", " + data + " FROM " + table;
+		insertSQL = "INSERT INTO " + table + " (" + id + ", " + data
+				+ ") VALUES (:" + id + ", :" + data + ")";
+		updateSQL = "UPDATE " + table + " SET " + data + "=:" + data
+				+ " WHERE " + id + "=:" + id;
+		upsertSQL = dialect.buildUpsertSQL(table, Arrays.asList(id),
+				Arrays.asList(id, data));
+		deleteSQL = "DELETE FROM " + table + " WHERE " + id + "=:" + id;
+		clearSQL = "DELETE FROM " + table;
+
+		template.execute(new TableInitializingCallback(dialect, schemaName,
+				tableName, getCreateSQL()));
+	}
+
+	/**
+	 * @return The statement used to create the backing table
+	 */
+	protected String getCreateSQL()
+	{
+		return "CREATE TABLE " + getFQTableName() + " (" + idColumn.getName()
+				+ " " + idColumn.buildColumnTypeDefinitionSQL(dialect) + ", "
+				+ dataColumn.getName() + " "
+				+ dataColumn.buildColumnTypeDefinitionSQL(dialect)
+				+ ", PRIMARY KEY(" + idColumn.getName() + "))"
+				+ dialect.getPartitionClause();
+	}
+
+	/**
+	 * @return The schema qualified name of the backing table
+	 */
+	public String getFQTableName()
+	{
+		return schemaName + "." + tableName;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.backend.StorageBackend#get(java.lang.Object)
+	 */
+	@Override
+	public byte[] get(Object key)
+	{
+		final List<byte[]> found = new ArrayList<byte[]>(1);
+		namedTemplate.query(selectSQL, getIdParameterSource(key),
+				new RowCallbackHandler()
+				{
+					@Override
+					public void processRow(ResultSet rs)
+						throws SQLException
+					{
+						found.add(readData(rs));
+					}
+				});
+		return found.isEmpty() ? null : found.get(0);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.backend.StorageBackend#put(java.lang.Object, byte[])
+	 */
+	@Override
+	public void put(Object key, byte[] value)
+	{
+		SqlParameterSource params = getEntryParameterSource(key, value);
+		if (upsertSQL != null)
+		{
+			namedTemplate.update(upsertSQL, params);
+		}
+		else if (namedTemplate.update(updateSQL, params) == 0)
+		{
+			namedTemplate.update(insertSQL, params);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.backend.StorageBackend#delete(java.lang.Object)
+	 */
+	@Override
+	public void delete(Object key)
+	{
+		namedTemplate.update(deleteSQL, getIdParameterSource(key));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.backend.StorageBackend#getAll(java.util.Collection)
+	 */
+	@Override
+	public Map<Object, byte[]> getAll(Collection<?> keys)
+	{
+		final Map<Object, byte[]> found = new HashMap<Object, byte[]>();
+		if (keys.isEmpty())
+			return found;
+		namedTemplate.query(selectAllSQL, getIdParameterSource(keys),
+				new RowCallbackHandler()
+		{
+			@Override
+			public void processRow(ResultSet rs)
+				throws SQLException
+			{
+				found.put(rs.getObject(idColumn.getName()), readData(rs));
+			}
+		});
+		return found;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.backend.StorageBackend#putAll(java.util.Map)
+	 */
+	@Override
+	public void putAll(Map<?, byte[]> entries)
+	{
+		if (entries.isEmpty())
+			return;
+		List<SqlParameterSource> batch = new ArrayList<SqlParameterSource>(
+				entries.size());
+		for (Map.Entry<?, byte[]> entry : entries.entrySet())
+		{
+			batch.add(getEntryParameterSource(entry.getKey(), entry.getValue()));
+		}
+		SqlParameterSource[] params = batch
+				.toArray(new SqlParameterSource[batch.size()]);
+		if (upsertSQL != null)
+		{
+			namedTemplate.batchUpdate(upsertSQL, params);
+			return;
+		}
+
+		// Insert whatever the update did not find
+		int[] updated = namedTemplate.batchUpdate(updateSQL, params);
+		List<SqlParameterSource> missing = new ArrayList<SqlParameterSource>();
+		for (int i = 0; i < updated.length; i++)
+		{
+			if (updated[i] == 0)
+				missing.add(params[i]);
+		}
+		if (!missing.isEmpty())
+		{
+			namedTemplate.batchUpdate(insertSQL,
+					missing.toArray(new SqlParameterSource[missing.size()]));
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.backend.StorageBackend#scan(com.gopivotal.spring.sqlfirecache.backend.EntryCallback)
+	 */
+	@Override
+	public void scan(final EntryCallback callback)
+	{
+		template.query(scanSQL, new RowCallbackHandler()
+		{
+			@Override
+			public void processRow(ResultSet rs)
+				throws SQLException
+			{
+				callback.processEntry(rs.getObject(idColumn.getName()),
+						readData(rs));
+			}
+		});
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.backend.StorageBackend#clear()
+	 */
+	@Override
+	public void clear()
+	{
+		template.update(clearSQL);
+	}
+
+	private MapSqlParameterSource getIdParameterSource(Object key)
+	{
+		MapSqlParameterSource source = new MapSqlParameterSource(
+				idColumn.getName(), key);
+		source.registerSqlType(idColumn.getName(), idColumn.getType()
+				.getJdbcType());
+		return source;
+	}
+
+	private SqlParameterSource getEntryParameterSource(Object key, byte[] value)
+	{
+		return getIdParameterSource(key).addValue(dataColumn.getName(),
+				dialect.createBlobValue(value));
+	}
+
+	private byte[] readData(ResultSet rs)
+		throws SQLException
+	{
+		InputStream data = dialect.getBlobStream(rs, dataColumn.getName());
+		if (data == null)
+			return null;
+		try
+		{
+			return FileCopyUtils.copyToByteArray(data);
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException("Error reading stored value", e);
+		}
+	}
+
+	/**
+	 * @param dataSource
+	 *            the dataSource to set
+	 */
+	public void setDataSource(DataSource dataSource)
+	{
+		this.dataSource = dataSource;
+	}
+
+	/**
+	 * @return the schemaName
+	 */
+	public String getSchemaName()
+	{
+		return schemaName;
+	}
+
+	/**
+	 * @param schemaName
+	 *            the schemaName to set
+	 */
+	public void setSchemaName(String schemaName)
+	{
+		this.schemaName = schemaName;
+	}
+
+	/**
+	 * @return the tableName
+	 */
+	public String getTableName()
+	{
+		return tableName;
+	}
+
+	/**
+	 * @param tableName
+	 *            the tableName to set
+	 */
+	public void setTableName(String tableName)
+	{
+		this.tableName = tableName;
+	}
+
+	/**
+	 * @return the idColumn
+	 */
+	public ColumnDefinition getIdColumn()
+	{
+		return idColumn;
+	}
+
+	/**
+	 * @param idColumn
+	 *            the key column, an INTEGER named k_ID by default
+	 */
+	public void setIdColumn(ColumnDefinition idColumn)
+	{
+		this.idColumn = idColumn;
+	}
+
+	/**
+	 * @return the dialect
+	 */
+	public Dialect getDialect()
+	{
+		return dialect;
+	}
+
+	/**
+	 * @param dialect
+	 *            the dialect to set
+	 */
+	public void setDialect(Dialect dialect)
+	{
+		this.dialect = dialect;
+	}
+}
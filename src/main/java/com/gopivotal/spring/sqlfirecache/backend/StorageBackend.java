@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.backend;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Stores encoded cache values by key, independently of the Spring cache
+ * semantics layered on top. Keys are values the backend can store directly
+ * (such as Integers for the JDBC backend), and values are already serialized.
+ * 
+ * @author cdelashmutt
+ */
+public interface StorageBackend
+{
+	/**
+	 * @param key
+	 *            The key to look up
+	 * @return The stored value, or null if there is no entry for the key
+	 */
+	public byte[] get(Object key);
+
+	/**
+	 * Stores a value, replacing any existing value for the key.
+	 * 
+	 * @param key
+	 *            The key to store the value under
+	 * @param value
+	 *            The encoded value
+	 */
+	public void put(Object key, byte[] value);
+
+	/**
+	 * @param key
+	 *            The key of the entry to remove
+	 */
+	public void delete(Object key);
+
+	/**
+	 * @param keys
+	 *            The keys to look up
+	 * @return The stored values by key. Keys with no entry are left out.
+	 */
+	public Map<Object, byte[]> getAll(Collection<?> keys);
+
+	/**
+	 * Stores several values, replacing any existing values for their keys.
+	 * 
+	 * @param entries
+	 *            The encoded values by key
+	 */
+	public void putAll(Map<?, byte[]> entries);
+
+	/**
+	 * Passes every stored entry to a callback.
+	 * 
+	 * @param callback
+	 *            The callback to pass the entries to
+	 */
+	public void scan(EntryCallback callback);
+
+	/**
+	 * Removes all entries.
+	 */
+	public void clear();
+}
@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.backend;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cache.Cache;
+import org.springframework.cache.support.SimpleValueWrapper;
+import org.springframework.dao.DataAccessException;
+
+import com.gopivotal.spring.sqlfirecache.ObjectSerializer;
+
+/**
+ * A Spring cache that serializes values and hands them to a
+ * {@link StorageBackend}, keeping cache semantics, serialization and storage
+ * as separate layers.
+ * 
+ * @author cdelashmutt
+ */
+public class StorageBackendCache
+	implements Cache
+{
+	private Logger log = LoggerFactory.getLogger(StorageBackendCache.class);
+
+	private final String name;
+
+	private final StorageBackend backend;
+
+	private ObjectSerializer serializer = new ObjectSerializer();
+
+	/**
+	 * Creates a cache over a backend.
+	 * 
+	 * @param name
+	 *            The name of the cache
+	 * @param backend
+	 *            The backend storing the serialized values
+	 */
+	public StorageBackendCache(String name, StorageBackend backend)
+	{
+		this.name = name;
+		this.backend = backend;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.cache.Cache#getName()
+	 */
+	@Override
+	public String getName()
+	{
+		return name;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.cache.Cache#getNativeCache()
+	 */
+	@Override
+	public Object getNativeCache()
+	{
+		return backend;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.cache.Cache#get(java.lang.Object)
+	 */
+	@Override
+	public ValueWrapper get(Object key)
+	{
+		byte[] data;
+		try
+		{
+			data = backend.get(key);
+		}
+		catch (DataAccessException e)
+		{
+			log.warn("Error reading from the storage backend for cache get", e);
+			return null;
+		}
+		if (data == null)
+			return null;
+		try
+		{
+			return new SimpleValueWrapper(serializer.deserialize(data));
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException("Error de-serializing object", e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.cache.Cache#put(java.lang.Object, java.lang.Object)
+	 */
+	@Override
+	public void put(Object key, Object value)
+	{
+		byte[] data;
+		try
+		{
+			data = serializer.serialize(value);
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException("Error serializing object to cache", e);
+		}
+		try
+		{
+			backend.put(key, data);
+		}
+		catch (DataAccessException e)
+		{
+			log.warn("Error writing to the storage backend for cache put", e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.cache.Cache#evict(java.lang.Object)
+	 */
+	@Override
+	public void evict(Object key)
+	{
+		try
+		{
+			backend.delete(key);
+		}
+		catch (DataAccessException e)
+		{
+			log.warn("Error deleting from the storage backend for cache evict", e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.cache.Cache#clear()
+	 */
+	@Override
+	public void clear()
+	{
+		try
+		{
+			backend.clear();
+		}
+		catch (DataAccessException e)
+		{
+			log.warn("Error clearing the storage backend for cache clear", e);
+		}
+	}
+
+	/**
+	 * @return the serializer
+	 */
+	public ObjectSerializer getSerializer()
+	{
+		return serializer;
+	}
+
+	/**
+	 * @param serializer
+	 *            the serializer to set
+	 */
+	public void setSerializer(ObjectSerializer serializer)
+	{
+		this.serializer = serializer;
+	}
+}
@@ -0,0 +1,319 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Encodes common value types with a small tag byte and no class descriptors.
+ * Handles nulls, boxed primitives, Strings, byte arrays, and ArrayLists,
+ * HashSets and HashMaps of those types. Anything else, including other
+ * collection classes such as a TreeMap or an unmodifiable list, is written by
+ * a fallback codec, which is Java serialization unless configured otherwise,
+ * so values always decode as the class they were written as.
+ * 
+ * @author cdelashmutt
+ */
+public class CompactBinaryCodec
+	implements ValueCodec
+{
+	/**
+	 * The id of this codec
+	 */
+	public static final byte ID = 1;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static final int NULL = 0;
+	static final int TRUE = 1;
+	static final int FALSE = 2;
+	static final int BYTE = 3;
+	static final int SHORT = 4;
+	static final int INT = 5;
+	static final int LONG = 6;
+	static final int FLOAT = 7;
+	static final int DOUBLE = 8;
+	static final int CHAR = 9;
+	static final int STRING = 10;
+	static final int BYTES = 11;
+	static final int LIST = 12;
+	static final int SET = 13;
+	static final int MAP = 14;
+	static final int FALLBACK = 15;
+
+	private ValueCodec fallbackCodec = new JavaSerializationCodec();
+
+	/**
+	 * @return the codec used for values this codec has no tag for
+	 */
+	public ValueCodec getFallbackCodec()
+	{
+		return fallbackCodec;
+	}
+
+	/**
+	 * @param fallbackCodec
+	 *            the codec to use for values this codec has no tag for
+	 */
+	public void setFallbackCodec(ValueCodec fallbackCodec)
+	{
+		this.fallbackCodec = fallbackCodec;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.codec.ValueCodec#getId()
+	 */
+	@Override
+	public byte getId()
+	{
+		return ID;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.codec.ValueCodec#encode(java.lang.Object, java.io.OutputStream)
+	 */
+	@Override
+	public void encode(Object value, OutputStream out)
+		throws IOException
+	{
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeByte(ID);
+		write(data, value);
+		data.flush();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.codec.ValueCodec#decode(java.io.InputStream)
+	 */
+	@Override
+	public Object decode(InputStream in)
+		throws IOException, ClassNotFoundException
+	{
+		DataInputStream data = new DataInputStream(in);
+		if (data.readByte() != ID)
+			throw new IOException("Value was not written by this codec");
+		return read(data);
+	}
+
+	/**
+	 * Writes a tagged value.
+	 * 
+	 * @param out
+	 *            The stream to write to
+	 * @param value
+	 *            The value to write
+	 * @throws IOException
+	 *             If the value could not be written
+	 */
+	protected void write(DataOutputStream out, Object value)
+		throws IOException
+	{
+		if (value == null)
+		{
+			out.writeByte(NULL);
+		}
+		else if (value instanceof String)
+		{
+			out.writeByte(STRING);
+			writeBytes(out, ((String) value).getBytes(UTF8));
+		}
+		else if (value instanceof Integer)
+		{
+			out.writeByte(INT);
+			out.writeInt((Integer) value);
+		}
+		else if (value instanceof Long)
+		{
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		}
+		else if (value instanceof Boolean)
+		{
+			out.writeByte((Boolean) value ? TRUE : FALSE);
+		}
+		else if (value instanceof Double)
+		{
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		}
+		else if (value instanceof Float)
+		{
+			out.writeByte(FLOAT);
+			out.writeFloat((Float) value);
+		}
+		else if (value instanceof Short)
+		{
+			out.writeByte(SHORT);
+			out.writeShort((Short) value);
+		}
+		else if (value instanceof Byte)
+		{
+			out.writeByte(BYTE);
+			out.writeByte((Byte) value);
+		}
+		else if (value instanceof Character)
+		{
+			out.writeByte(CHAR);
+			out.writeChar((Character) value);
+		}
+		else if (value instanceof byte[])
+		{
+			out.writeByte(BYTES);
+			writeBytes(out, (byte[]) value);
+		}
+		else if (value.getClass() == ArrayList.class
+				|| value.getClass() == HashSet.class)
+		{
+			// Only the exact classes, as subclasses and others decode differently
+			Collection<?> collection = (Collection<?>) value;
+			out.writeByte(value.getClass() == ArrayList.class ? LIST : SET);
+			VarInts.write(out, collection.size());
+			for (Object element : collection)
+			{
+				write(out, element);
+			}
+		}
+		else if (value.getClass() == HashMap.class)
+		{
+			Map<?, ?> map = (Map<?, ?>) value;
+			out.writeByte(MAP);
+			VarInts.write(out, map.size());
+			for (Map.Entry<?, ?> entry : map.entrySet())
+			{
+				write(out, entry.getKey());
+				write(out, entry.getValue());
+			}
+		}
+		else
+		{
+			out.writeByte(FALLBACK);
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			fallbackCodec.encode(value, bos);
+			writeBytes(out, bos.toByteArray());
+		}
+	}
+
+	/**
+	 * Reads a tagged value.
+	 * 
+	 * @param in
+	 *            The stream to read from
+	 * @return The value
+	 * @throws IOException
+	 *             If the value could not be read
+	 * @throws ClassNotFoundException
+	 *             If the class of a fallback value is not available
+	 */
+	protected Object read(DataInputStream in)
+		throws IOException, ClassNotFoundException
+	{
+		int tag = in.readUnsignedByte();
+		switch (tag)
+		{
+		case NULL:
+			return null;
+		case TRUE:
+			return Boolean.TRUE;
+		case FALSE:
+			return Boolean.FALSE;
+		case BYTE:
+			return in.readByte();
+		case SHORT:
+			return in.readShort();
+		case INT:
+			return in.readInt();
+		case LONG:
+			return in.readLong();
+		case FLOAT:
+			return in.readFloat();
+		case DOUBLE:
+			return in.readDouble();
+		case CHAR:
+			return in.readChar();
+		case STRING:
+			return new String(readBytes(in), UTF8);
+		case BYTES:
+			return readBytes(in);
+		case LIST:
+		{
+			int size = VarInts.read(in);
+			List<Object> list = new ArrayList<Object>(size);
+			for (int i = 0; i < size; i++)
+			{
+				list.add(read(in));
+			}
+			return list;
+		}
+		case SET:
+		{
+			int size = VarInts.read(in);
+			Set<Object> set = new HashSet<Object>(size * 4 / 3 + 1);
+			for (int i = 0; i < size; i++)
+			{
+				set.add(read(in));
+			}
+			return set;
+		}
+		case MAP:
+		{
+			int size = VarInts.read(in);
+			Map<Object, Object> map = new HashMap<Object, Object>(
+					size * 4 / 3 + 1);
+			for (int i = 0; i < size; i++)
+			{
+				map.put(read(in), read(in));
+			}
+			return map;
+		}
+		case FALLBACK:
+			return fallbackCodec.decode(new ByteArrayInputStream(readBytes(in)));
+		default:
+			throw new IOException("Unknown value tag: " + tag);
+		}
+	}
+
+	static void writeBytes(DataOutputStream out, byte[] bytes)
+		throws IOException
+	{
+		VarInts.write(out, bytes.length);
+		out.write(bytes);
+	}
+
+	static byte[] readBytes(DataInputStream in)
+		throws IOException
+	{
+		byte[] bytes = new byte[VarInts.read(in)];
+		in.readFully(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.gopivotal.spring.sqlfirecache.externalizer.ClassDescriptor;
+import com.gopivotal.spring.sqlfirecache.externalizer.Externalizer;
+import com.gopivotal.spring.sqlfirecache.externalizer.ReflectiveExternalizer;
+
+/**
+ * Encodes values with Java serialization, using any registered externalizers
+ * for classes that are not serializable, or generated ones if enabled. The id of this codec is the first
+ * byte of the serialization stream magic number, so values written before
+ * codecs were introduced are read by this codec unchanged.
+ * 
+ * @author cdelashmutt
+ */
+public class JavaSerializationCodec
+	implements ValueCodec
+{
+	/**
+	 * The id of this codec
+	 */
+	public static final byte ID = (byte) (ObjectStreamConstants.STREAM_MAGIC >>> 8);
+
+	private Map<Class<Object>,Externalizer<Object>> externalizers = Collections.emptyMap();
+
+	private boolean generateExternalizers;
+
+	private final ConcurrentMap<Class<?>, Externalizer<Object>> generatedExternalizers = new ConcurrentHashMap<Class<?>, Externalizer<Object>>();
+
+	/**
+	 * @param externalizers the externalizers to set
+	 */
+	public void setExternalizers(
+			Map<Class<Object>, Externalizer<Object>> externalizers)
+	{
+		this.externalizers = externalizers;
+	}
+
+	/**
+	 * @return the externalizers
+	 */
+	public Map<Class<Object>, Externalizer<Object>> getExternalizers()
+	{
+		return externalizers;
+	}
+
+	/**
+	 * @return whether externalizers are generated for classes without one
+	 */
+	public boolean isGenerateExternalizers()
+	{
+		return generateExternalizers;
+	}
+
+	/**
+	 * @param generateExternalizers
+	 *            whether to generate a {@link ReflectiveExternalizer} on demand
+	 *            for classes that are not serializable and have no configured
+	 *            externalizer
+	 */
+	public void setGenerateExternalizers(boolean generateExternalizers)
+	{
+		this.generateExternalizers = generateExternalizers;
+	}
+
+	/**
+	 * Finds the externalizer for a class, generating one if enabled.
+	 * 
+	 * @param type
+	 *            The class to externalize
+	 * @return The externalizer, or null if the class should be serialized
+	 */
+	public Externalizer<Object> getExternalizer(Class<?> type)
+	{
+		Externalizer<Object> externalizer = externalizers.get(type);
+		if (externalizer == null && generateExternalizers
+				&& !Serializable.class.isAssignableFrom(type))
+		{
+			externalizer = generatedExternalizers.get(type);
+			if (externalizer == null)
+			{
+				@SuppressWarnings("unchecked")
+				Externalizer<Object> generated = new ReflectiveExternalizer<Object>(
+						(Class<Object>) type);
+				externalizer = generatedExternalizers.putIfAbsent(type, generated);
+				if (externalizer == null)
+					externalizer = generated;
+			}
+		}
+		return externalizer;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.codec.ValueCodec#getId()
+	 */
+	@Override
+	public byte getId()
+	{
+		return ID;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.codec.ValueCodec#encode(java.lang.Object, java.io.OutputStream)
+	 */
+	@Override
+	public void encode(Object value, OutputStream out)
+		throws IOException
+	{
+		ObjectOutputStream oos = new ObjectOutputStream(out);
+		Externalizer<Object> externalizer = null;
+		if(value!= null) externalizer = getExternalizer(value.getClass());
+		if(externalizer != null)
+		{
+			oos.writeObject(new ClassDescriptor(value.getClass()));
+			externalizer.writeObject(oos, value);
+		}
+		else
+		{
+			oos.writeObject(value);
+		}
+		oos.flush();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.codec.ValueCodec#decode(java.io.InputStream)
+	 */
+	@Override
+	public Object decode(InputStream in)
+		throws IOException, ClassNotFoundException
+	{
+		ObjectInputStream ois = new ObjectInputStream(in);
+		Object value = ois.readObject();
+		if(value instanceof ClassDescriptor)
+		{
+			Class<? extends Object> clazz = ((ClassDescriptor)value).getClazz();
+			Externalizer<Object> externalizer = getExternalizer(clazz);
+			if(externalizer != null)
+			{
+				value = externalizer.readObject(ois);
+			}
+			else
+				throw new IllegalStateException("No suitable externalizer for serialized class of type: " + clazz.toString());
+		}
+		return value;
+	}
+}
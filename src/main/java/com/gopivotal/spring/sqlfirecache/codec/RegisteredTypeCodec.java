@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.codec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import com.gopivotal.spring.sqlfirecache.externalizer.Externalizer;
+import com.gopivotal.spring.sqlfirecache.externalizer.TypeRegistry;
+
+/**
+ * Encodes values of externalized classes registered in a {@link TypeRegistry}.
+ * The class is written as its registry id in a variable length integer
+ * instead of a serialized class descriptor, followed by the externalizer
+ * output.
+ * 
+ * @author cdelashmutt
+ */
+public class RegisteredTypeCodec
+	implements ValueCodec
+{
+	/**
+	 * The id of this codec
+	 */
+	public static final byte ID = 2;
+
+	private final TypeRegistry registry;
+
+	/**
+	 * Creates a codec for the types in a registry.
+	 * 
+	 * @param registry
+	 *            The registry of externalized types
+	 */
+	public RegisteredTypeCodec(TypeRegistry registry)
+	{
+		this.registry = registry;
+	}
+
+	/**
+	 * @return the registry of externalized types
+	 */
+	public TypeRegistry getRegistry()
+	{
+		return registry;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.codec.ValueCodec#getId()
+	 */
+	@Override
+	public byte getId()
+	{
+		return ID;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.codec.ValueCodec#encode(java.lang.Object, java.io.OutputStream)
+	 */
+	@Override
+	public void encode(Object value, OutputStream out)
+		throws IOException
+	{
+		int typeId = value == null ? -1 : registry.getId(value.getClass());
+		if (typeId < 0)
+			throw new IllegalArgumentException("No registered type id for value " + value);
+		encode(typeId, value, out);
+	}
+
+	/**
+	 * Encodes a value whose type id has already been looked up.
+	 * 
+	 * @param typeId
+	 *            The registry id of the value's class
+	 * @param value
+	 *            The value to encode
+	 * @param out
+	 *            The stream to write to
+	 * @throws IOException
+	 *             If the value could not be encoded
+	 */
+	public void encode(int typeId, Object value, OutputStream out)
+		throws IOException
+	{
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeByte(ID);
+		VarInts.write(data, typeId);
+		ObjectOutputStream oos = new ObjectOutputStream(out);
+		registry.getExternalizer(typeId).writeObject(oos, value);
+		oos.flush();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.codec.ValueCodec#decode(java.io.InputStream)
+	 */
+	@Override
+	public Object decode(InputStream in)
+		throws IOException, ClassNotFoundException
+	{
+		DataInputStream data = new DataInputStream(in);
+		if (data.readByte() != ID)
+			throw new IOException("Value was not written by this codec");
+		int typeId = VarInts.read(data);
+		Externalizer<Object> externalizer = registry.getExternalizer(typeId);
+		if (externalizer == null)
+			throw new IllegalStateException("No externalizer registered for type id " + typeId);
+		return externalizer.readObject(new ObjectInputStream(in));
+	}
+}
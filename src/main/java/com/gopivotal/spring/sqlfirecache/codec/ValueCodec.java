@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encodes cached values to bytes and back. Every encoded value starts with
+ * the id of the codec that wrote it, so rows written by one codec can still be
+ * read after a cache switches to another.
+ * 
+ * @author cdelashmutt
+ */
+public interface ValueCodec
+{
+	/**
+	 * @return The byte every value encoded by this codec starts with
+	 */
+	public byte getId();
+
+	/**
+	 * Encodes a value, starting with the codec id.
+	 * 
+	 * @param value
+	 *            The value to encode, which may be null
+	 * @param out
+	 *            The stream to write to
+	 * @throws IOException
+	 *             If the value could not be encoded
+	 */
+	public void encode(Object value, OutputStream out)
+		throws IOException;
+
+	/**
+	 * Decodes a value. The stream is positioned on the codec id and is not
+	 * closed.
+	 * 
+	 * @param in
+	 *            The stream to read from
+	 * @return The decoded value
+	 * @throws IOException
+	 *             If the value could not be decoded
+	 * @throws ClassNotFoundException
+	 *             If the class of the value is not available
+	 */
+	public Object decode(InputStream in)
+		throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.compression;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the values a cache compressed and decompressed, their sizes and the
+ * time spent on them.
+ * 
+ * @author cdelashmutt
+ */
+public class CompressionStats
+{
+	private final AtomicLong compressedValues = new AtomicLong();
+
+	private final AtomicLong uncompressedBytes = new AtomicLong();
+
+	private final AtomicLong compressedBytes = new AtomicLong();
+
+	private final AtomicLong compressNanos = new AtomicLong();
+
+	private final AtomicLong skippedValues = new AtomicLong();
+
+	private final AtomicLong decompressedValues = new AtomicLong();
+
+	private final AtomicLong decompressNanos = new AtomicLong();
+
+	/**
+	 * Records a compressed value.
+	 * 
+	 * @param originalSize
+	 *            The size before compression
+	 * @param compressedSize
+	 *            The size after compression
+	 * @param nanos
+	 *            The time spent compressing
+	 */
+	public void recordCompression(int originalSize, int compressedSize,
+			long nanos)
+	{
+		compressedValues.incrementAndGet();
+		uncompressedBytes.addAndGet(originalSize);
+		compressedBytes.addAndGet(compressedSize);
+		compressNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Records a value stored uncompressed because compressing it did not make
+	 * it smaller.
+	 * 
+	 * @param nanos
+	 *            The time spent on the attempt
+	 */
+	public void recordSkipped(long nanos)
+	{
+		skippedValues.incrementAndGet();
+		compressNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Records a decompressed value.
+	 * 
+	 * @param nanos
+	 *            The time spent decompressing
+	 */
+	public void recordDecompression(long nanos)
+	{
+		decompressedValues.incrementAndGet();
+		decompressNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * @return the number of values compressed
+	 */
+	public long getCompressedValues()
+	{
+		return compressedValues.get();
+	}
+
+	/**
+	 * @return the number of values stored uncompressed because compressing
+	 *         them did not make them smaller
+	 */
+	public long getSkippedValues()
+	{
+		return skippedValues.get();
+	}
+
+	/**
+	 * @return the total size of the compressed values before compression
+	 */
+	public long getUncompressedBytes()
+	{
+		return uncompressedBytes.get();
+	}
+
+	/**
+	 * @return the total size of the compressed values after compression
+	 */
+	public long getCompressedBytes()
+	{
+		return compressedBytes.get();
+	}
+
+	/**
+	 * @return the compressed size as a fraction of the original size, or 1 if
+	 *         nothing has been compressed
+	 */
+	public double getCompressionRatio()
+	{
+		long original = uncompressedBytes.get();
+		return original == 0 ? 1 : (double) compressedBytes.get() / original;
+	}
+
+	/**
+	 * @return the total time in nanoseconds spent compressing, including
+	 *         skipped attempts
+	 */
+	public long getCompressNanos()
+	{
+		return compressNanos.get();
+	}
+
+	/**
+	 * @return the number of values decompressed
+	 */
+	public long getDecompressedValues()
+	{
+		return decompressedValues.get();
+	}
+
+	/**
+	 * @return the total time in nanoseconds spent decompressing
+	 */
+	public long getDecompressNanos()
+	{
+		return decompressNanos.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return "compressed " + getCompressedValues() + " values, "
+				+ getUncompressedBytes() + " to " + getCompressedBytes()
+				+ " bytes in " + getCompressNanos() / 1000000 + " ms; skipped "
+				+ getSkippedValues() + " values; decompressed "
+				+ getDecompressedValues() + " values in "
+				+ getDecompressNanos() / 1000000 + " ms";
+	}
+}
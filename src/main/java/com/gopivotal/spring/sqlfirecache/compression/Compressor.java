@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compresses serialized values. Compressed values record the id of the
+ * compressor that wrote them, so a cache can switch compressors and still
+ * read its existing rows.
+ * 
+ * @author cdelashmutt
+ */
+public interface Compressor
+{
+	/**
+	 * @return The id recorded with every value compressed by this compressor
+	 */
+	public byte getId();
+
+	/**
+	 * Compresses part of an array.
+	 * 
+	 * @param data
+	 *            The array holding the data to compress
+	 * @param offset
+	 *            The start of the data in the array
+	 * @param length
+	 *            The length of the data
+	 * @param out
+	 *            The stream to write the compressed data to
+	 * @return The number of compressed bytes written
+	 * @throws IOException
+	 *             If the data could not be written
+	 */
+	public int compress(byte[] data, int offset, int length, OutputStream out)
+		throws IOException;
+
+	/**
+	 * Decompresses data into an array of exactly the uncompressed length.
+	 * 
+	 * @param in
+	 *            The stream positioned on the compressed data
+	 * @param target
+	 *            The array to fill with the uncompressed data
+	 * @throws IOException
+	 *             If the data could not be read or is corrupt
+	 */
+	public void decompress(InputStream in, byte[] target)
+		throws IOException;
+}
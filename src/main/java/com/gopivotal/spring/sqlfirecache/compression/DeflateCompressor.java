@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses values with the JDK Deflater. Deflaters and inflaters hold
+ * native memory and are expensive to create, so each thread keeps its own and
+ * resets it between values.
+ * 
+ * @author cdelashmutt
+ */
+public class DeflateCompressor
+	implements Compressor
+{
+	/**
+	 * The id of this compressor
+	 */
+	public static final byte ID = 1;
+
+	private static final int CHUNK_SIZE = 8192;
+
+	private int level = Deflater.BEST_SPEED;
+
+	private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>()
+	{
+		@Override
+		protected Deflater initialValue()
+		{
+			return new Deflater(level);
+		}
+	};
+
+	private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>()
+	{
+		@Override
+		protected Inflater initialValue()
+		{
+			return new Inflater();
+		}
+	};
+
+	private final ThreadLocal<byte[]> chunks = new ThreadLocal<byte[]>()
+	{
+		@Override
+		protected byte[] initialValue()
+		{
+			return new byte[CHUNK_SIZE];
+		}
+	};
+
+	/**
+	 * @return the compression level
+	 */
+	public int getLevel()
+	{
+		return level;
+	}
+
+	/**
+	 * @param level
+	 *            the compression level, from {@link Deflater#BEST_SPEED}, the
+	 *            default, to {@link Deflater#BEST_COMPRESSION}
+	 */
+	public void setLevel(int level)
+	{
+		this.level = level;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.compression.Compressor#getId()
+	 */
+	@Override
+	public byte getId()
+	{
+		return ID;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.compression.Compressor#compress(byte[], int, int, java.io.OutputStream)
+	 */
+	@Override
+	public int compress(byte[] data, int offset, int length, OutputStream out)
+		throws IOException
+	{
+		Deflater deflater = deflaters.get();
+		byte[] chunk = chunks.get();
+		int written = 0;
+		try
+		{
+			deflater.setLevel(level);
+			deflater.setInput(data, offset, length);
+			deflater.finish();
+			while (!deflater.finished())
+			{
+				int count = deflater.deflate(chunk);
+				out.write(chunk, 0, count);
+				written += count;
+			}
+		}
+		finally
+		{
+			deflater.reset();
+		}
+		return written;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.compression.Compressor#decompress(java.io.InputStream, byte[])
+	 */
+	@Override
+	public void decompress(InputStream in, byte[] target)
+		throws IOException
+	{
+		Inflater inflater = inflaters.get();
+		byte[] chunk = chunks.get();
+		int filled = 0;
+		try
+		{
+			while (!inflater.finished())
+			{
+				if (inflater.needsInput())
+				{
+					int count = in.read(chunk);
+					if (count < 0)
+						throw new IOException("Compressed value is truncated");
+					inflater.setInput(chunk, 0, count);
+				}
+				int count = inflater.inflate(target, filled, target.length
+						- filled);
+				filled += count;
+				if (count == 0 && !inflater.finished() && !inflater.needsInput())
+					throw new IOException("Compressed value is larger than "
+							+ target.length + " bytes");
+			}
+		}
+		catch (DataFormatException e)
+		{
+			throw new IOException("Compressed value is corrupt", e);
+		}
+		finally
+		{
+			inflater.reset();
+		}
+		if (filled != target.length)
+			throw new IOException("Compressed value is " + filled
+					+ " bytes, expected " + target.length);
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses small values with the JDK Deflater primed with a shared
+ * dictionary. Small values that compress poorly on their own compress well
+ * once the keys and structure they repeat are found in the dictionary.
+ * 
+ * @author cdelashmutt
+ */
+public class DictionaryCompressor
+{
+	private static final int CHUNK_SIZE = 8192;
+
+	private int level = Deflater.DEFAULT_COMPRESSION;
+
+	private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>()
+	{
+		@Override
+		protected Deflater initialValue()
+		{
+			return new Deflater(level);
+		}
+	};
+
+	private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>()
+	{
+		@Override
+		protected Inflater initialValue()
+		{
+			return new Inflater();
+		}
+	};
+
+	private final ThreadLocal<byte[]> chunks = new ThreadLocal<byte[]>()
+	{
+		@Override
+		protected byte[] initialValue()
+		{
+			return new byte[CHUNK_SIZE];
+		}
+	};
+
+	/**
+	 * @return the compression level
+	 */
+	public int getLevel()
+	{
+		return level;
+	}
+
+	/**
+	 * @param level
+	 *            the compression level, {@link Deflater#DEFAULT_COMPRESSION}
+	 *            by default
+	 */
+	public void setLevel(int level)
+	{
+		this.level = level;
+	}
+
+	/**
+	 * Builds a dictionary from sample values. Deflate finds matches in the
+	 * last 32 KB it has seen, and cheapest in the nearest bytes, so distinct
+	 * samples are appended in order and only the newest bytes are kept.
+	 * 
+	 * @param samples
+	 *            The sample values, oldest first
+	 * @param size
+	 *            The largest dictionary size in bytes
+	 * @return The dictionary
+	 */
+	public static byte[] train(List<byte[]> samples, int size)
+	{
+		Set<ByteBuffer> seen = new HashSet<ByteBuffer>();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] sample : samples)
+		{
+			// Repeated samples would only push useful bytes out of the window
+			if (seen.add(ByteBuffer.wrap(sample)))
+				out.write(sample, 0, sample.length);
+		}
+		byte[] all = out.toByteArray();
+		if (all.length <= size)
+			return all;
+		byte[] dictionary = new byte[size];
+		System.arraycopy(all, all.length - size, dictionary, 0, size);
+		return dictionary;
+	}
+
+	/**
+	 * Compresses a value.
+	 * 
+	 * @param data
+	 *            The value
+	 * @param dictionary
+	 *            The dictionary to prime the compressor with
+	 * @return The compressed value
+	 */
+	public byte[] compress(byte[] data, byte[] dictionary)
+	{
+		Deflater deflater = deflaters.get();
+		byte[] chunk = chunks.get();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+		try
+		{
+			deflater.setLevel(level);
+			deflater.setDictionary(dictionary);
+			deflater.setInput(data);
+			deflater.finish();
+			while (!deflater.finished())
+			{
+				int count = deflater.deflate(chunk);
+				out.write(chunk, 0, count);
+			}
+		}
+		finally
+		{
+			deflater.reset();
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decompresses a value.
+	 * 
+	 * @param data
+	 *            The compressed value
+	 * @param dictionary
+	 *            The dictionary the value was compressed with
+	 * @return The value
+	 * @throws IOException
+	 *             If the value is corrupt or was compressed with another
+	 *             dictionary
+	 */
+	public byte[] decompress(byte[] data, byte[] dictionary)
+		throws IOException
+	{
+		Inflater inflater = inflaters.get();
+		byte[] chunk = chunks.get();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+		try
+		{
+			inflater.setInput(data);
+			while (!inflater.finished())
+			{
+				int count = inflater.inflate(chunk);
+				if (count == 0)
+				{
+					if (inflater.needsDictionary())
+						inflater.setDictionary(dictionary);
+					else if (inflater.needsInput())
+						throw new IOException("Compressed value is truncated");
+				}
+				out.write(chunk, 0, count);
+			}
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new IOException("Value was compressed with another dictionary", e);
+		}
+		catch (DataFormatException e)
+		{
+			throw new IOException("Compressed value is corrupt", e);
+		}
+		finally
+		{
+			inflater.reset();
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.dialect;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.sql.Blob;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.springframework.jdbc.core.support.SqlLobValue;
+
+/**
+ * Base for the dialects of Derby and of SQLFire, which is built on Derby. They
+ * share their schema catalog and LOB handling, but differ in how tables are
+ * listed, partitioned and upserted.
+ * 
+ * @author cdelashmutt
+ */
+public abstract class AbstractDerbyDialect
+	extends AbstractDialect
+{
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.Dialect#buildSchemaExistsSQL
+	 * (java.lang.String)
+	 */
+	@Override
+	public String buildSchemaExistsSQL(String schemaName)
+	{
+		return "select * from SYS.SYSSCHEMAS where SCHEMANAME='" + schemaName
+				+ "'";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.Dialect#getMaxVarbinaryLength()
+	 */
+	@Override
+	public int getMaxVarbinaryLength()
+	{
+		// The limit of VARCHAR FOR BIT DATA
+		return 32672;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.gopivotal.spring.sqlfirecache.dialect.Dialect#getSchemasSQL()
+	 */
+	@Override
+	public String getSchemasSQL()
+	{
+		return "select SCHEMANAME from SYS.SYSSCHEMAS";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.Dialect#createBlobValue(byte
+	 * [])
+	 */
+	@Override
+	public Object createBlobValue(byte[] data)
+	{
+		return new SqlLobValue(data);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.Dialect#createBlobValue(byte
+	 * [], int, int)
+	 */
+	@Override
+	public Object createBlobValue(byte[] data, int offset, int length)
+	{
+		return new SqlLobValue(new ByteArrayInputStream(data, offset, length),
+				length);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.Dialect#getBlobStream(java.
+	 * sql.ResultSet, java.lang.String)
+	 */
+	@Override
+	public InputStream getBlobStream(ResultSet rs, String columnName)
+		throws SQLException
+	{
+		Blob blob = rs.getBlob(columnName);
+		return blob == null ? null : blob.getBinaryStream();
+	}
+}
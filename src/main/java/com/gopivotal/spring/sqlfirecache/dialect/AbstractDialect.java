@@ -0,0 +1,258 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.dialect;
+
+import java.io.ByteArrayInputStream;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.springframework.jdbc.core.SqlTypeValue;
+import org.springframework.util.StringUtils;
+
+import com.gopivotal.spring.sqlfirecache.ColumnDefinition;
+import com.gopivotal.spring.sqlfirecache.SQLFType;
+
+/**
+ * Base for all dialects, holding the column type definition DDL and type name
+ * logic they share. Databases without partitioning, colocation or an upsert
+ * statement can use the defaults here as they are.
+ * 
+ * @author cdelashmutt
+ */
+public abstract class AbstractDialect
+	implements Dialect
+{
+
+	/**
+	 * Returns the name of the given type in CREATE TABLE statements.
+	 * 
+	 * @param type
+	 *            The column type
+	 * @return The SQL name of the type
+	 */
+	protected String getTypeName(SQLFType type)
+	{
+		return type.getSQLName();
+	}
+
+	/**
+	 * @return The suffix appended to the binary string types, or an empty
+	 *         string
+	 */
+	protected String getBinarySuffix()
+	{
+		return " FOR BIT DATA";
+	}
+
+	/**
+	 * Builds the length of a LOB column.
+	 * 
+	 * @param column
+	 *            The LOB column
+	 * @return The length, including its unit
+	 */
+	protected String buildLobLength(ColumnDefinition column)
+	{
+		String length = String.valueOf(column.getLength());
+		if (column.getUnit() != null)
+		{
+			length += column.getUnit().name();
+		}
+		return length;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.gopivotal.spring.sqlfirecache.dialect.Dialect#
+	 * buildColumnTypeDefinitionSQL
+	 * (com.gopivotal.spring.sqlfirecache.ColumnDefinition)
+	 */
+	@Override
+	public String buildColumnTypeDefinitionSQL(ColumnDefinition column)
+	{
+		String columnDef = getTypeName(column.getType());
+		switch (column.getType())
+		{
+			//Possibly Length, and Suffix needed
+			case BINARY:
+			case VARBINARY:
+				if(column.getLength() != null)
+					columnDef += "(" + column.getLength() + ")";
+				columnDef += getBinarySuffix();
+				break;
+
+			// Length and Unit
+			case BLOB:
+			case CLOB:
+				if(column.getLength() != null)
+				{
+					columnDef += "(" + buildLobLength(column) + ")";
+				}
+				break;
+
+			//Length only
+			case CHAR:
+			case VARCHAR:
+				if(column.getLength() != null)
+				{
+					columnDef += "(" + column.getLength() + ")";
+				}
+				break;
+
+			//Precision and Scale
+			case DECIMAL:
+			case NUMERIC:
+				if(column.getPrecision() != null)
+				{
+					columnDef += "(" + column.getPrecision();
+					if(column.getScale() != null)
+					{
+						columnDef += ", " + column.getScale();
+					}
+					columnDef += ")";
+				}
+				break;
+
+			//Nothing else needs to happen.
+			default:
+				break;
+		}
+		return columnDef;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.Dialect#buildTypeName(com.
+	 * gopivotal.spring.sqlfirecache.SQLFType)
+	 */
+	@Override
+	public String buildTypeName(SQLFType type)
+	{
+		switch (type)
+		{
+			case BINARY:
+			case VARBINARY:
+				return getTypeName(type) + getBinarySuffix();
+			default:
+				return getTypeName(type);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.Dialect#getPartitionClause()
+	 */
+	@Override
+	public String getPartitionClause()
+	{
+		return "";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.Dialect#buildColocationClause
+	 * (java.util.List, java.lang.String)
+	 */
+	@Override
+	public String buildColocationClause(List<String> columns,
+			String parentTableName)
+	{
+		return "";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.Dialect#buildUpsertSQL(java
+	 * .lang.String, java.util.List, java.util.List)
+	 */
+	@Override
+	public String buildUpsertSQL(String tableName, List<String> keyColumns,
+			List<String> columns)
+	{
+		return null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.Dialect#createBinaryValue(byte
+	 * [], int, int)
+	 */
+	@Override
+	public Object createBinaryValue(final byte[] data, final int offset,
+			final int length)
+	{
+		if (offset == 0 && length == data.length)
+			return data;
+		// Streamed from the array, as setBytes needs an exactly sized copy
+		return new SqlTypeValue()
+		{
+			@Override
+			public void setTypeValue(PreparedStatement ps, int paramIndex,
+					int sqlType, String typeName)
+				throws SQLException
+			{
+				ps.setBinaryStream(paramIndex, new ByteArrayInputStream(data,
+						offset, length), length);
+			}
+		};
+	}
+
+	/**
+	 * Builds the named placeholder list for the given columns.
+	 * 
+	 * @param columns
+	 *            The column names
+	 * @return The comma separated placeholders
+	 */
+	protected String buildPlaceholders(List<String> columns)
+	{
+		StringBuilder placeholders = new StringBuilder();
+		for (String column : columns)
+		{
+			if (placeholders.length() > 0)
+				placeholders.append(", ");
+			placeholders.append(":").append(column);
+		}
+		return placeholders.toString();
+	}
+
+	/**
+	 * Builds the comma separated list of the given column names.
+	 * 
+	 * @param columns
+	 *            The column names
+	 * @return The column list
+	 */
+	protected String buildColumnList(List<String> columns)
+	{
+		return StringUtils.collectionToDelimitedString(columns, ", ");
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.dialect;
+
+/**
+ * The dialect of Apache Derby, useful as an embedded stand-in for SQLFire.
+ * 
+ * Derby shares the DDL and LOB handling of SQLFire, but keeps schema names in
+ * a separate catalog table and has no partitioning or upsert statement, so it
+ * has none of the SQLFire specific settings.
+ * 
+ * @author cdelashmutt
+ */
+public class DerbyDialect
+	extends AbstractDerbyDialect
+{
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.Dialect#buildTableExistsSQL
+	 * (java.lang.String, java.lang.String)
+	 */
+	@Override
+	public String buildTableExistsSQL(String schemaName, String tableName)
+	{
+		return "select * from SYS.SYSTABLES t, SYS.SYSSCHEMAS s"
+				+ " where t.SCHEMAID = s.SCHEMAID and s.SCHEMANAME='"
+				+ schemaName + "' and t.TABLENAME='" + tableName + "'";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.Dialect#getTablesSQL()
+	 */
+	@Override
+	public String getTablesSQL()
+	{
+		return "select s.SCHEMANAME, t.TABLENAME from SYS.SYSTABLES t, SYS.SYSSCHEMAS s"
+				+ " where t.SCHEMAID = s.SCHEMAID";
+	}
+}
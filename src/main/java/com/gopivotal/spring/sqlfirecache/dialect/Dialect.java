@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.dialect;
+
+import java.io.InputStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+import com.gopivotal.spring.sqlfirecache.ColumnDefinition;
+import com.gopivotal.spring.sqlfirecache.SQLFType;
+
+/**
+ * Describes the SQL differences between the databases a cache can be stored
+ * in, so caches can run on local stand-in databases as well as SQLFire.
+ * 
+ * @author cdelashmutt
+ */
+public interface Dialect
+{
+	/**
+	 * Builds a query that returns at least one row if the given schema exists.
+	 * 
+	 * @param schemaName
+	 *            The name of the schema to look for
+	 * @return The schema lookup SQL
+	 */
+	public String buildSchemaExistsSQL(String schemaName);
+
+	/**
+	 * Builds a query that returns at least one row if the given table exists.
+	 * 
+	 * @param schemaName
+	 *            The name of the schema the table is in
+	 * @param tableName
+	 *            The upper case name of the table to look for
+	 * @return The table lookup SQL
+	 */
+	public String buildTableExistsSQL(String schemaName, String tableName);
+
+	/**
+	 * @return A query returning the name of every schema in its only column
+	 */
+	public String getSchemasSQL();
+
+	/**
+	 * @return A query returning the schema name and table name of every table
+	 */
+	public String getTablesSQL();
+
+	/**
+	 * Creates an SQL column type definition fragment suitable for use in a
+	 * CREATE TABLE statement.
+	 * 
+	 * @param column
+	 *            The column to build the type definition for
+	 * @return A type string with no column name that is suitable for appending
+	 *         to the column name.
+	 */
+	public String buildColumnTypeDefinitionSQL(ColumnDefinition column);
+
+	/**
+	 * Builds the name of a column type without its length, as used when
+	 * binding a null value of the type.
+	 * 
+	 * @param type
+	 *            The column type
+	 * @return The SQL name of the type, including any suffix
+	 */
+	public String buildTypeName(SQLFType type);
+
+	/**
+	 * @return The largest length in bytes of a VARBINARY column
+	 */
+	public int getMaxVarbinaryLength();
+
+	/**
+	 * @return The clause appended to CREATE TABLE statements to distribute the
+	 *         table by its primary key, or an empty string
+	 */
+	public String getPartitionClause();
+
+	/**
+	 * Builds the clause appended to CREATE TABLE statements to store rows
+	 * with the same key columns on the same member as a parent table's row.
+	 * 
+	 * @param columns
+	 *            The columns matching the parent table's partitioning columns
+	 * @param parentTableName
+	 *            The schema qualified name of the parent table
+	 * @return The colocation clause, or an empty string
+	 */
+	public String buildColocationClause(List<String> columns,
+			String parentTableName);
+
+	/**
+	 * Builds a single statement that inserts a row, or replaces it if a row
+	 * with the same key already exists.
+	 * 
+	 * @param tableName
+	 *            The schema qualified table name
+	 * @param keyColumns
+	 *            The names of the primary key columns
+	 * @param columns
+	 *            The names of all columns, including the key columns
+	 * @return The upsert SQL with named placeholders, or null if the database
+	 *         has no upsert statement
+	 */
+	public String buildUpsertSQL(String tableName, List<String> keyColumns,
+			List<String> columns);
+
+	/**
+	 * Creates the parameter value used to bind binary data to a BLOB column.
+	 * 
+	 * @param data
+	 *            The binary data
+	 * @return The value to bind
+	 */
+	public Object createBlobValue(byte[] data);
+
+	/**
+	 * Creates the parameter value used to bind part of an array to a BLOB
+	 * column, without copying it where the driver allows. The array must not
+	 * change until the statement has executed.
+	 * 
+	 * @param data
+	 *            The array holding the binary data
+	 * @param offset
+	 *            The start of the data in the array
+	 * @param length
+	 *            The length of the data
+	 * @return The value to bind
+	 */
+	public Object createBlobValue(byte[] data, int offset, int length);
+
+	/**
+	 * Creates the parameter value used to bind part of an array to a binary
+	 * string column, such as VARBINARY, without copying it. The array must not
+	 * change until the statement has executed.
+	 * 
+	 * @param data
+	 *            The array holding the binary data
+	 * @param offset
+	 *            The start of the data in the array
+	 * @param length
+	 *            The length of the data
+	 * @return The value to bind
+	 */
+	public Object createBinaryValue(byte[] data, int offset, int length);
+
+	/**
+	 * Opens a stream on the contents of a BLOB column.
+	 * 
+	 * @param rs
+	 *            The result set positioned on the row to read
+	 * @param columnName
+	 *            The name of the BLOB column
+	 * @return A stream of the column contents, or null if the column is null
+	 * @throws SQLException
+	 *             If the column could not be read
+	 */
+	public InputStream getBlobStream(ResultSet rs, String columnName)
+		throws SQLException;
+}
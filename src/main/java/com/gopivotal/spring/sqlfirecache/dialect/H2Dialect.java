@@ -0,0 +1,224 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.dialect;
+
+import java.io.InputStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+import com.gopivotal.spring.sqlfirecache.ColumnDefinition;
+import com.gopivotal.spring.sqlfirecache.SQLFType;
+
+/**
+ * The dialect of the H2 database, useful as a fast embedded stand-in for
+ * SQLFire.
+ * 
+ * @author cdelashmutt
+ */
+public class H2Dialect
+	extends AbstractDialect
+{
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.Dialect#buildSchemaExistsSQL
+	 * (java.lang.String)
+	 */
+	@Override
+	public String buildSchemaExistsSQL(String schemaName)
+	{
+		return "select * from INFORMATION_SCHEMA.SCHEMATA where SCHEMA_NAME='"
+				+ schemaName + "'";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.Dialect#buildTableExistsSQL
+	 * (java.lang.String, java.lang.String)
+	 */
+	@Override
+	public String buildTableExistsSQL(String schemaName, String tableName)
+	{
+		return "select * from INFORMATION_SCHEMA.TABLES where TABLE_SCHEMA='"
+				+ schemaName + "' and TABLE_NAME='" + tableName + "'";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.gopivotal.spring.sqlfirecache.dialect.Dialect#getSchemasSQL()
+	 */
+	@Override
+	public String getSchemasSQL()
+	{
+		return "select SCHEMA_NAME from INFORMATION_SCHEMA.SCHEMATA";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.gopivotal.spring.sqlfirecache.dialect.Dialect#getTablesSQL()
+	 */
+	@Override
+	public String getTablesSQL()
+	{
+		return "select TABLE_SCHEMA, TABLE_NAME from INFORMATION_SCHEMA.TABLES";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.AbstractDialect#getTypeName
+	 * (com.gopivotal.spring.sqlfirecache.SQLFType)
+	 */
+	@Override
+	protected String getTypeName(SQLFType type)
+	{
+		switch (type)
+		{
+			case BINARY:
+			case VARBINARY:
+			case LONGVARBINARY:
+			case LONGVARCHAR:
+				return type.name();
+			default:
+				return super.getTypeName(type);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.Dialect#getMaxVarbinaryLength()
+	 */
+	@Override
+	public int getMaxVarbinaryLength()
+	{
+		return Integer.MAX_VALUE;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.AbstractDialect#getBinarySuffix
+	 * ()
+	 */
+	@Override
+	protected String getBinarySuffix()
+	{
+		return "";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.AbstractDialect#buildLobLength
+	 * (com.gopivotal.spring.sqlfirecache.ColumnDefinition)
+	 */
+	@Override
+	protected String buildLobLength(ColumnDefinition column)
+	{
+		long length = column.getLength();
+		if (column.getUnit() != null)
+		{
+			switch (column.getUnit())
+			{
+				case K:
+					length *= 1024L;
+					break;
+				case M:
+					length *= 1024L * 1024L;
+					break;
+				case G:
+					length *= 1024L * 1024L * 1024L;
+					break;
+			}
+		}
+		return String.valueOf(length);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.AbstractDialect#buildUpsertSQL
+	 * (java.lang.String, java.util.List, java.util.List)
+	 */
+	@Override
+	public String buildUpsertSQL(String tableName, List<String> keyColumns,
+			List<String> columns)
+	{
+		return "MERGE INTO " + tableName + " (" + buildColumnList(columns)
+				+ ") KEY (" + buildColumnList(keyColumns) + ") VALUES ("
+				+ buildPlaceholders(columns) + ")";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.Dialect#createBlobValue(byte
+	 * [])
+	 */
+	@Override
+	public Object createBlobValue(byte[] data)
+	{
+		// H2 binds binary data to BLOB columns directly, without the LOB API
+		return data;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.Dialect#createBlobValue(byte
+	 * [], int, int)
+	 */
+	@Override
+	public Object createBlobValue(byte[] data, int offset, int length)
+	{
+		if (offset == 0 && length == data.length)
+			return data;
+		return Arrays.copyOfRange(data, offset, offset + length);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.Dialect#getBlobStream(java.
+	 * sql.ResultSet, java.lang.String)
+	 */
+	@Override
+	public InputStream getBlobStream(ResultSet rs, String columnName)
+		throws SQLException
+	{
+		return rs.getBinaryStream(columnName);
+	}
+}
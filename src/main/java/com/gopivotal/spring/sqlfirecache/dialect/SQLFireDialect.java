@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.dialect;
+
+import java.util.List;
+
+/**
+ * The dialect of SQLFire, used by default.
+ * 
+ * @author cdelashmutt
+ */
+public class SQLFireDialect
+	extends AbstractDerbyDialect
+{
+
+	private boolean usePutInto = false;
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.Dialect#buildTableExistsSQL
+	 * (java.lang.String, java.lang.String)
+	 */
+	@Override
+	public String buildTableExistsSQL(String schemaName, String tableName)
+	{
+		return "select * from SYS.SYSTABLES where TABLESCHEMANAME='"
+				+ schemaName + "' and TABLENAME='" + tableName + "'";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.gopivotal.spring.sqlfirecache.dialect.Dialect#getTablesSQL()
+	 */
+	@Override
+	public String getTablesSQL()
+	{
+		return "select TABLESCHEMANAME, TABLENAME from SYS.SYSTABLES";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.AbstractDialect#getPartitionClause
+	 * ()
+	 */
+	@Override
+	public String getPartitionClause()
+	{
+		return " PARTITION BY PRIMARY KEY";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.AbstractDialect#buildColocationClause
+	 * (java.util.List, java.lang.String)
+	 */
+	@Override
+	public String buildColocationClause(List<String> columns,
+			String parentTableName)
+	{
+		return " PARTITION BY COLUMN (" + buildColumnList(columns)
+				+ ") COLOCATE WITH (" + parentTableName + ")";
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.gopivotal.spring.sqlfirecache.dialect.AbstractDialect#buildUpsertSQL
+	 * (java.lang.String, java.util.List, java.util.List)
+	 */
+	@Override
+	public String buildUpsertSQL(String tableName, List<String> keyColumns,
+			List<String> columns)
+	{
+		if (!usePutInto)
+		{
+			return null;
+		}
+		return "PUT INTO " + tableName + " (" + buildColumnList(columns)
+				+ ") VALUES (" + buildPlaceholders(columns) + ")";
+	}
+
+	/**
+	 * @return true if puts use a single PUT INTO statement
+	 */
+	public boolean isUsePutInto()
+	{
+		return usePutInto;
+	}
+
+	/**
+	 * Makes puts use a single PUT INTO statement instead of an update followed
+	 * by an insert. PUT INTO requires SQLFire 1.1 or later.
+	 * 
+	 * @param usePutInto
+	 *            true to use PUT INTO for puts
+	 */
+	public void setUsePutInto(boolean usePutInto)
+	{
+		this.usePutInto = usePutInto;
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.externalizer;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An externalizer derived from the fields of a class, for classes that are not
+ * serializable and have no hand-written externalizer. The fields are looked up
+ * once, primitive fields are written unboxed, and other fields are written as
+ * objects, so they must be serializable or null.
+ * 
+ * The class needs a no argument constructor, which may be private. Static and
+ * transient fields are skipped. Values are written in field order, so rows
+ * written before a class gains or loses fields can no longer be read.
+ * 
+ * @author cdelashmutt
+ */
+public class ReflectiveExternalizer<T>
+	implements Externalizer<T>
+{
+	private static final int OBJECT = 0;
+	private static final int INT = 1;
+	private static final int LONG = 2;
+	private static final int BOOLEAN = 3;
+	private static final int DOUBLE = 4;
+	private static final int FLOAT = 5;
+	private static final int SHORT = 6;
+	private static final int BYTE = 7;
+	private static final int CHAR = 8;
+
+	private final Constructor<T> constructor;
+
+	private final Field[] fields;
+
+	private final int[] kinds;
+
+	/**
+	 * Looks up the fields of a class.
+	 * 
+	 * @param type
+	 *            The class to externalize
+	 * @throws IllegalArgumentException
+	 *             If the class has no no argument constructor
+	 */
+	public ReflectiveExternalizer(Class<T> type)
+	{
+		try
+		{
+			constructor = type.getDeclaredConstructor();
+			constructor.setAccessible(true);
+		}
+		catch (NoSuchMethodException e)
+		{
+			throw new IllegalArgumentException(type
+					+ " has no no argument constructor to externalize it with", e);
+		}
+
+		List<Field> found = new ArrayList<Field>();
+		for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass())
+		{
+			List<Field> declared = new ArrayList<Field>();
+			for (Field field : c.getDeclaredFields())
+			{
+				int modifiers = field.getModifiers();
+				if (!Modifier.isStatic(modifiers)
+						&& !Modifier.isTransient(modifiers))
+				{
+					field.setAccessible(true);
+					declared.add(field);
+				}
+			}
+			// getDeclaredFields has no defined order
+			Collections.sort(declared, new Comparator<Field>()
+			{
+				@Override
+				public int compare(Field f1, Field f2)
+				{
+					return f1.getName().compareTo(f2.getName());
+				}
+			});
+			found.addAll(0, declared);
+		}
+		fields = found.toArray(new Field[found.size()]);
+		kinds = new int[fields.length];
+		for (int i = 0; i < fields.length; i++)
+		{
+			kinds[i] = kindOf(fields[i].getType());
+		}
+	}
+
+	private static int kindOf(Class<?> type)
+	{
+		if (type == int.class)
+			return INT;
+		if (type == long.class)
+			return LONG;
+		if (type == boolean.class)
+			return BOOLEAN;
+		if (type == double.class)
+			return DOUBLE;
+		if (type == float.class)
+			return FLOAT;
+		if (type == short.class)
+			return SHORT;
+		if (type == byte.class)
+			return BYTE;
+		if (type == char.class)
+			return CHAR;
+		return OBJECT;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.externalizer.Externalizer#writeObject(java.io.ObjectOutputStream, java.lang.Object)
+	 */
+	@Override
+	public void writeObject(ObjectOutputStream stream, T obj)
+		throws IOException
+	{
+		try
+		{
+			for (int i = 0; i < fields.length; i++)
+			{
+				Field field = fields[i];
+				switch (kinds[i])
+				{
+				case INT:
+					stream.writeInt(field.getInt(obj));
+					break;
+				case LONG:
+					stream.writeLong(field.getLong(obj));
+					break;
+				case BOOLEAN:
+					stream.writeBoolean(field.getBoolean(obj));
+					break;
+				case DOUBLE:
+					stream.writeDouble(field.getDouble(obj));
+					break;
+				case FLOAT:
+					stream.writeFloat(field.getFloat(obj));
+					break;
+				case SHORT:
+					stream.writeShort(field.getShort(obj));
+					break;
+				case BYTE:
+					stream.writeByte(field.getByte(obj));
+					break;
+				case CHAR:
+					stream.writeChar(field.getChar(obj));
+					break;
+				default:
+					stream.writeObject(field.get(obj));
+				}
+			}
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new IllegalStateException("Could not read field of " + obj, e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.externalizer.Externalizer#readObject(java.io.ObjectInputStream)
+	 */
+	@Override
+	public T readObject(ObjectInputStream stream)
+		throws IOException, ClassNotFoundException
+	{
+		try
+		{
+			T obj = constructor.newInstance();
+			for (int i = 0; i < fields.length; i++)
+			{
+				Field field = fields[i];
+				switch (kinds[i])
+				{
+				case INT:
+					field.setInt(obj, stream.readInt());
+					break;
+				case LONG:
+					field.setLong(obj, stream.readLong());
+					break;
+				case BOOLEAN:
+					field.setBoolean(obj, stream.readBoolean());
+					break;
+				case DOUBLE:
+					field.setDouble(obj, stream.readDouble());
+					break;
+				case FLOAT:
+					field.setFloat(obj, stream.readFloat());
+					break;
+				case SHORT:
+					field.setShort(obj, stream.readShort());
+					break;
+				case BYTE:
+					field.setByte(obj, stream.readByte());
+					break;
+				case CHAR:
+					field.setChar(obj, stream.readChar());
+					break;
+				default:
+					field.set(obj, stream.readObject());
+				}
+			}
+			return obj;
+		}
+		catch (IOException e)
+		{
+			throw e;
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			throw new IllegalStateException("Could not create an instance of "
+					+ constructor.getDeclaringClass(), e);
+		}
+	}
+}
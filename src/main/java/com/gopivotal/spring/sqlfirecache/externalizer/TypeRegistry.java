@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.externalizer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps externalized classes to small, stable integer ids, so stored values can
+ * name their type with a few bytes instead of a serialized class descriptor.
+ * Ids are looked up by array index on the read path. Registration is rare and
+ * copies the lookup structures, so lookups never lock.
+ * 
+ * @author cdelashmutt
+ */
+public class TypeRegistry
+{
+	/**
+	 * The largest id a type can be registered under
+	 */
+	public static final int MAX_ID = 0xFFFF;
+
+	private volatile Map<Class<?>, Integer> idsByType = new HashMap<Class<?>, Integer>();
+
+	private volatile Externalizer<Object>[] externalizersById = newExternalizerArray(0);
+
+	@SuppressWarnings("unchecked")
+	private static Externalizer<Object>[] newExternalizerArray(int size)
+	{
+		return (Externalizer<Object>[]) new Externalizer<?>[size];
+	}
+
+	/**
+	 * Registers a type under an id. Registering the same type under the same
+	 * id again replaces its externalizer.
+	 * 
+	 * @param id
+	 *            The id to store values of the type under
+	 * @param type
+	 *            The externalized class
+	 * @param externalizer
+	 *            The externalizer for the class
+	 * @throws IllegalArgumentException
+	 *             If the id is out of range, or the id or type is already
+	 *             registered differently
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized void register(int id, Class<?> type,
+			Externalizer<?> externalizer)
+	{
+		if (id < 0 || id > MAX_ID)
+			throw new IllegalArgumentException("Type id " + id
+					+ " is not between 0 and " + MAX_ID);
+		Integer existingId = idsByType.get(type);
+		if (existingId != null && existingId != id)
+			throw new IllegalArgumentException(type + " is already registered with id "
+					+ existingId);
+		Map<Class<?>, Integer> ids = new HashMap<Class<?>, Integer>(idsByType);
+		for (Map.Entry<Class<?>, Integer> entry : ids.entrySet())
+		{
+			if (entry.getValue() == id && entry.getKey() != type)
+				throw new IllegalArgumentException("Type id " + id
+						+ " is already used by " + entry.getKey());
+		}
+		ids.put(type, id);
+
+		Externalizer<Object>[] externalizers = externalizersById;
+		if (id >= externalizers.length)
+			externalizers = Arrays.copyOf(externalizers, id + 1);
+		else
+			externalizers = externalizers.clone();
+		externalizers[id] = (Externalizer<Object>) externalizer;
+
+		externalizersById = externalizers;
+		idsByType = ids;
+	}
+
+	/**
+	 * @param type
+	 *            The class to look up
+	 * @return The id of the class, or -1 if it is not registered
+	 */
+	public int getId(Class<?> type)
+	{
+		Integer id = idsByType.get(type);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * @param id
+	 *            The id to look up
+	 * @return The externalizer registered under the id, or null
+	 */
+	public Externalizer<Object> getExternalizer(int id)
+	{
+		Externalizer<Object>[] externalizers = externalizersById;
+		return id >= 0 && id < externalizers.length ? externalizers[id] : null;
+	}
+}
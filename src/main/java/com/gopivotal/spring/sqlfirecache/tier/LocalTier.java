@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.tier;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A tier in front of the cache table, local to this JVM, holding values in
+ * their serialized form. Each cache needs a tier of its own.
+ * 
+ * A tier only sees the puts and evicts made through its cache, so it can hold
+ * values other members have since replaced in the table.
+ * 
+ * @author cdelashmutt
+ */
+public interface LocalTier
+{
+	/**
+	 * Returns the serialized value of a key.
+	 * 
+	 * @param key
+	 *            The key
+	 * @return A buffer positioned on the value and limited to its end, or null
+	 *         if the tier does not hold the key. The buffer stays valid after
+	 *         the key is replaced or removed.
+	 */
+	public ByteBuffer get(Object key);
+
+	/**
+	 * Reads the serialized value of a key where the tier holds it, without
+	 * copying it to the heap first.
+	 * 
+	 * @param key
+	 *            The key
+	 * @param reader
+	 *            The reader of the value
+	 * @return What the reader returned, or null if the tier does not hold the
+	 *         key or the value was evicted while it was read
+	 * @throws IOException
+	 *             If the reader could not read the value
+	 * @throws ClassNotFoundException
+	 *             If the class of the value is not available
+	 */
+	public <T> T read(Object key, TierReader<T> reader)
+		throws IOException, ClassNotFoundException;
+
+	/**
+	 * Stores the serialized value of a key, replacing any held before. Values
+	 * the tier has no room for are not stored.
+	 * 
+	 * @param key
+	 *            The key
+	 * @param data
+	 *            The array holding the value
+	 * @param offset
+	 *            The offset of the value in the array
+	 * @param length
+	 *            The length of the value
+	 */
+	public void put(Object key, byte[] data, int offset, int length);
+
+	/**
+	 * Removes the value of a key.
+	 * 
+	 * @param key
+	 *            The key
+	 */
+	public void remove(Object key);
+
+	/**
+	 * Removes every value.
+	 */
+	public void clear();
+
+	/**
+	 * @return The number of values held
+	 */
+	public int getEntryCount();
+
+	/**
+	 * @return The number of bytes used to hold values
+	 */
+	public long getUsedBytes();
+}
@@ -0,0 +1,541 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.tier;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link LocalTier} holding values in memory mapped segment files on local
+ * disk, which survive restarts so a new instance starts warm.
+ * 
+ * Puts and removes are appended to the newest segment as records, and an
+ * in-memory index maps each key to its latest record. Reads return a view of
+ * the mapped segment, so values are deserialized straight from the page cache
+ * without being copied. On startup the segments are replayed, oldest first, to
+ * rebuild the index, stopping at the first torn or corrupt record of each.
+ * 
+ * When the newest segment fills up a new one is started. Segments are then
+ * compacted oldest first, copying their live records forward, while the
+ * segments exceed the size cap or the oldest is mostly dead. Going oldest
+ * first lets compaction drop removal records, as no older segment is left
+ * holding a value they remove. Copies stop once the new segment is half full,
+ * dropping the remaining live records, which leaves room for the record that
+ * started the segment. Values therefore take at most half a segment.
+ * 
+ * Keys must be serializable. Writes are not forced to disk on every put, so a
+ * crash can lose the latest values, which only costs a read from the table.
+ * Call {@link #close()} when the tier is no longer used.
+ * 
+ * @author cdelashmutt
+ */
+public class MappedDiskTier
+	implements LocalTier, Closeable
+{
+	private Logger log = LoggerFactory.getLogger(MappedDiskTier.class);
+
+	private static final Pattern SEGMENT_NAME = Pattern
+			.compile("segment-(\\d+)\\.dat");
+
+	private static final byte PUT = 1;
+
+	private static final byte REMOVE = 2;
+
+	/**
+	 * Type, key length, value length and CRC
+	 */
+	private static final int HEADER_SIZE = 13;
+
+	private final File directory;
+
+	private final long maxSize;
+
+	private final int segmentSize;
+
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+	private final Map<Object, Location> index = new ConcurrentHashMap<Object, Location>();
+
+	private int nextSegmentId;
+
+	/**
+	 * Opens a tier with 64 MB segments.
+	 * 
+	 * @param directory
+	 *            The directory holding the segment files of this tier only
+	 * @param maxSize
+	 *            The disk space in bytes the segments may use
+	 * @throws IOException
+	 *             If the segments cannot be opened
+	 */
+	public MappedDiskTier(File directory, long maxSize)
+		throws IOException
+	{
+		this(directory, maxSize, 64 * 1024 * 1024);
+	}
+
+	/**
+	 * Opens a tier, replaying any segments left in the directory.
+	 * 
+	 * @param directory
+	 *            The directory holding the segment files of this tier only
+	 * @param maxSize
+	 *            The disk space in bytes the segments may use
+	 * @param segmentSize
+	 *            The size in bytes of each segment file, half of which bounds
+	 *            the size of a value
+	 * @throws IOException
+	 *             If the segments cannot be opened
+	 */
+	public MappedDiskTier(File directory, long maxSize, int segmentSize)
+		throws IOException
+	{
+		if (segmentSize <= HEADER_SIZE || maxSize < 2L * segmentSize)
+			throw new IllegalArgumentException(
+					"The size cap must hold at least two segments");
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.segmentSize = segmentSize;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create directory " + directory);
+		recover();
+	}
+
+	private synchronized void recover()
+		throws IOException
+	{
+		List<Integer> ids = new ArrayList<Integer>();
+		File[] files = directory.listFiles();
+		for (File file : files == null ? new File[0] : files)
+		{
+			Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+			if (matcher.matches())
+				ids.add(Integer.valueOf(matcher.group(1)));
+		}
+		Collections.sort(ids);
+		for (int id : ids)
+		{
+			Segment segment = new Segment(id);
+			segments.add(segment);
+			replay(segment);
+			nextSegmentId = id + 1;
+		}
+		if (segments.isEmpty())
+			segments.add(new Segment(nextSegmentId++));
+		log.info("Recovered " + index.size() + " entries from "
+				+ segments.size() + " segments in " + directory);
+	}
+
+	private void replay(Segment segment)
+	{
+		ByteBuffer buffer = segment.buffer.duplicate();
+		int position = 0;
+		while (position + HEADER_SIZE <= segmentSize)
+		{
+			buffer.clear();
+			buffer.position(position);
+			byte type = buffer.get();
+			int keyLength = buffer.getInt();
+			int valueLength = buffer.getInt();
+			int crc = buffer.getInt();
+			if ((type != PUT && type != REMOVE) || keyLength <= 0
+					|| valueLength < 0
+					|| (long) position + HEADER_SIZE + keyLength + valueLength > segmentSize
+					|| checksum(buffer, position + HEADER_SIZE, keyLength
+							+ valueLength) != crc)
+				break;
+			int recordSize = HEADER_SIZE + keyLength + valueLength;
+			byte[] keyData = new byte[keyLength];
+			buffer.position(position + HEADER_SIZE);
+			buffer.get(keyData);
+			try
+			{
+				Object key = new ObjectInputStream(new ByteArrayInputStream(
+						keyData)).readObject();
+				if (type == PUT)
+					apply(key, new Location(segment, position, keyLength,
+							valueLength));
+				else
+					apply(key, null);
+			}
+			catch (Exception e)
+			{
+				log.warn("Skipping record with an unreadable key in "
+						+ segment.file, e);
+			}
+			position += recordSize;
+		}
+		segment.writePosition = position;
+	}
+
+	private static int checksum(ByteBuffer buffer, int offset, int length)
+	{
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[Math.min(length, 8192)];
+		ByteBuffer view = buffer.duplicate();
+		view.clear();
+		view.position(offset);
+		int remaining = length;
+		while (remaining > 0)
+		{
+			int count = Math.min(remaining, chunk.length);
+			view.get(chunk, 0, count);
+			crc.update(chunk, 0, count);
+			remaining -= count;
+		}
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Points a key at a record, or removes it, keeping the live byte counts of
+	 * the segments.
+	 */
+	private void apply(Object key, Location location)
+	{
+		Location previous = location == null ? index.remove(key) : index.put(
+				key, location);
+		if (previous != null)
+			previous.segment.liveBytes -= previous.getRecordSize();
+		if (location != null)
+			location.segment.liveBytes += location.getRecordSize();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.tier.LocalTier#get(java.lang.Object)
+	 */
+	@Override
+	public ByteBuffer get(Object key)
+	{
+		Location location = index.get(key);
+		if (location == null)
+			return null;
+		// A view of the mapping, which stays valid after compaction
+		ByteBuffer view = location.segment.buffer.asReadOnlyBuffer();
+		int start = location.getValueOffset();
+		view.limit(start + location.valueLength);
+		view.position(start);
+		return view;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.tier.LocalTier#read(java.lang.Object, com.gopivotal.spring.sqlfirecache.tier.TierReader)
+	 */
+	@Override
+	public <T> T read(Object key, TierReader<T> reader)
+		throws IOException, ClassNotFoundException
+	{
+		ByteBuffer view = get(key);
+		if (view == null)
+			return null;
+		return reader.read(new ByteBufferInputStream(view), view.remaining());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.tier.LocalTier#put(java.lang.Object, byte[], int, int)
+	 */
+	@Override
+	public synchronized void put(Object key, byte[] data, int offset,
+			int length)
+	{
+		byte[] keyData = serializeKey(key);
+		if (keyData == null
+				|| HEADER_SIZE + keyData.length + length > segmentSize / 2)
+		{
+			// Too large to hold, and what is held is now stale
+			remove(key);
+			return;
+		}
+		Location location = append(PUT, keyData, data, offset, length, true);
+		if (location != null)
+			apply(key, location);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.tier.LocalTier#remove(java.lang.Object)
+	 */
+	@Override
+	public synchronized void remove(Object key)
+	{
+		if (!index.containsKey(key))
+			return;
+		byte[] keyData = serializeKey(key);
+		if (keyData == null)
+			return;
+		append(REMOVE, keyData, null, 0, 0, true);
+		apply(key, null);
+	}
+
+	private byte[] serializeKey(Object key)
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(key);
+			out.close();
+			return bytes.toByteArray();
+		}
+		catch (IOException e)
+		{
+			log.warn("Cannot hold key " + key + " on disk", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Appends a record to the newest segment, starting a new one when it is
+	 * full. Records copied by compaction only fill half of a segment.
+	 * 
+	 * @return The location of the record, or null if it could not be written
+	 */
+	private Location append(byte type, byte[] keyData, byte[] data,
+			int offset, int length, boolean mayCompact)
+	{
+		Segment segment = segments.getLast();
+		int recordSize = HEADER_SIZE + keyData.length + length;
+		int limit = mayCompact ? segmentSize : segmentSize / 2;
+		if (segment.writePosition + recordSize > limit)
+		{
+			if (!mayCompact)
+				return null;
+			segment = roll();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(keyData);
+		if (length > 0)
+			crc.update(data, offset, length);
+		ByteBuffer buffer = segment.buffer.duplicate();
+		buffer.clear();
+		buffer.position(segment.writePosition);
+		buffer.put(type).putInt(keyData.length).putInt(length)
+				.putInt((int) crc.getValue()).put(keyData);
+		if (length > 0)
+			buffer.put(data, offset, length);
+		Location location = new Location(segment, segment.writePosition,
+				keyData.length, length);
+		segment.writePosition += recordSize;
+		return location;
+	}
+
+	private Segment roll()
+	{
+		try
+		{
+			segments.add(new Segment(nextSegmentId++));
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("Cannot create a segment in "
+					+ directory, e);
+		}
+		while (segments.size() > 1
+				&& ((long) segments.size() * segmentSize > maxSize || segments
+						.getFirst().liveBytes * 2 < segmentSize))
+		{
+			compactOldest();
+		}
+		return segments.getLast();
+	}
+
+	private void compactOldest()
+	{
+		Segment oldest = segments.removeFirst();
+		ByteBuffer buffer = oldest.buffer.duplicate();
+		int copied = 0;
+		int dropped = 0;
+		for (Map.Entry<Object, Location> entry : index.entrySet())
+		{
+			Location location = entry.getValue();
+			if (location.segment != oldest)
+				continue;
+			byte[] keyData = new byte[location.keyLength];
+			byte[] value = new byte[location.valueLength];
+			buffer.clear();
+			buffer.position(location.offset + HEADER_SIZE);
+			buffer.get(keyData).get(value);
+			Location moved = append(PUT, keyData, value, 0, value.length,
+					false);
+			if (moved != null)
+			{
+				apply(entry.getKey(), moved);
+				copied++;
+			}
+			else
+			{
+				apply(entry.getKey(), null);
+				dropped++;
+			}
+		}
+		oldest.delete();
+		log.debug("Compacted " + oldest.file + ", copying " + copied
+				+ " entries and dropping " + dropped);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.tier.LocalTier#clear()
+	 */
+	@Override
+	public synchronized void clear()
+	{
+		index.clear();
+		for (Segment segment : segments)
+		{
+			segment.delete();
+		}
+		segments.clear();
+		try
+		{
+			segments.add(new Segment(nextSegmentId++));
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("Cannot create a segment in "
+					+ directory, e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.tier.LocalTier#getEntryCount()
+	 */
+	@Override
+	public int getEntryCount()
+	{
+		return index.size();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.tier.LocalTier#getUsedBytes()
+	 */
+	@Override
+	public synchronized long getUsedBytes()
+	{
+		long used = 0;
+		for (Segment segment : segments)
+		{
+			used += segment.liveBytes;
+		}
+		return used;
+	}
+
+	/**
+	 * @return the number of segment files
+	 */
+	public synchronized int getSegmentCount()
+	{
+		return segments.size();
+	}
+
+	/**
+	 * Forces the segments to disk.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		for (Segment segment : segments)
+		{
+			segment.buffer.force();
+		}
+	}
+
+	private static final class Location
+	{
+		final Segment segment;
+
+		final int offset;
+
+		final int keyLength;
+
+		final int valueLength;
+
+		Location(Segment segment, int offset, int keyLength, int valueLength)
+		{
+			this.segment = segment;
+			this.offset = offset;
+			this.keyLength = keyLength;
+			this.valueLength = valueLength;
+		}
+
+		int getValueOffset()
+		{
+			return offset + HEADER_SIZE + keyLength;
+		}
+
+		int getRecordSize()
+		{
+			return HEADER_SIZE + keyLength + valueLength;
+		}
+	}
+
+	private final class Segment
+	{
+		final File file;
+
+		final MappedByteBuffer buffer;
+
+		int writePosition;
+
+		long liveBytes;
+
+		Segment(int id)
+			throws IOException
+		{
+			file = new File(directory, "segment-" + id + ".dat");
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try
+			{
+				// New files read as zeros, which ends the replay
+				raf.setLength(segmentSize);
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+						0, segmentSize);
+			}
+			finally
+			{
+				// The mapping stays valid once the file is closed
+				raf.close();
+			}
+		}
+
+		void delete()
+		{
+			if (!file.delete())
+				log.warn("Could not delete " + file);
+		}
+	}
+}
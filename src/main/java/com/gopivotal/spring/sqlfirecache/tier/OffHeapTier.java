@@ -0,0 +1,561 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.tier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link LocalTier} holding values in direct memory, outside the Java heap,
+ * so large tiers add no long lived objects for the garbage collector to scan.
+ * 
+ * Keys are spread over segments, each with its own lock, index and share of
+ * the capacity. A segment divides its memory into fixed size blocks,
+ * allocated in slabs on first use, and a value takes as many blocks as it
+ * needs. Each segment evicts with a segmented LRU: new values enter a
+ * probationary list, values read again move to a protected list holding up to
+ * 80% of the blocks, and values evicted from it drop back to probation. A
+ * burst of values read once so only displaces other values read once.
+ * 
+ * {@link #get(Object)} copies a value to the heap. {@link #read(Object,
+ * TierReader)} reads it in place from read-only views of its blocks, taken
+ * under the segment lock. The value is checked to still be held once it has
+ * been read, and a read of a value evicted meanwhile, whose blocks may have
+ * been reused, is discarded as a miss.
+ * 
+ * @author cdelashmutt
+ */
+public class OffHeapTier
+	implements LocalTier
+{
+	private static final int MAX_SLAB_SIZE = 1 << 30;
+
+	private static final int PROTECTED_PERCENT = 80;
+
+	private final Segment[] segments;
+
+	private final int blockSize;
+
+	private final long capacity;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Creates a tier with 16 segments and 512 byte blocks.
+	 * 
+	 * @param capacity
+	 *            The direct memory in bytes the tier may use
+	 */
+	public OffHeapTier(long capacity)
+	{
+		this(capacity, 16, 512);
+	}
+
+	/**
+	 * Creates a tier.
+	 * 
+	 * @param capacity
+	 *            The direct memory in bytes the tier may use
+	 * @param segmentCount
+	 *            The number of independently locked segments
+	 * @param blockSize
+	 *            The size in bytes of the blocks values are stored in. Each
+	 *            value wastes half a block on average.
+	 */
+	public OffHeapTier(long capacity, int segmentCount, int blockSize)
+	{
+		if (segmentCount < 1 || blockSize < 1)
+			throw new IllegalArgumentException(
+					"Segment count and block size must be positive");
+		long blocks = capacity / segmentCount / blockSize;
+		if (blocks < 1 || blocks > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Capacity " + capacity
+					+ " gives " + blocks + " blocks per segment");
+		this.capacity = capacity;
+		this.blockSize = blockSize;
+		segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++)
+		{
+			segments[i] = new Segment((int) blocks);
+		}
+	}
+
+	private Segment segmentFor(Object key)
+	{
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		return segments[(hash & Integer.MAX_VALUE) % segments.length];
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.tier.LocalTier#get(java.lang.Object)
+	 */
+	@Override
+	public ByteBuffer get(Object key)
+	{
+		byte[] data = segmentFor(key).get(key);
+		if (data == null)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return ByteBuffer.wrap(data);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.tier.LocalTier#read(java.lang.Object, com.gopivotal.spring.sqlfirecache.tier.TierReader)
+	 */
+	@Override
+	public <T> T read(Object key, TierReader<T> reader)
+		throws IOException, ClassNotFoundException
+	{
+		Segment segment = segmentFor(key);
+		Entry entry = segment.lookup(key);
+		if (entry == null)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+		T value;
+		try
+		{
+			value = reader.read(new BlocksInputStream(segment.views(entry)),
+					entry.length);
+		}
+		catch (IOException e)
+		{
+			if (!segment.isHeld(entry))
+				return discarded();
+			throw e;
+		}
+		catch (ClassNotFoundException e)
+		{
+			if (!segment.isHeld(entry))
+				return discarded();
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			if (!segment.isHeld(entry))
+				return discarded();
+			throw e;
+		}
+		if (!segment.isHeld(entry))
+			return discarded();
+		hits.incrementAndGet();
+		return value;
+	}
+
+	private <T> T discarded()
+	{
+		// The blocks were reused while reading
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.tier.LocalTier#put(java.lang.Object, byte[], int, int)
+	 */
+	@Override
+	public void put(Object key, byte[] data, int offset, int length)
+	{
+		segmentFor(key).put(key, data, offset, length);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.tier.LocalTier#remove(java.lang.Object)
+	 */
+	@Override
+	public void remove(Object key)
+	{
+		segmentFor(key).remove(key);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.tier.LocalTier#clear()
+	 */
+	@Override
+	public void clear()
+	{
+		for (Segment segment : segments)
+		{
+			segment.clear();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.tier.LocalTier#getEntryCount()
+	 */
+	@Override
+	public int getEntryCount()
+	{
+		int count = 0;
+		for (Segment segment : segments)
+		{
+			count += segment.getEntryCount();
+		}
+		return count;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.gopivotal.spring.sqlfirecache.tier.LocalTier#getUsedBytes()
+	 */
+	@Override
+	public long getUsedBytes()
+	{
+		long used = 0;
+		for (Segment segment : segments)
+		{
+			used += segment.getUsedBlocks();
+		}
+		return used * blockSize;
+	}
+
+	/**
+	 * @return the direct memory in bytes the tier may use
+	 */
+	public long getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * @return the number of reads served by the tier
+	 */
+	public long getHitCount()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of reads of keys the tier did not hold
+	 */
+	public long getMissCount()
+	{
+		return misses.get();
+	}
+
+	private static final class Entry
+	{
+		final int[] blocks;
+
+		final int length;
+
+		/**
+		 * Set once the blocks are freed, guarded by the segment lock
+		 */
+		boolean released;
+
+		Entry(int[] blocks, int length)
+		{
+			this.blocks = blocks;
+			this.length = length;
+		}
+	}
+
+	private final class Segment
+	{
+		private final int blockCount;
+
+		private final int blocksPerSlab;
+
+		private final ByteBuffer[] slabs;
+
+		private final int[] freeBlocks;
+
+		private int freeCount;
+
+		private final int protectedLimit;
+
+		private int protectedBlocks;
+
+		private final LinkedHashMap<Object, Entry> probation = new LinkedHashMap<Object, Entry>(
+				16, 0.75f, true);
+
+		private final LinkedHashMap<Object, Entry> protectedEntries = new LinkedHashMap<Object, Entry>(
+				16, 0.75f, true);
+
+		Segment(int blockCount)
+		{
+			this.blockCount = blockCount;
+			blocksPerSlab = Math.min(blockCount, MAX_SLAB_SIZE / blockSize);
+			slabs = new ByteBuffer[(blockCount + blocksPerSlab - 1)
+					/ blocksPerSlab];
+			freeBlocks = new int[blockCount];
+			protectedLimit = (int) ((long) blockCount * PROTECTED_PERCENT / 100);
+			reset();
+		}
+
+		private void reset()
+		{
+			// Hand out low blocks first, so slabs are only allocated as needed
+			for (int i = 0; i < blockCount; i++)
+			{
+				freeBlocks[i] = blockCount - 1 - i;
+			}
+			freeCount = blockCount;
+			protectedBlocks = 0;
+			for (Entry entry : probation.values())
+			{
+				entry.released = true;
+			}
+			for (Entry entry : protectedEntries.values())
+			{
+				entry.released = true;
+			}
+			probation.clear();
+			protectedEntries.clear();
+		}
+
+		/**
+		 * Finds the entry of a key, counting it as read.
+		 */
+		synchronized Entry lookup(Object key)
+		{
+			Entry entry = protectedEntries.get(key);
+			if (entry == null)
+			{
+				entry = probation.remove(key);
+				if (entry == null)
+					return null;
+				protect(key, entry);
+			}
+			return entry;
+		}
+
+		/**
+		 * Returns read-only views of the blocks of an entry, merging blocks
+		 * that follow each other in a slab.
+		 */
+		synchronized ByteBuffer[] views(Entry entry)
+		{
+			List<ByteBuffer> views = new ArrayList<ByteBuffer>(1);
+			int remaining = entry.length;
+			int i = 0;
+			while (i < entry.blocks.length)
+			{
+				int first = entry.blocks[i];
+				int run = 1;
+				while (i + run < entry.blocks.length
+						&& entry.blocks[i + run] == first + run
+						&& (first + run) % blocksPerSlab != 0)
+				{
+					run++;
+				}
+				ByteBuffer view = slabFor(first).asReadOnlyBuffer();
+				int count = Math.min(run * blockSize, remaining);
+				view.limit(view.position() + count);
+				views.add(view);
+				remaining -= count;
+				i += run;
+			}
+			return views.toArray(new ByteBuffer[views.size()]);
+		}
+
+		synchronized boolean isHeld(Entry entry)
+		{
+			return !entry.released;
+		}
+
+		synchronized byte[] get(Object key)
+		{
+			Entry entry = lookup(key);
+			if (entry == null)
+				return null;
+			byte[] data = new byte[entry.length];
+			int filled = 0;
+			for (int block : entry.blocks)
+			{
+				ByteBuffer slab = slabFor(block);
+				int count = Math.min(blockSize, entry.length - filled);
+				slab.get(data, filled, count);
+				filled += count;
+			}
+			return data;
+		}
+
+		private void protect(Object key, Entry entry)
+		{
+			protectedEntries.put(key, entry);
+			protectedBlocks += entry.blocks.length;
+			Iterator<Map.Entry<Object, Entry>> eldest = protectedEntries
+					.entrySet().iterator();
+			while (protectedBlocks > protectedLimit && eldest.hasNext())
+			{
+				Map.Entry<Object, Entry> demoted = eldest.next();
+				eldest.remove();
+				protectedBlocks -= demoted.getValue().blocks.length;
+				probation.put(demoted.getKey(), demoted.getValue());
+			}
+		}
+
+		synchronized void put(Object key, byte[] data, int offset, int length)
+		{
+			remove(key);
+			int needed = (length + blockSize - 1) / blockSize;
+			if (needed > blockCount)
+				return;
+			while (freeCount < needed)
+			{
+				evictOne();
+			}
+			int[] blocks = new int[needed];
+			int written = 0;
+			for (int i = 0; i < needed; i++)
+			{
+				blocks[i] = freeBlocks[--freeCount];
+				ByteBuffer slab = slabFor(blocks[i]);
+				int count = Math.min(blockSize, length - written);
+				slab.put(data, offset + written, count);
+				written += count;
+			}
+			probation.put(key, new Entry(blocks, length));
+		}
+
+		private void evictOne()
+		{
+			LinkedHashMap<Object, Entry> victims = probation.isEmpty() ? protectedEntries
+					: probation;
+			Iterator<Entry> eldest = victims.values().iterator();
+			Entry entry = eldest.next();
+			eldest.remove();
+			if (victims == protectedEntries)
+				protectedBlocks -= entry.blocks.length;
+			release(entry);
+		}
+
+		private void release(Entry entry)
+		{
+			entry.released = true;
+			for (int block : entry.blocks)
+			{
+				freeBlocks[freeCount++] = block;
+			}
+		}
+
+		/**
+		 * Returns the slab holding a block, positioned at the block.
+		 */
+		private ByteBuffer slabFor(int block)
+		{
+			int index = block / blocksPerSlab;
+			if (slabs[index] == null)
+			{
+				int blocks = Math.min(blocksPerSlab, blockCount - index
+						* blocksPerSlab);
+				slabs[index] = ByteBuffer.allocateDirect(blocks * blockSize);
+			}
+			ByteBuffer slab = slabs[index];
+			slab.clear();
+			slab.position((block % blocksPerSlab) * blockSize);
+			return slab;
+		}
+
+		synchronized void remove(Object key)
+		{
+			Entry entry = probation.remove(key);
+			if (entry == null)
+			{
+				entry = protectedEntries.remove(key);
+				if (entry == null)
+					return;
+				protectedBlocks -= entry.blocks.length;
+			}
+			release(entry);
+		}
+
+		synchronized void clear()
+		{
+			// Slabs are kept for reuse
+			reset();
+		}
+
+		synchronized int getEntryCount()
+		{
+			return probation.size() + protectedEntries.size();
+		}
+
+		synchronized int getUsedBlocks()
+		{
+			return blockCount - freeCount;
+		}
+	}
+
+	/**
+	 * Reads the views of the blocks of a value one after the other.
+	 */
+	private static final class BlocksInputStream
+		extends InputStream
+	{
+		private final ByteBuffer[] views;
+
+		private int current;
+
+		BlocksInputStream(ByteBuffer[] views)
+		{
+			this.views = views;
+		}
+
+		private ByteBuffer next()
+		{
+			while (current < views.length && !views[current].hasRemaining())
+			{
+				current++;
+			}
+			return current < views.length ? views[current] : null;
+		}
+
+		@Override
+		public int read()
+		{
+			ByteBuffer view = next();
+			return view == null ? -1 : view.get() & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len)
+		{
+			if (len == 0)
+				return 0;
+			ByteBuffer view = next();
+			if (view == null)
+				return -1;
+			int count = Math.min(len, view.remaining());
+			view.get(b, off, count);
+			return count;
+		}
+
+		@Override
+		public int available()
+		{
+			ByteBuffer view = next();
+			return view == null ? 0 : view.remaining();
+		}
+	}
+}
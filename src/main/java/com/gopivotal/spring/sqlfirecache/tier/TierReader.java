@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.tier;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a value held by a {@link LocalTier} in place, for
+ * {@link LocalTier#read(Object, TierReader)}.
+ * 
+ * @param <T>
+ *            The type read from the value
+ * @author cdelashmutt
+ */
+public interface TierReader<T>
+{
+	/**
+	 * Reads a value. The stream may read memory the tier reuses once the
+	 * value is evicted, so it must not be used after this method returns.
+	 * 
+	 * @param in
+	 *            The stream of the serialized value
+	 * @param length
+	 *            The length of the value
+	 * @return What was read from the value
+	 * @throws IOException
+	 *             If the value could not be read
+	 * @throws ClassNotFoundException
+	 *             If the class of the value is not available
+	 */
+	public T read(InputStream in, int length)
+		throws IOException, ClassNotFoundException;
+}
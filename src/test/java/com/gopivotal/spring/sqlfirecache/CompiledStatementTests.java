@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+/**
+ * Checks that compiled statements bind each parameter from the slot that
+ * provides it.
+ * 
+ * @author cdelashmutt
+ */
+public class CompiledStatementTests
+{
+	private SingleConnectionDataSource dataSource;
+
+	private JdbcTemplate template;
+
+	@Before
+	public void createTable()
+	{
+		dataSource = new SingleConnectionDataSource(
+				"jdbc:h2:mem:compiled;DB_CLOSE_DELAY=-1", "sa", "", true);
+		template = new JdbcTemplate(dataSource);
+		template.execute("CREATE TABLE compiled (id INTEGER PRIMARY KEY, name VARCHAR(20))");
+	}
+
+	@After
+	public void dropTable()
+	{
+		template.execute("DROP TABLE compiled");
+		dataSource.destroy();
+	}
+
+	@Test
+	public void testSlotsFollowTheProvidingSource()
+	{
+		CompiledStatement insert = new CompiledStatement(
+				"INSERT INTO compiled (id, name) VALUES (:id, :name)");
+		template.update(insert.getSql(), insert
+				.bind(new PrioritySqlParameterSource(new MapSqlParameterSource(
+						"id", 1), new MapSqlParameterSource("name", "one"))));
+		// Same number of slots, with the parameters provided the other way round
+		template.update(insert.getSql(), insert
+				.bind(new PrioritySqlParameterSource(new MapSqlParameterSource(
+						"name", "two"), new MapSqlParameterSource("id", 2))));
+		assertThat(template.queryForObject(
+				"SELECT name FROM compiled WHERE id=2", String.class),
+				equalTo("two"));
+		assertThat(template.queryForObject(
+				"SELECT name FROM compiled WHERE id=1", String.class),
+				equalTo("one"));
+	}
+
+	@Test
+	public void testHigherPrioritySourceWins()
+	{
+		CompiledStatement insert = new CompiledStatement(
+				"INSERT INTO compiled (id, name) VALUES (:id, :name)");
+		template.update(insert.getSql(), insert
+				.bind(new PrioritySqlParameterSource(new MapSqlParameterSource(
+						"id", 1), new MapSqlParameterSource("name", "one"))));
+		// The second source still has the name, but the first now has it too
+		template.update(insert.getSql(), insert
+				.bind(new PrioritySqlParameterSource(new MapSqlParameterSource(
+						"id", 2).addValue("name", "two"),
+						new MapSqlParameterSource("name", "ignored"))));
+		assertThat(template.queryForObject(
+				"SELECT name FROM compiled WHERE id=2", String.class),
+				equalTo("two"));
+	}
+
+	@Test
+	public void testResolvedOncePerShape()
+	{
+		CompiledStatement insert = new CompiledStatement(
+				"INSERT INTO compiled (id, name) VALUES (:id, :name)");
+		CountingSource first = new CountingSource(1, "one");
+		template.update(insert.getSql(), insert
+				.bind(new PrioritySqlParameterSource(first)));
+		assertThat(first.checks, equalTo(2));
+		CountingSource second = new CountingSource(2, "two");
+		template.update(insert.getSql(), insert
+				.bind(new PrioritySqlParameterSource(second)));
+		assertThat(second.checks, equalTo(0));
+		assertThat(template.queryForObject(
+				"SELECT name FROM compiled WHERE id=2", String.class),
+				equalTo("two"));
+	}
+
+	/**
+	 * Provides an id and a name, counting the checks for a parameter.
+	 */
+	private static class CountingSource
+		implements ShapedSqlParameterSource
+	{
+		private final Object id;
+
+		private final Object name;
+
+		private int checks;
+
+		CountingSource(Object id, Object name)
+		{
+			this.id = id;
+			this.name = name;
+		}
+
+		@Override
+		public Object getShape()
+		{
+			return CountingSource.class;
+		}
+
+		@Override
+		public boolean hasValue(String paramName)
+		{
+			checks++;
+			return "id".equals(paramName) || "name".equals(paramName);
+		}
+
+		@Override
+		public Object getValue(String paramName)
+		{
+			return "id".equals(paramName) ? id : name;
+		}
+
+		@Override
+		public int getSqlType(String paramName)
+		{
+			return TYPE_UNKNOWN;
+		}
+
+		@Override
+		public String getTypeName(String paramName)
+		{
+			return null;
+		}
+	}
+}
@@ -18,6 +18,9 @@
  */
 package com.gopivotal.spring.sqlfirecache;
 
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -49,6 +52,7 @@ public class ConfigurableCacheTests
 		Book book = new Book(1, "Test");
 		
 		cache.put(book.getId(), book);
+		assertThat(cache.get(book.getId()).get(), equalTo((Object) book));
 	}
 
 }
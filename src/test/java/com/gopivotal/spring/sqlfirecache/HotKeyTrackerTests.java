@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Checks estimates, top keys and decay of the hot key tracker.
+ * 
+ * @author cdelashmutt
+ */
+public class HotKeyTrackerTests
+{
+	@Test
+	public void testTopKeys()
+	{
+		HotKeyTracker tracker = new HotKeyTracker(3, 1024, 1000000);
+		for (int round = 0; round < 100; round++)
+		{
+			tracker.record("hot");
+			if (round % 2 == 0)
+				tracker.record("warm");
+			if (round % 4 == 0)
+				tracker.record("mild");
+			// Keys read once each
+			tracker.record(round);
+		}
+		assertThat(tracker.estimate("hot"), greaterThanOrEqualTo(100));
+		assertThat(tracker.estimate("warm"), greaterThanOrEqualTo(50));
+		assertThat(tracker.estimate("missing"), lessThan(5));
+		Map<Object, Integer> top = tracker.getTopKeys();
+		assertThat(new ArrayList<Object>(top.keySet()),
+				equalTo(Arrays.<Object> asList("hot", "warm", "mild")));
+	}
+
+	@Test
+	public void testDecay()
+	{
+		HotKeyTracker tracker = new HotKeyTracker(2, 256, 100);
+		for (int i = 0; i < 99; i++)
+		{
+			tracker.record("old");
+		}
+		// The hundredth read halves every count
+		tracker.record("new");
+		assertThat(tracker.estimate("old"), lessThan(51));
+		for (int i = 0; i < 80; i++)
+		{
+			tracker.record("new");
+		}
+		assertThat(tracker.getTopKeys().keySet().iterator().next(),
+				equalTo((Object) "new"));
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sql.DataSource;
+
+import org.jmock.Expectations;
+import org.jmock.Sequence;
+import org.jmock.api.Invocation;
+import org.jmock.auto.Auto;
+import org.jmock.auto.Mock;
+import org.jmock.integration.junit4.JUnitRuleMockery;
+import org.jmock.lib.action.CustomAction;
+import org.jmock.lib.concurrent.Synchroniser;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Tests for the one-shot schema bootstrap of SQLFireCacheManager
+ * 
+ * @author cdelashmutt
+ */
+public class SQLFireCacheManagerTests
+{
+
+	@Rule
+	public final JUnitRuleMockery context = new JUnitRuleMockery()
+	{
+		{
+			// Tables may be created on several initialization threads
+			setThreadingPolicy(new Synchroniser());
+		}
+	};
+	@Mock
+	private DataSource dataSource;
+	@Mock
+	private Connection con;
+	@Mock
+	private Statement stm;
+	@Mock
+	private ResultSet schemaRS;
+	@Auto
+	private Sequence schemaRSSeq;
+	@Mock
+	private ResultSet tableRS;
+	@Auto
+	private Sequence tableRSSeq;
+	@Auto
+	private Sequence batchSeq;
+	@Mock
+	private ResultSet rescanSchemaRS;
+	@Mock
+	private ResultSet rescanTableRS;
+	@Auto
+	private Sequence catalogSeq;
+
+	private SerializedObjectCache createCache(String name)
+		throws Exception
+	{
+		SerializedObjectCache cache = new SerializedObjectCache();
+		cache.setName(name);
+		cache.setDataSource(dataSource);
+		cache.setTableInitialization(TableInitialization.MANAGED);
+		cache.afterPropertiesSet();
+		return cache;
+	}
+
+	@Test
+	public void testSingleCatalogScan()
+	throws Exception
+	{
+		final SerializedObjectCache books = createCache("books");
+		final SerializedObjectCache authors = createCache("authors");
+		final SerializedObjectCache loans = createCache("loans");
+		context.checking(new Expectations() {{
+			oneOf(dataSource).getConnection(); will(returnValue(con));
+			oneOf(con).createStatement(); will(returnValue(stm));
+			oneOf(stm).executeQuery("select SCHEMANAME from SYS.SYSSCHEMAS"); will(returnValue(schemaRS));
+			oneOf(schemaRS).next(); inSequence(schemaRSSeq); will(returnValue(true));
+			oneOf(schemaRS).getString(1); inSequence(schemaRSSeq); will(returnValue("SPRINGCACHE"));
+			oneOf(schemaRS).next(); inSequence(schemaRSSeq); will(returnValue(false));
+			oneOf(schemaRS).close(); inSequence(schemaRSSeq);
+			oneOf(stm).executeQuery("select TABLESCHEMANAME, TABLENAME from SYS.SYSTABLES"); will(returnValue(tableRS));
+			oneOf(tableRS).next(); inSequence(tableRSSeq); will(returnValue(true));
+			oneOf(tableRS).getString(1); inSequence(tableRSSeq); will(returnValue("SPRINGCACHE"));
+			oneOf(tableRS).getString(2); inSequence(tableRSSeq); will(returnValue("AUTHORS"));
+			oneOf(tableRS).next(); inSequence(tableRSSeq); will(returnValue(false));
+			oneOf(tableRS).close(); inSequence(tableRSSeq);
+			oneOf(stm).addBatch("CREATE TABLE SPRINGCACHE.books (k_ID INTEGER, OBJECT BLOB, PRIMARY KEY(k_ID)) PARTITION BY PRIMARY KEY"); inSequence(batchSeq);
+			oneOf(stm).addBatch("CREATE TABLE SPRINGCACHE.loans (k_ID INTEGER, OBJECT BLOB, PRIMARY KEY(k_ID)) PARTITION BY PRIMARY KEY"); inSequence(batchSeq);
+			oneOf(stm).executeBatch(); inSequence(batchSeq); will(returnValue(new int[] { 0, 0 }));
+			oneOf(stm).close();
+			oneOf(con).close();
+		}});
+		SQLFireCacheManager manager = new SQLFireCacheManager();
+		manager.setDataSource(dataSource);
+		manager.setCaches(Arrays.asList(books, authors, loans));
+		manager.afterPropertiesSet();
+
+		assertSame(books, manager.getCache("books"));
+		assertTrue(books.isTableInitialized());
+		assertTrue(authors.isTableInitialized());
+		assertTrue(loans.isTableInitialized());
+	}
+
+	@Test
+	public void testSharedTableCreatedOnce()
+	throws Exception
+	{
+		final SerializedObjectCache books = createCache("books");
+		books.setSharedTableName("objects");
+		final SerializedObjectCache authors = createCache("authors");
+		authors.setSharedTableName("objects");
+		context.checking(new Expectations() {{
+			oneOf(dataSource).getConnection(); will(returnValue(con));
+			oneOf(con).createStatement(); will(returnValue(stm));
+			oneOf(stm).executeQuery("select SCHEMANAME from SYS.SYSSCHEMAS"); will(returnValue(schemaRS));
+			oneOf(schemaRS).next(); will(returnValue(false));
+			oneOf(schemaRS).close();
+			oneOf(stm).executeQuery("select TABLESCHEMANAME, TABLENAME from SYS.SYSTABLES"); will(returnValue(tableRS));
+			oneOf(tableRS).next(); will(returnValue(false));
+			oneOf(tableRS).close();
+			oneOf(stm).addBatch("CREATE SCHEMA SPRINGCACHE"); inSequence(batchSeq);
+			oneOf(stm).addBatch("CREATE TABLE SPRINGCACHE.objects (k_ID INTEGER, k_CACHE VARCHAR(128) NOT NULL, OBJECT BLOB, PRIMARY KEY(k_CACHE, k_ID)) PARTITION BY PRIMARY KEY"); inSequence(batchSeq);
+			oneOf(stm).executeBatch(); inSequence(batchSeq); will(returnValue(new int[] { 0, 0 }));
+			oneOf(stm).close();
+			oneOf(con).close();
+		}});
+		SQLFireCacheManager manager = new SQLFireCacheManager();
+		manager.setDataSource(dataSource);
+		manager.setCaches(Arrays.asList(books, authors));
+		manager.afterPropertiesSet();
+	}
+
+	/**
+	 * Hands the initialization threads a statement of their own, outside the
+	 * mockery, so a slow table does not hold up the others.
+	 */
+	private static class PoolStatement
+		extends CustomAction
+		implements InvocationHandler
+	{
+		private final Statement mainStatement;
+
+		private final Statement poolStatement = (Statement) Proxy
+				.newProxyInstance(getClass().getClassLoader(),
+						new Class<?>[] { Statement.class }, this);
+
+		private final Map<String, String> threads = new ConcurrentHashMap<String, String>();
+
+		PoolStatement(Statement mainStatement)
+		{
+			super("create statement");
+			this.mainStatement = mainStatement;
+		}
+
+		@Override
+		public Object invoke(Invocation invocation)
+			throws Throwable
+		{
+			return Thread.currentThread().getName()
+					.startsWith("sqlfire-cache-init-") ? poolStatement
+					: mainStatement;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable
+		{
+			if (!method.getName().equals("execute"))
+				return null;
+			String sql = (String) args[0];
+			threads.put(sql, Thread.currentThread().getName());
+			if (sql.contains(".loans "))
+				throw new SQLException("Creation failed");
+			if (sql.contains(".books "))
+				Thread.sleep(200);
+			return false;
+		}
+	}
+
+	@Test
+	public void testParallelTableCreation()
+	throws Exception
+	{
+		final SerializedObjectCache books = createCache("books");
+		final SerializedObjectCache authors = createCache("authors");
+		final SerializedObjectCache loans = createCache("loans");
+		final String booksDDL = "CREATE TABLE SPRINGCACHE.books (k_ID INTEGER, OBJECT BLOB, PRIMARY KEY(k_ID)) PARTITION BY PRIMARY KEY";
+		final String authorsDDL = "CREATE TABLE SPRINGCACHE.authors (k_ID INTEGER, OBJECT BLOB, PRIMARY KEY(k_ID)) PARTITION BY PRIMARY KEY";
+		final String loansDDL = "CREATE TABLE SPRINGCACHE.loans (k_ID INTEGER, OBJECT BLOB, PRIMARY KEY(k_ID)) PARTITION BY PRIMARY KEY";
+		final PoolStatement pool = new PoolStatement(stm);
+		context.checking(new Expectations() {{
+			allowing(dataSource).getConnection(); will(returnValue(con));
+			allowing(con).createStatement(); will(pool);
+			allowing(con).getMetaData(); will(returnValue(null));
+			allowing(con).close();
+			allowing(stm).close();
+			// The schema exists and no table does
+			oneOf(stm).executeQuery("select SCHEMANAME from SYS.SYSSCHEMAS"); inSequence(catalogSeq); will(returnValue(schemaRS));
+			oneOf(stm).executeQuery("select TABLESCHEMANAME, TABLENAME from SYS.SYSTABLES"); inSequence(catalogSeq); will(returnValue(tableRS));
+			oneOf(schemaRS).next(); inSequence(schemaRSSeq); will(returnValue(true));
+			oneOf(schemaRS).getString(1); inSequence(schemaRSSeq); will(returnValue("SPRINGCACHE"));
+			oneOf(schemaRS).next(); inSequence(schemaRSSeq); will(returnValue(false));
+			oneOf(schemaRS).close(); inSequence(schemaRSSeq);
+			oneOf(tableRS).next(); will(returnValue(false));
+			oneOf(tableRS).close();
+			// Creating loans on the pool fails, so the catalog is read again
+			// and loans is created on its own
+			oneOf(stm).executeQuery("select SCHEMANAME from SYS.SYSSCHEMAS"); inSequence(catalogSeq); will(returnValue(rescanSchemaRS));
+			oneOf(stm).executeQuery("select TABLESCHEMANAME, TABLENAME from SYS.SYSTABLES"); inSequence(catalogSeq); will(returnValue(rescanTableRS));
+			oneOf(rescanSchemaRS).next(); will(returnValue(true));
+			oneOf(rescanSchemaRS).getString(1); will(returnValue("SPRINGCACHE"));
+			oneOf(rescanSchemaRS).next(); will(returnValue(false));
+			oneOf(rescanSchemaRS).close();
+			oneOf(rescanTableRS).next(); will(returnValue(true));
+			oneOf(rescanTableRS).getString(1); will(returnValue("SPRINGCACHE"));
+			oneOf(rescanTableRS).getString(2); will(returnValue("BOOKS"));
+			oneOf(rescanTableRS).next(); will(returnValue(true));
+			oneOf(rescanTableRS).getString(1); will(returnValue("SPRINGCACHE"));
+			oneOf(rescanTableRS).getString(2); will(returnValue("AUTHORS"));
+			oneOf(rescanTableRS).next(); will(returnValue(false));
+			oneOf(rescanTableRS).close();
+			oneOf(stm).execute(loansDDL); will(returnValue(false));
+		}});
+		SQLFireCacheManager manager = new SQLFireCacheManager();
+		manager.setDataSource(dataSource);
+		manager.setInitializationThreads(2);
+		manager.setCaches(Arrays.asList(books, authors, loans));
+		manager.afterPropertiesSet();
+
+		assertThat(pool.threads.size(), equalTo(3));
+		assertThat(pool.threads.get(booksDDL), startsWith("sqlfire-cache-init-"));
+		assertThat(pool.threads.get(authorsDDL), startsWith("sqlfire-cache-init-"));
+		assertThat(pool.threads.get(loansDDL), startsWith("sqlfire-cache-init-"));
+		assertTrue(loans.isTableInitialized());
+
+		// Tables created on the pool are credited with their own time, and
+		// the table created after the failure with the whole time
+		Map<String, Long> times = manager.getInitializationTimes();
+		assertThat(times.get("books"), greaterThanOrEqualTo(200L));
+		assertThat(times.get("authors"), lessThan(times.get("books")));
+		assertThat(times.get("loans"), greaterThanOrEqualTo(times.get("books")));
+	}
+}
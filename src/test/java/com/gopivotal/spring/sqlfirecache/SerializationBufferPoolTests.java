@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+/**
+ * Checks buffer reuse and trimming in the serialization buffer pool.
+ * 
+ * @author cdelashmutt
+ */
+public class SerializationBufferPoolTests
+{
+	@Test
+	public void testReuseAndTrim()
+	{
+		SerializationBufferPool pool = new SerializationBufferPool();
+		pool.setInitialSize(16);
+		pool.setHighWaterMark(64);
+
+		SerializationBuffer buffer = pool.acquire();
+		buffer.write(new byte[32], 0, 32);
+		SerializationBuffer second = pool.acquire();
+		SerializationBuffer third = pool.acquire();
+		assertThat(second, not(sameInstance(buffer)));
+		assertThat(third, not(sameInstance(second)));
+		third.release();
+		second.release();
+		buffer.release();
+
+		SerializationBuffer reused = pool.acquire();
+		assertThat(reused, sameInstance(buffer));
+		assertThat(reused.size(), equalTo(0));
+		assertThat(reused.capacity(), equalTo(32));
+		reused.write(new byte[100], 0, 100);
+		reused.release();
+		assertThat(pool.acquire().capacity(), equalTo(16));
+	}
+}
@@ -18,6 +18,9 @@
  */
 package com.gopivotal.spring.sqlfirecache;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
@@ -78,6 +81,18 @@ public class SerializedObjectCacheCreateTests
 		cache.afterPropertiesSet();
 	}
 
+	@Test(expected = IllegalStateException.class)
+	public void testInlineThresholdTooLarge()
+	throws Exception
+	{
+		// Rejected before the database is touched
+		SerializedObjectCache cache = new SerializedObjectCache();
+		cache.setName("books");
+		cache.setDataSource(dataSource);
+		cache.setInlineThreshold(32673);
+		cache.afterPropertiesSet();
+	}
+
 	@Test
 	public void testCreateTable()
 	throws Exception
@@ -130,4 +145,62 @@ public class SerializedObjectCacheCreateTests
 		cache.setDataSource(dataSource);
 		cache.afterPropertiesSet();
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testCreateMultiplexedTable()
+	throws Exception
+	{
+		final SerializedObjectCache cache = new SerializedObjectCache();
+		cache.setName("books");
+		cache.setSharedTableName("objects");
+		context.checking(new Expectations() {{
+			oneOf(dataSource).getConnection(); will(returnValue(con));
+			oneOf(con).createStatement(); will(returnValue(stm));
+			oneOf(stm).executeQuery("select * from SYS.SYSSCHEMAS where SCHEMANAME='"+cache.getSchemaName()+"'"); will(returnValue(schemaRS));
+			oneOf(schemaRS).next(); inSequence(schemaRSSeq); will(returnValue(true));
+			oneOf(schemaRS).close(); inSequence(schemaRSSeq);
+			oneOf(stm).executeQuery("select * from SYS.SYSTABLES where TABLESCHEMANAME='"
+					+ cache.getSchemaName()
+					+ "' and TABLENAME='OBJECTS'"); will(returnValue(tableRS));
+			oneOf(tableRS).next(); inSequence(tableRSSeq); will(returnValue(false));
+			oneOf(tableRS).close(); inSequence(tableRSSeq);
+			oneOf(stm).execute("CREATE TABLE " + cache.getSchemaName() + ".objects (k_ID INTEGER, k_CACHE VARCHAR(128) NOT NULL, OBJECT BLOB, PRIMARY KEY(k_CACHE, k_ID)) PARTITION BY PRIMARY KEY");
+			oneOf(stm).close();
+			oneOf(con).close();
+		}});
+		cache.setDataSource(dataSource);
+		cache.afterPropertiesSet();
+	}
+
+	@Test
+	public void testLazyCreate()
+	throws Exception
+	{
+		final SerializedObjectCache cache = new SerializedObjectCache();
+		cache.setName("books");
+		cache.setTableInitialization(TableInitialization.LAZY);
+		cache.setDataSource(dataSource);
+		cache.afterPropertiesSet();
+		assertFalse(cache.isTableInitialized());
+
+		context.checking(new Expectations() {{
+			oneOf(dataSource).getConnection(); will(returnValue(con));
+			oneOf(con).createStatement(); will(returnValue(stm));
+			oneOf(stm).executeQuery("select * from SYS.SYSSCHEMAS where SCHEMANAME='"+cache.getSchemaName()+"'"); will(returnValue(schemaRS));
+			oneOf(schemaRS).next(); inSequence(schemaRSSeq); will(returnValue(true));
+			oneOf(schemaRS).close(); inSequence(schemaRSSeq);
+			oneOf(stm).executeQuery("select * from SYS.SYSTABLES where TABLESCHEMANAME='"
+					+ cache.getSchemaName()
+					+ "' and TABLENAME='"
+					+ cache.getName().toUpperCase() + "'"); will(returnValue(tableRS));
+			oneOf(tableRS).next(); inSequence(tableRSSeq); will(returnValue(true));
+			oneOf(tableRS).close(); inSequence(tableRSSeq);
+			oneOf(stm).close();
+			oneOf(con).close();
+		}});
+		cache.ensureTableInitialized();
+		cache.ensureTableInitialized();
+		assertTrue(cache.isTableInitialized());
+		assertTrue(cache.getInitializationTime() >= 0);
+	}
+}
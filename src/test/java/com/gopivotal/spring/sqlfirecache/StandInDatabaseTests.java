@@ -0,0 +1,898 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import com.gopivotal.spring.sqlfirecache.dialect.DerbyDialect;
+import com.gopivotal.spring.sqlfirecache.dialect.Dialect;
+import com.gopivotal.spring.sqlfirecache.dialect.H2Dialect;
+import com.gopivotal.spring.sqlfirecache.serialized.Book;
+import com.gopivotal.spring.sqlfirecache.serialized.BookExternalizer;
+import com.gopivotal.spring.sqlfirecache.serialized.NonSerializableBook;
+import com.gopivotal.spring.sqlfirecache.tier.LocalTier;
+import com.gopivotal.spring.sqlfirecache.tier.MappedDiskTier;
+import com.gopivotal.spring.sqlfirecache.tier.OffHeapTier;
+
+/**
+ * Runs the caches against embedded stand-in databases through their dialects.
+ * 
+ * @author cdelashmutt
+ */
+public class StandInDatabaseTests
+{
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private SingleConnectionDataSource dataSource;
+
+	@After
+	public void closeDataSource()
+	{
+		if (dataSource != null)
+			dataSource.destroy();
+	}
+
+	private void useH2()
+	{
+		dataSource = new SingleConnectionDataSource(
+				"jdbc:h2:mem:standin;DB_CLOSE_DELAY=-1", "sa", "", true);
+	}
+
+	private void useDerby()
+	{
+		dataSource = new SingleConnectionDataSource(
+				"jdbc:derby:memory:standin;create=true", "sa", "sa", true);
+	}
+
+	private <T extends AbstractSQLFireCache> T init(T cache, String name,
+			Dialect dialect)
+		throws Exception
+	{
+		cache.setName(name);
+		cache.setDataSource(dataSource);
+		cache.setDialect(dialect);
+		cache.afterPropertiesSet();
+		return cache;
+	}
+
+	private void exerciseCaches(Dialect dialect)
+		throws Exception
+	{
+		SerializedObjectCache books = init(new SerializedObjectCache(),
+				"books", dialect);
+		books.clear();
+		Book book = new Book(1, "Lord of the Rings");
+		books.put(book.getId(), book);
+		assertThat((Book) books.get(1).get(), equalTo(book));
+		book.setTitle("The Hobbit");
+		books.put(book.getId(), book);
+		assertThat((Book) books.get(1).get(), equalTo(book));
+		books.evict(1);
+		assertThat(books.get(1), nullValue());
+
+		StringCache json = init(new StringCache(), "json", dialect);
+		json.put(1, "{\"id\":1}");
+		assertThat((String) json.get(1).get(), equalTo("{\"id\":1}"));
+		json.clear();
+		assertThat(json.get(1), nullValue());
+
+		// A second cache instance finds the existing table
+		init(new SerializedObjectCache(), "books", dialect);
+	}
+
+	private void exerciseMultiplexedCaches(Dialect dialect)
+		throws Exception
+	{
+		StringCache first = new StringCache();
+		first.setSharedTableName("strings");
+		first.setTableInitialization(TableInitialization.MANAGED);
+		init(first, "first", dialect);
+		StringCache second = new StringCache();
+		second.setSharedTableName("strings");
+		second.setTableInitialization(TableInitialization.MANAGED);
+		init(second, "second", dialect);
+
+		SQLFireCacheManager manager = new SQLFireCacheManager();
+		manager.setDataSource(dataSource);
+		manager.setDialect(dialect);
+		manager.setCaches(Arrays.asList(first, second));
+		manager.afterPropertiesSet();
+
+		first.put(1, "one");
+		second.put(1, "uno");
+		assertThat((String) first.get(1).get(), equalTo("one"));
+		assertThat((String) second.get(1).get(), equalTo("uno"));
+		first.clear();
+		assertThat(first.get(1), nullValue());
+		assertThat((String) second.get(1).get(), equalTo("uno"));
+	}
+
+	private void exerciseInlineCache(Dialect dialect)
+		throws Exception
+	{
+		SerializedObjectCache cache = new SerializedObjectCache();
+		cache.setInlineThreshold(256);
+		init(cache, "inlined", dialect);
+		cache.put(1, "small");
+		char[] text = new char[1000];
+		Arrays.fill(text, 'a');
+		String large = new String(text);
+		cache.put(2, large);
+		assertThat((String) cache.get(1).get(), equalTo("small"));
+		assertThat((String) cache.get(2).get(), equalTo(large));
+
+		JdbcTemplate template = new JdbcTemplate(dataSource);
+		assertThat(template.queryForInt("SELECT COUNT(*) FROM SPRINGCACHE.inlined"
+				+ " WHERE OBJECT IS NULL AND k_ID = 1"), equalTo(1));
+		assertThat(template.queryForInt("SELECT COUNT(*) FROM SPRINGCACHE.inlined"
+				+ " WHERE INLINE_OBJECT IS NULL AND k_ID = 2"), equalTo(1));
+
+		// Moving between the columns leaves the other one empty
+		cache.put(1, large);
+		cache.put(2, "small");
+		assertThat((String) cache.get(1).get(), equalTo(large));
+		assertThat((String) cache.get(2).get(), equalTo("small"));
+	}
+
+	private void exerciseChunkedCache(Dialect dialect, int readThreads)
+		throws Exception
+	{
+		SerializedObjectCache cache = new SerializedObjectCache();
+		cache.setChunkThreshold(1000);
+		cache.setChunkSize(300);
+		cache.setChunkReadThreads(readThreads);
+		init(cache, "chunked", dialect);
+		cache.clear();
+		char[] text = new char[5000];
+		Arrays.fill(text, 'a');
+		String large = new String(text);
+		cache.put(1, large);
+		assertThat((String) cache.get(1).get(), equalTo(large));
+
+		// Chunks of a concurrent put the row doesn't point at yet are kept
+		JdbcTemplate template = new JdbcTemplate(dataSource);
+		template.update("INSERT INTO SPRINGCACHE.chunked_CHUNKS"
+				+ " (k_ID, VERSION, CHUNK_NO) VALUES (1, 42, 0)");
+		Arrays.fill(text, 'b');
+		String replacement = new String(text);
+		cache.put(1, replacement);
+		assertThat((String) cache.get(1).get(), equalTo(replacement));
+		assertThat(template.queryForInt("SELECT COUNT(DISTINCT VERSION)"
+				+ " FROM SPRINGCACHE.chunked_CHUNKS"), equalTo(2));
+		template.update("DELETE FROM SPRINGCACHE.chunked_CHUNKS"
+				+ " WHERE VERSION = 42");
+
+		cache.put(1, "small");
+		assertThat((String) cache.get(1).get(), equalTo("small"));
+		assertThat(template.queryForInt("SELECT COUNT(*)"
+				+ " FROM SPRINGCACHE.chunked_CHUNKS"), equalTo(0));
+
+		cache.put(2, large);
+		cache.evict(2);
+		assertThat(cache.get(2), nullValue());
+		assertThat(template.queryForInt("SELECT COUNT(*)"
+				+ " FROM SPRINGCACHE.chunked_CHUNKS"), equalTo(0));
+		cache.destroy();
+	}
+
+	private void exerciseDeduplicatedCache(Dialect dialect)
+		throws Exception
+	{
+		SerializedObjectCache cache = new SerializedObjectCache();
+		cache.setDeduplicate(true);
+		init(cache, "deduplicated", dialect);
+		cache.clear();
+		char[] text = new char[5000];
+		Arrays.fill(text, 'a');
+		String shared = new String(text);
+		cache.put(1, shared);
+		cache.put(2, shared);
+		cache.put(3, "other");
+		assertThat((String) cache.get(1).get(), equalTo(shared));
+		assertThat((String) cache.get(2).get(), equalTo(shared));
+		JdbcTemplate template = new JdbcTemplate(dataSource);
+		assertThat(template.queryForInt("SELECT COUNT(*)"
+				+ " FROM SPRINGCACHE.deduplicated_CONTENT"), equalTo(2));
+		assertThat(template.queryForInt("SELECT MAX(REFS)"
+				+ " FROM SPRINGCACHE.deduplicated_CONTENT"), equalTo(2));
+
+		// Putting the same value again keeps the count
+		cache.put(1, shared);
+		assertThat(template.queryForInt("SELECT MAX(REFS)"
+				+ " FROM SPRINGCACHE.deduplicated_CONTENT"), equalTo(2));
+
+		cache.put(1, "other");
+		cache.evict(2);
+		assertThat(cache.get(2), nullValue());
+		assertThat((String) cache.get(1).get(), equalTo("other"));
+		assertThat(template.queryForInt("SELECT COUNT(*)"
+				+ " FROM SPRINGCACHE.deduplicated_CONTENT"), equalTo(1));
+
+		cache.clear();
+		assertThat(template.queryForInt("SELECT COUNT(*)"
+				+ " FROM SPRINGCACHE.deduplicated_CONTENT"), equalTo(0));
+	}
+
+	private void exerciseJsonCache(Dialect dialect)
+		throws Exception
+	{
+		JsonObjectCache books = new JsonObjectCache();
+		books.setTargetType(Book.class);
+		init(books, "jsonbooks", dialect);
+		Book book = new Book(1, "The Hobbit");
+		book.setAuthor("J. R. R. Tolkien");
+		books.put(1, book);
+		assertThat((Book) books.get(1).get(), equalTo(book));
+		books.evict(1);
+		assertThat(books.get(1), nullValue());
+
+		JsonObjectCache documents = new JsonObjectCache();
+		init(documents, "jsondocuments", dialect);
+		Map<String, Object> document = new HashMap<String, Object>();
+		document.put("name", "caf\u00e9");
+		document.put("tags", Arrays.asList("a", "b"));
+		documents.put(1, document);
+		assertThat(documents.get(1).get(), equalTo((Object) document));
+	}
+
+	private void exerciseDictionaryCache(Dialect dialect)
+		throws Exception
+	{
+		StringCache cache = new StringCache();
+		cache.setDictionaryCompressedLength(256);
+		cache.setDictionarySampleCount(4);
+		init(cache, "dictionary", dialect);
+		for (int i = 0; i < 10; i++)
+		{
+			cache.put(i, json(i));
+		}
+		assertThat(cache.getDictionaryId(), equalTo(1));
+		JdbcTemplate template = new JdbcTemplate(dataSource);
+		assertThat(template.queryForInt("SELECT COUNT(*) FROM SPRINGCACHE.dictionary"
+				+ " WHERE DICT_ID = 1 AND DATA IS NULL"), equalTo(7));
+		assertThat(template.queryForInt("SELECT MAX(LENGTH(COMPRESSED_DATA))"
+				+ " FROM SPRINGCACHE.dictionary") < json(9).length() / 2,
+				equalTo(true));
+
+		// Values compressed with an older dictionary stay readable
+		assertThat(cache.trainDictionary(), equalTo(2));
+		cache.put(10, json(10));
+		for (int i = 0; i <= 10; i++)
+		{
+			assertThat((String) cache.get(i).get(), equalTo(json(i)));
+		}
+		assertThat(template.queryForInt("SELECT DICT_ID FROM SPRINGCACHE.dictionary"
+				+ " WHERE k_ID = 10"), equalTo(2));
+	}
+
+	private String json(int id)
+	{
+		return "{\"id\":" + id + ",\"title\":\"Book " + id
+				+ "\",\"author\":{\"firstName\":\"John\",\"lastName\":\"Doe\"},"
+				+ "\"tags\":[\"fiction\",\"paperback\"],\"available\":true}";
+	}
+
+	private void exerciseColumnCache(Dialect dialect)
+		throws Exception
+	{
+		ConfigurableColumnDefinedSQLFireCache cache = new ConfigurableColumnDefinedSQLFireCache();
+		cache.setTargetType(Book.class);
+		cache.setDataColumns(Arrays.asList(new ColumnDefinition("id",
+				SQLFType.INTEGER), new ColumnDefinition("TITLE",
+				SQLFType.VARCHAR, 255), new ColumnDefinition("author",
+				SQLFType.VARCHAR, 255)));
+		init(cache, "columns", dialect);
+		Book book = new Book(1, "The Silmarillion");
+		book.setAuthor("J. R. R. Tolkien");
+		cache.put(1, book);
+		book.setTitle("Unfinished Tales");
+		cache.put(1, book);
+		cache.put(2, new Book(2, "Untitled"));
+
+		JdbcTemplate template = new JdbcTemplate(dataSource);
+		assertThat(template.queryForObject("SELECT TITLE FROM SPRINGCACHE.columns"
+				+ " WHERE k_ID = 1", String.class), equalTo("Unfinished Tales"));
+		assertThat(template.queryForObject("SELECT author FROM SPRINGCACHE.columns"
+				+ " WHERE k_ID = 1", String.class), equalTo("J. R. R. Tolkien"));
+		assertThat(template.queryForInt("SELECT COUNT(*) FROM SPRINGCACHE.columns"
+				+ " WHERE author IS NULL"), equalTo(1));
+
+		// Rows are read back as the target type
+		assertThat(cache.get(1).get(), equalTo((Object) book));
+		cache.setTargetType(Object[].class);
+		assertThat((Object[]) cache.get(2).get(), equalTo(new Object[] { 2,
+				"Untitled", null }));
+		cache.setTargetType(Map.class);
+		assertThat(((Map<?, ?>) cache.get(1).get()).get("TITLE"),
+				equalTo((Object) "Unfinished Tales"));
+
+		// Whatever is read back can be put back, in each shape
+		cache.setTargetType(Book.class);
+		cache.put(3, cache.get(1).get());
+		assertThat(cache.get(3).get(), equalTo((Object) book));
+		cache.setTargetType(Object[].class);
+		Object[] row = (Object[]) cache.get(2).get();
+		row[2] = "Anonymous";
+		cache.put(2, row);
+		assertThat((Object[]) cache.get(2).get(), equalTo(new Object[] { 2,
+				"Untitled", "Anonymous" }));
+		cache.setTargetType(Map.class);
+		@SuppressWarnings("unchecked")
+		Map<String, Object> entries = (Map<String, Object>) cache.get(3).get();
+		entries.put("TITLE", "The Hobbit");
+		cache.put(3, entries);
+		assertThat(((Map<?, ?>) cache.get(3).get()).get("TITLE"),
+				equalTo((Object) "The Hobbit"));
+		assertThat(((Map<?, ?>) cache.get(3).get()).get("author"),
+				equalTo((Object) "J. R. R. Tolkien"));
+
+		// Values that would not be read back as the same type are not stored
+		cache.put(4, new Book(4, "Refused"));
+		assertThat(cache.get(4), nullValue());
+		cache.setTargetType(TitleAndAuthor.class);
+		cache.setDataColumns(Arrays.asList(new ColumnDefinition("TITLE",
+				SQLFType.VARCHAR, 255), new ColumnDefinition("author",
+				SQLFType.VARCHAR, 255)));
+		assertThat(((TitleAndAuthor) cache.get(1).get()).author,
+				equalTo("J. R. R. Tolkien"));
+	}
+
+	static class TitleAndAuthor
+	{
+		final String title;
+
+		final String author;
+
+		TitleAndAuthor(String title, String author)
+		{
+			this.title = title;
+			this.author = author;
+		}
+	}
+
+	private void exerciseLazyCache(Dialect dialect)
+		throws Exception
+	{
+		SerializedObjectCache cache = new SerializedObjectCache();
+		cache.setLazyDeserialization(true);
+		cache.setInlineThreshold(256);
+		init(cache, "lazy", dialect);
+		Book book = new Book(1, "Lord of the Rings");
+		char[] text = new char[1000];
+		Arrays.fill(text, 'a');
+		String large = new String(text);
+		cache.put(1, book);
+		cache.put(2, large);
+
+		LazyValueWrapper wrapper = (LazyValueWrapper) cache.get(1);
+		assertThat(wrapper.isDeserialized(), equalTo(false));
+		assertThat((Book) wrapper.get(), equalTo(book));
+		assertThat(wrapper.isDeserialized(), equalTo(true));
+		assertThat(wrapper.get(), sameInstance(wrapper.get()));
+		assertThat((String) cache.get(2).get(), equalTo(large));
+		assertThat(cache.get(3), nullValue());
+	}
+
+	private void exerciseRawBytes(Dialect dialect)
+		throws Exception
+	{
+		SerializedObjectCache cache = new SerializedObjectCache();
+		init(cache, "rawsource", dialect);
+		SerializedObjectCache copy = new SerializedObjectCache();
+		copy.setChunkThreshold(1000);
+		copy.setChunkSize(300);
+		init(copy, "rawcopy", dialect);
+		SerializedObjectCache deduplicated = new SerializedObjectCache();
+		deduplicated.setDeduplicate(true);
+		init(deduplicated, "rawdeduplicated", dialect);
+
+		Book book = new Book(1, "Lord of the Rings");
+		cache.put(1, book);
+		byte[] data = cache.getBytes(1);
+		assertThat(cache.getSerializer().deserialize(data), equalTo((Object) book));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertThat(cache.writeTo(1, out), equalTo(true));
+		assertThat(out.toByteArray(), equalTo(data));
+		assertThat(cache.getBytes(2), nullValue());
+
+		// Passed on without deserializing, including into chunks
+		char[] text = new char[5000];
+		Arrays.fill(text, 'a');
+		cache.put(2, new String(text));
+		copy.putBytes(1, data);
+		copy.putBytes(2, cache.getBytes(2));
+		deduplicated.putBytes(2, copy.getBytes(2));
+		assertThat((Book) copy.get(1).get(), equalTo(book));
+		assertThat((String) copy.get(2).get(), equalTo(new String(text)));
+		assertThat(deduplicated.getBytes(2), equalTo(cache.getBytes(2)));
+	}
+
+	private void exerciseReplicatedCache(Dialect dialect)
+		throws Exception
+	{
+		// Two members replicating the same table
+		SerializedObjectCache local = new SerializedObjectCache();
+		local.setReplicaRefreshInterval(60000);
+		init(local, "reference", dialect);
+		SerializedObjectCache remote = new SerializedObjectCache();
+		remote.setReplicaRefreshInterval(60000);
+		remote.setLazyDeserialization(true);
+		init(remote, "reference", dialect);
+		local.clear();
+		Book book = new Book(1, "Lord of the Rings");
+		local.put(1, book);
+		assertThat((Book) local.get(1).get(), equalTo(book));
+		assertThat(remote.get(1), nullValue());
+
+		remote.refreshReplica();
+		assertThat((Book) remote.get(1).get(), equalTo(book));
+		book.setTitle("The Hobbit");
+		remote.put(1, book);
+		remote.put(2, "two");
+		local.refreshReplica();
+		assertThat((Book) local.get(1).get(), equalTo(book));
+		assertThat((String) local.get(2).get(), equalTo("two"));
+
+		// Served locally until a refresh sees the rows are gone
+		JdbcTemplate template = new JdbcTemplate(dataSource);
+		template.update("DELETE FROM SPRINGCACHE.reference WHERE k_ID=2");
+		assertThat((String) local.get(2).get(), equalTo("two"));
+		local.refreshReplica();
+		assertThat(local.get(2), nullValue());
+		remote.evict(1);
+		assertThat(remote.get(1), nullValue());
+		local.refreshReplica();
+		assertThat(local.get(1), nullValue());
+
+		StringCache strings = new StringCache();
+		strings.setSharedTableName("replicated_strings");
+		strings.setReplicaRefreshInterval(60000);
+		strings.setTableInitialization(TableInitialization.LAZY);
+		init(strings, "first", dialect);
+		StringCache other = new StringCache();
+		other.setSharedTableName("replicated_strings");
+		other.setReplicaRefreshInterval(60000);
+		init(other, "second", dialect);
+		strings.put(1, "one");
+		other.put(1, "uno");
+		strings.refreshReplica();
+		assertThat((String) strings.get(1).get(), equalTo("one"));
+		assertThat((String) other.get(1).get(), equalTo("uno"));
+		strings.clear();
+		assertThat(strings.get(1), nullValue());
+		for (AbstractSQLFireCache cache : Arrays.<AbstractSQLFireCache> asList(
+				local, remote, strings, other))
+		{
+			cache.destroy();
+		}
+	}
+
+	private void exerciseVersionedCache(Dialect dialect)
+		throws Exception
+	{
+		// Two members holding values of the same table
+		SerializedObjectCache local = new SerializedObjectCache();
+		local.setVersionedCacheSize(100);
+		init(local, "versioned", dialect);
+		SerializedObjectCache remote = new SerializedObjectCache();
+		remote.setVersionedCacheSize(100);
+		init(remote, "versioned", dialect);
+		local.clear();
+		Book book = new Book(1, "Lord of the Rings");
+		local.put(1, book);
+		Object first = local.get(1).get();
+		assertThat((Book) first, equalTo(book));
+		assertThat(local.get(1).get(), sameInstance(first));
+		assertThat(local.getFetchCount(), equalTo(1L));
+		assertThat(local.getValidatedCount(), equalTo(1L));
+
+		// Changes by others are seen on the next get
+		Book replacement = new Book(1, "The Hobbit");
+		remote.put(1, replacement);
+		assertThat((Book) local.get(1).get(), equalTo(replacement));
+		assertThat(local.getFetchCount(), equalTo(2L));
+		remote.evict(1);
+		assertThat(local.get(1), nullValue());
+
+		// Chunked values are held whole
+		SerializedObjectCache chunked = new SerializedObjectCache();
+		chunked.setVersionedCacheSize(100);
+		chunked.setChunkThreshold(1000);
+		chunked.setChunkSize(300);
+		init(chunked, "versioned_chunks", dialect);
+		char[] text = new char[5000];
+		Arrays.fill(text, 'a');
+		chunked.put(1, new String(text));
+		assertThat((String) chunked.get(1).get(), equalTo(new String(text)));
+		assertThat((String) chunked.get(1).get(), equalTo(new String(text)));
+		assertThat(chunked.getValidatedCount(), equalTo(1L));
+
+		StringCache strings = new StringCache();
+		strings.setVersionedCacheSize(100);
+		init(strings, "versioned_strings", dialect);
+		strings.put(1, "one");
+		assertThat((String) strings.get(1).get(), equalTo("one"));
+		strings.put(1, "uno");
+		assertThat((String) strings.get(1).get(), equalTo("uno"));
+		assertThat((String) strings.get(1).get(), equalTo("uno"));
+		assertThat(strings.getFetchCount(), equalTo(2L));
+		assertThat(strings.getValidatedCount(), equalTo(1L));
+	}
+
+	private void exercisePinnedCache(Dialect dialect)
+		throws Exception
+	{
+		SerializedObjectCache cache = new SerializedObjectCache();
+		cache.setHotKeyTracker(new HotKeyTracker(2));
+		cache.setPinThreshold(3);
+		cache.setPinTimeToLive(60000);
+		init(cache, "pinned", dialect);
+		cache.clear();
+		cache.put(1, "hot");
+		cache.put(2, "cold");
+		for (int i = 0; i < 3; i++)
+		{
+			assertThat((String) cache.get(1).get(), equalTo("hot"));
+		}
+		cache.get(2);
+		assertThat(cache.getPinnedCount(), equalTo(1L));
+		assertThat(cache.getHotKeys().keySet().iterator().next(),
+				equalTo((Object) 1));
+
+		// Pinned values are served without a query until they expire
+		JdbcTemplate template = new JdbcTemplate(dataSource);
+		template.update("DELETE FROM SPRINGCACHE.pinned");
+		assertThat((String) cache.get(1).get(), equalTo("hot"));
+		assertThat(cache.get(2), nullValue());
+		cache.evict(1);
+		assertThat(cache.get(1), nullValue());
+		assertThat(cache.getPinnedCount(), equalTo(0L));
+	}
+
+	private void exerciseTieredCache(Dialect dialect, LocalTier tier)
+		throws Exception
+	{
+		SerializedObjectCache cache = new SerializedObjectCache();
+		cache.setLocalTier(tier);
+		init(cache, "tiered", dialect);
+		cache.clear();
+		Book book = new Book(1, "Lord of the Rings");
+		cache.put(1, book);
+
+		// Served from the tier once the row is gone
+		JdbcTemplate template = new JdbcTemplate(dataSource);
+		template.update("DELETE FROM SPRINGCACHE.tiered");
+		assertThat((Book) cache.get(1).get(), equalTo(book));
+
+		cache.put(2, "two");
+		tier.clear();
+		assertThat((String) cache.get(2).get(), equalTo("two"));
+		assertThat(tier.getEntryCount(), equalTo(1));
+		assertThat(cache.get(1), nullValue());
+		cache.evict(2);
+		assertThat(tier.getEntryCount(), equalTo(0));
+		assertThat(cache.get(2), nullValue());
+
+		// A value filled in by a get is gone once evicted
+		cache.put(3, "three");
+		tier.clear();
+		assertThat((String) cache.get(3).get(), equalTo("three"));
+		assertThat(tier.get(3), notNullValue());
+		cache.evict(3);
+		assertThat(tier.get(3), nullValue());
+		assertThat(cache.get(3), nullValue());
+		assertThat(tier.get(3), nullValue());
+		cache.put(4, "four");
+		assertThat((String) cache.get(4).get(), equalTo("four"));
+		cache.clear();
+		assertThat(cache.get(4), nullValue());
+		assertThat(tier.getEntryCount(), equalTo(0));
+
+		// A put the table rejects isn't held in the tier either
+		template.execute("DROP TABLE SPRINGCACHE.tiered");
+		cache.put(3, "three");
+		assertThat(tier.get(3), nullValue());
+	}
+
+	@Test
+	public void testH2()
+		throws Exception
+	{
+		useH2();
+		exerciseCaches(new H2Dialect());
+	}
+
+	@Test
+	public void testH2Multiplexed()
+		throws Exception
+	{
+		useH2();
+		exerciseMultiplexedCaches(new H2Dialect());
+	}
+
+	@Test
+	public void testDerby()
+		throws Exception
+	{
+		useDerby();
+		exerciseCaches(new DerbyDialect());
+	}
+
+	@Test
+	public void testDerbyMultiplexed()
+		throws Exception
+	{
+		useDerby();
+		exerciseMultiplexedCaches(new DerbyDialect());
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Test
+	public void testH2TypeIdTable()
+		throws Exception
+	{
+		useH2();
+		Map externalizers = new HashMap();
+		externalizers.put(NonSerializableBook.class, new BookExternalizer());
+		SerializedObjectCache books = new SerializedObjectCache();
+		books.setExternalizers(externalizers);
+		books.setTypeIdTableName("types");
+		init(books, "books", new H2Dialect());
+		NonSerializableBook book = new NonSerializableBook(1, "Lord of the Rings");
+		books.put(book.getId(), book);
+
+		SerializedObjectCache reader = new SerializedObjectCache();
+		reader.setExternalizers(externalizers);
+		reader.setTypeIdTableName("types");
+		init(reader, "books", new H2Dialect());
+		assertThat(reader.getSerializer().getTypeRegistry()
+				.getId(NonSerializableBook.class), equalTo(0));
+		assertThat((NonSerializableBook) reader.get(1).get(), equalTo(book));
+		books.clear();
+	}
+
+	@Test
+	public void testH2Inline()
+		throws Exception
+	{
+		useH2();
+		exerciseInlineCache(new H2Dialect());
+	}
+
+	@Test
+	public void testDerbyInline()
+		throws Exception
+	{
+		useDerby();
+		exerciseInlineCache(new DerbyDialect());
+	}
+
+	@Test
+	public void testH2Chunked()
+		throws Exception
+	{
+		useH2();
+		exerciseChunkedCache(new H2Dialect(), 0);
+		exerciseChunkedCache(new H2Dialect(), 4);
+	}
+
+	@Test
+	public void testDerbyChunked()
+		throws Exception
+	{
+		useDerby();
+		exerciseChunkedCache(new DerbyDialect(), 0);
+	}
+
+	@Test
+	public void testH2Deduplicated()
+		throws Exception
+	{
+		useH2();
+		exerciseDeduplicatedCache(new H2Dialect());
+	}
+
+	@Test
+	public void testDerbyDeduplicated()
+		throws Exception
+	{
+		useDerby();
+		exerciseDeduplicatedCache(new DerbyDialect());
+	}
+
+	@Test
+	public void testH2Json()
+		throws Exception
+	{
+		useH2();
+		exerciseJsonCache(new H2Dialect());
+	}
+
+	@Test
+	public void testDerbyJson()
+		throws Exception
+	{
+		useDerby();
+		exerciseJsonCache(new DerbyDialect());
+	}
+
+	@Test
+	public void testH2Dictionary()
+		throws Exception
+	{
+		useH2();
+		exerciseDictionaryCache(new H2Dialect());
+	}
+
+	@Test
+	public void testDerbyDictionary()
+		throws Exception
+	{
+		useDerby();
+		exerciseDictionaryCache(new DerbyDialect());
+	}
+
+	@Test
+	public void testH2Columns()
+		throws Exception
+	{
+		useH2();
+		exerciseColumnCache(new H2Dialect());
+	}
+
+	@Test
+	public void testDerbyColumns()
+		throws Exception
+	{
+		useDerby();
+		exerciseColumnCache(new DerbyDialect());
+	}
+
+	@Test
+	public void testH2Lazy()
+		throws Exception
+	{
+		useH2();
+		exerciseLazyCache(new H2Dialect());
+	}
+
+	@Test
+	public void testDerbyLazy()
+		throws Exception
+	{
+		useDerby();
+		exerciseLazyCache(new DerbyDialect());
+	}
+
+	@Test
+	public void testH2RawBytes()
+		throws Exception
+	{
+		useH2();
+		exerciseRawBytes(new H2Dialect());
+	}
+
+	@Test
+	public void testDerbyRawBytes()
+		throws Exception
+	{
+		useDerby();
+		exerciseRawBytes(new DerbyDialect());
+	}
+
+	@Test
+	public void testH2OffHeapTier()
+		throws Exception
+	{
+		useH2();
+		exerciseTieredCache(new H2Dialect(), new OffHeapTier(1024 * 1024));
+	}
+
+	@Test
+	public void testDerbyOffHeapTier()
+		throws Exception
+	{
+		useDerby();
+		exerciseTieredCache(new DerbyDialect(), new OffHeapTier(1024 * 1024));
+	}
+
+	@Test
+	public void testH2MappedDiskTier()
+		throws Exception
+	{
+		useH2();
+		exerciseTieredCache(new H2Dialect(), new MappedDiskTier(
+				folder.getRoot(), 4 * 1024 * 1024, 1024 * 1024));
+	}
+
+	@Test
+	public void testDerbyMappedDiskTier()
+		throws Exception
+	{
+		useDerby();
+		exerciseTieredCache(new DerbyDialect(), new MappedDiskTier(
+				folder.getRoot(), 4 * 1024 * 1024, 1024 * 1024));
+	}
+
+	@Test
+	public void testH2Replicated()
+		throws Exception
+	{
+		useH2();
+		exerciseReplicatedCache(new H2Dialect());
+	}
+
+	@Test
+	public void testDerbyReplicated()
+		throws Exception
+	{
+		useDerby();
+		exerciseReplicatedCache(new DerbyDialect());
+	}
+
+	@Test
+	public void testH2Versioned()
+		throws Exception
+	{
+		useH2();
+		exerciseVersionedCache(new H2Dialect());
+	}
+
+	@Test
+	public void testDerbyVersioned()
+		throws Exception
+	{
+		useDerby();
+		exerciseVersionedCache(new DerbyDialect());
+	}
+
+	@Test
+	public void testH2Pinned()
+		throws Exception
+	{
+		useH2();
+		exercisePinnedCache(new H2Dialect());
+	}
+
+	@Test
+	public void testDerbyPinned()
+		throws Exception
+	{
+		useDerby();
+		exercisePinnedCache(new DerbyDialect());
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.backend;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import com.gopivotal.spring.sqlfirecache.ColumnDefinition;
+import com.gopivotal.spring.sqlfirecache.SQLFType;
+import com.gopivotal.spring.sqlfirecache.dialect.H2Dialect;
+import com.gopivotal.spring.sqlfirecache.serialized.Book;
+
+/**
+ * Runs the same operations against the in-process and JDBC backends.
+ * 
+ * @author cdelashmutt
+ */
+public class StorageBackendTests
+{
+	private SingleConnectionDataSource dataSource;
+
+	@After
+	public void closeDataSource()
+	{
+		if (dataSource != null)
+			dataSource.destroy();
+	}
+
+	private void exerciseBackend(StorageBackend backend)
+	{
+		backend.clear();
+		backend.put(1, new byte[] { 1 });
+		backend.put(1, new byte[] { 1, 1 });
+		assertThat(backend.get(1), equalTo(new byte[] { 1, 1 }));
+		assertThat(backend.get(2), nullValue());
+
+		Map<Integer, byte[]> entries = new HashMap<Integer, byte[]>();
+		entries.put(1, new byte[] { 2 });
+		entries.put(2, new byte[] { 3 });
+		backend.putAll(entries);
+		Map<Object, byte[]> found = backend.getAll(Arrays.asList(1, 2, 3));
+		assertThat(found.size(), equalTo(2));
+		assertThat(found.get(1), equalTo(new byte[] { 2 }));
+		assertThat(found.get(2), equalTo(new byte[] { 3 }));
+
+		final int[] scanned = new int[1];
+		backend.scan(new EntryCallback()
+		{
+			@Override
+			public void processEntry(Object key, byte[] value)
+			{
+				scanned[0]++;
+			}
+		});
+		assertThat(scanned[0], equalTo(2));
+
+		backend.delete(1);
+		assertThat(backend.get(1), nullValue());
+		backend.clear();
+		assertThat(backend.get(2), nullValue());
+
+		StorageBackendCache cache = new StorageBackendCache("books", backend);
+		Book book = new Book(1, "Lord of the Rings");
+		cache.put(book.getId(), book);
+		assertThat((Book) cache.get(1).get(), equalTo(book));
+		cache.evict(1);
+		assertThat(cache.get(1), nullValue());
+	}
+
+	@Test
+	public void testConcurrentMapBackend()
+	{
+		exerciseBackend(new ConcurrentMapStorageBackend());
+	}
+
+	@Test
+	public void testJdbcBackend()
+		throws Exception
+	{
+		dataSource = new SingleConnectionDataSource(
+				"jdbc:h2:mem:backend;DB_CLOSE_DELAY=-1", "sa", "", true);
+		JdbcStorageBackend backend = new JdbcStorageBackend();
+		backend.setDataSource(dataSource);
+		backend.setDialect(new H2Dialect());
+		backend.setTableName("books");
+		backend.afterPropertiesSet();
+		exerciseBackend(backend);
+	}
+
+	@Test
+	public void testJdbcBackendKeyColumn()
+		throws Exception
+	{
+		dataSource = new SingleConnectionDataSource(
+				"jdbc:h2:mem:backend;DB_CLOSE_DELAY=-1", "sa", "", true);
+		JdbcStorageBackend backend = new JdbcStorageBackend();
+		backend.setDataSource(dataSource);
+		backend.setDialect(new H2Dialect());
+		backend.setTableName("titles");
+		backend.setIdColumn(new ColumnDefinition("k_ID", SQLFType.VARCHAR, 64));
+		backend.afterPropertiesSet();
+		backend.clear();
+
+		backend.put("lotr", new byte[] { 1 });
+		backend.put("hobbit", new byte[] { 2 });
+		assertThat(backend.get("lotr"), equalTo(new byte[] { 1 }));
+		Map<Object, byte[]> found = backend.getAll(Arrays.asList("lotr",
+				"hobbit", "silmarillion"));
+		assertThat(found.size(), equalTo(2));
+		assertThat(found.get("hobbit"), equalTo(new byte[] { 2 }));
+		assertThat(new JdbcTemplate(dataSource).queryForObject(
+				"SELECT TYPE_NAME FROM INFORMATION_SCHEMA.COLUMNS"
+						+ " WHERE TABLE_NAME = 'TITLES' AND COLUMN_NAME = 'K_ID'",
+				String.class), equalTo("VARCHAR"));
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.codec;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.gopivotal.spring.sqlfirecache.ObjectSerializer;
+import com.gopivotal.spring.sqlfirecache.compression.DeflateCompressor;
+import com.gopivotal.spring.sqlfirecache.externalizer.TypeRegistry;
+import com.gopivotal.spring.sqlfirecache.serialized.Book;
+import com.gopivotal.spring.sqlfirecache.serialized.BookExternalizer;
+import com.gopivotal.spring.sqlfirecache.serialized.NonSerializableBook;
+
+/**
+ * Round trips values through the codecs, and reads values written by one
+ * codec after switching to another.
+ * 
+ * @author cdelashmutt
+ */
+public class ValueCodecTests
+{
+	private Object roundTrip(ObjectSerializer serializer, Object value)
+		throws Exception
+	{
+		return serializer.deserialize(serializer.serialize(value));
+	}
+
+	@Test
+	public void testCompactTypes()
+		throws Exception
+	{
+		ObjectSerializer serializer = new ObjectSerializer();
+		serializer.setCodec(new CompactBinaryCodec());
+
+		assertThat(roundTrip(serializer, null), nullValue());
+		assertThat(roundTrip(serializer, "Lord of the Rings \u2122"),
+				equalTo((Object) "Lord of the Rings \u2122"));
+		assertThat(roundTrip(serializer, 42), equalTo((Object) 42));
+		assertThat(roundTrip(serializer, -42L), equalTo((Object) (-42L)));
+		assertThat(roundTrip(serializer, 1.5d), equalTo((Object) 1.5d));
+		assertThat(roundTrip(serializer, true), equalTo((Object) true));
+		assertThat(roundTrip(serializer, 'c'), equalTo((Object) 'c'));
+		assertThat((byte[]) roundTrip(serializer, new byte[] { 1, 2 }),
+				equalTo(new byte[] { 1, 2 }));
+
+		List<Object> list = new ArrayList<Object>(Arrays.<Object> asList(1,
+				"two", null));
+		assertThat(roundTrip(serializer, list), equalTo((Object) list));
+		HashSet<Object> set = new HashSet<Object>(list);
+		assertThat(roundTrip(serializer, set), equalTo((Object) set));
+		Map<Object, Object> map = new HashMap<Object, Object>();
+		map.put("books", list);
+		map.put(2L, new Book(2, "The Hobbit"));
+		assertThat(roundTrip(serializer, map), equalTo((Object) map));
+
+		// Other collection classes keep their class through the fallback
+		TreeMap<String, Integer> sorted = new TreeMap<String, Integer>();
+		sorted.put("b", 2);
+		sorted.put("a", 1);
+		Object decoded = roundTrip(serializer, sorted);
+		assertThat(decoded.getClass(), equalTo((Object) TreeMap.class));
+		assertThat(decoded, equalTo((Object) sorted));
+		List<Object> unmodifiable = Collections.unmodifiableList(list);
+		assertThat(roundTrip(serializer, unmodifiable).getClass(),
+				equalTo((Object) unmodifiable.getClass()));
+	}
+
+	@Test
+	public void testCompactIsSmaller()
+		throws Exception
+	{
+		ObjectSerializer java = new ObjectSerializer();
+		ObjectSerializer compact = new ObjectSerializer();
+		compact.setCodec(new CompactBinaryCodec());
+		List<Object> value = new ArrayList<Object>(Arrays.<Object> asList(1,
+				2L, "three"));
+		assertThat(compact.serialize(value).length,
+				lessThan(java.serialize(value).length));
+	}
+
+	@Test
+	public void testReadAfterCodecChange()
+		throws Exception
+	{
+		ObjectSerializer serializer = new ObjectSerializer();
+		Book book = new Book(1, "Lord of the Rings");
+		byte[] javaSerialized = serializer.serialize(book);
+		serializer.setCodec(new CompactBinaryCodec());
+		byte[] compact = serializer.serialize("compact");
+		assertThat(compact[0], equalTo(CompactBinaryCodec.ID));
+		assertThat(serializer.deserialize(javaSerialized), equalTo((Object) book));
+
+		// A serializer that still writes Java serialization can read both
+		ObjectSerializer reader = new ObjectSerializer();
+		reader.setCodecs(Arrays.<ValueCodec> asList(new CompactBinaryCodec()));
+		assertThat(reader.deserialize(compact), equalTo((Object) "compact"));
+		assertThat(reader.deserialize(javaSerialized), equalTo((Object) book));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testJavaSerializationIdReserved()
+	{
+		new ObjectSerializer().setCodec(new CompactBinaryCodec()
+		{
+			@Override
+			public byte getId()
+			{
+				return JavaSerializationCodec.ID;
+			}
+		});
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Test
+	public void testRegisteredType()
+		throws Exception
+	{
+		ObjectSerializer serializer = new ObjectSerializer();
+		Map externalizers = new HashMap();
+		externalizers.put(NonSerializableBook.class, new BookExternalizer());
+		serializer.setExternalizers(externalizers);
+		NonSerializableBook book = new NonSerializableBook(1, "Lord of the Rings");
+		byte[] described = serializer.serialize(book);
+
+		TypeRegistry registry = new TypeRegistry();
+		registry.register(7, NonSerializableBook.class, new BookExternalizer());
+		serializer.setTypeRegistry(registry);
+		byte[] registered = serializer.serialize(book);
+		assertThat(registered[0], equalTo(RegisteredTypeCodec.ID));
+		assertThat(registered.length, lessThan(described.length));
+		assertThat(serializer.deserialize(registered), equalTo((Object) book));
+		assertThat(serializer.deserialize(described), equalTo((Object) book));
+	}
+
+	@Test
+	public void testGeneratedExternalizer()
+		throws Exception
+	{
+		ObjectSerializer serializer = new ObjectSerializer();
+		serializer.getJavaCodec().setGenerateExternalizers(true);
+		NonSerializableBook book = new NonSerializableBook(1, "Lord of the Rings");
+		book.setAuthor("Tolkien");
+		assertThat(roundTrip(serializer, book), equalTo((Object) book));
+		assertThat(serializer.getJavaCodec().getExternalizer(Book.class),
+				nullValue());
+	}
+
+	@Test
+	public void testCompression()
+		throws Exception
+	{
+		ObjectSerializer serializer = new ObjectSerializer();
+		char[] text = new char[10000];
+		Arrays.fill(text, 'a');
+		String large = new String(text);
+		byte[] uncompressed = serializer.serialize(large);
+
+		serializer.setCompressor(new DeflateCompressor());
+		serializer.setCompressionThreshold(1024);
+		byte[] compressed = serializer.serialize(large);
+		assertThat(compressed[0], equalTo(ObjectSerializer.COMPRESSED_ID));
+		assertThat(compressed.length, lessThan(uncompressed.length / 10));
+		assertThat(serializer.serialize("small")[0],
+				equalTo(JavaSerializationCodec.ID));
+
+		assertThat(serializer.deserialize(compressed), equalTo((Object) large));
+		assertThat(serializer.deserialize(new ByteArrayInputStream(compressed)),
+				equalTo((Object) large));
+		assertThat(serializer.deserialize(uncompressed), equalTo((Object) large));
+		assertThat(serializer.getCompressionStats().getCompressedValues(),
+				equalTo(1L));
+		assertThat(serializer.getCompressionStats().getCompressionRatio(),
+				lessThan(0.1d));
+
+		// Data that doesn't shrink is stored as it is
+		byte[] random = new byte[5000];
+		new Random(1).nextBytes(random);
+		byte[] stored = serializer.serialize(random);
+		assertThat(stored[0], equalTo(JavaSerializationCodec.ID));
+		assertThat((byte[]) serializer.deserialize(stored), equalTo(random));
+		assertThat(serializer.getCompressionStats().getCompressedValues(),
+				equalTo(1L));
+		assertThat(serializer.getCompressionStats().getSkippedValues(),
+				equalTo(1L));
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.tier;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks storage, restart recovery and compaction in the mapped disk tier.
+ * 
+ * @author cdelashmutt
+ */
+public class MappedDiskTierTests
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private byte[] value(int size, int fill)
+	{
+		byte[] data = new byte[size];
+		Arrays.fill(data, (byte) fill);
+		return data;
+	}
+
+	private byte[] read(LocalTier tier, Object key)
+	{
+		ByteBuffer buffer = tier.get(key);
+		if (buffer == null)
+			return null;
+		byte[] data = new byte[buffer.remaining()];
+		buffer.get(data);
+		return data;
+	}
+
+	@Test
+	public void testPutGetRemove()
+		throws Exception
+	{
+		MappedDiskTier tier = new MappedDiskTier(folder.getRoot(),
+				64 * 1024, 16 * 1024);
+		tier.put(1, value(1000, 1), 0, 1000);
+		tier.put("two", value(10, 2), 0, 10);
+		assertThat(read(tier, 1), equalTo(value(1000, 1)));
+		assertThat(read(tier, "two"), equalTo(value(10, 2)));
+		assertThat(tier.getEntryCount(), equalTo(2));
+
+		tier.put(1, value(100, 3), 0, 100);
+		assertThat(read(tier, 1), equalTo(value(100, 3)));
+		tier.remove("two");
+		assertThat(read(tier, "two"), nullValue());
+
+		// Values larger than half a segment are not held
+		tier.put(99, value(10 * 1024, 0), 0, 10 * 1024);
+		assertThat(tier.get(99), nullValue());
+
+		tier.clear();
+		assertThat(tier.getEntryCount(), equalTo(0));
+		assertThat(tier.getUsedBytes(), equalTo(0L));
+		tier.close();
+	}
+
+	@Test
+	public void testRecovery()
+		throws Exception
+	{
+		File directory = folder.getRoot();
+		MappedDiskTier tier = new MappedDiskTier(directory, 64 * 1024,
+				16 * 1024);
+		for (int i = 0; i < 50; i++)
+		{
+			tier.put(i, value(500, i), 0, 500);
+		}
+		tier.put(7, value(20, 70), 0, 20);
+		tier.remove(8);
+		tier.close();
+
+		MappedDiskTier reopened = new MappedDiskTier(directory, 64 * 1024,
+				16 * 1024);
+		assertThat(reopened.getEntryCount(), equalTo(49));
+		assertThat(read(reopened, 7), equalTo(value(20, 70)));
+		assertThat(reopened.get(8), nullValue());
+		assertThat(read(reopened, 49), equalTo(value(500, 49)));
+		assertThat(reopened.getUsedBytes(), equalTo(tier.getUsedBytes()));
+
+		// A torn record ends the replay of its segment
+		reopened.put("last", value(100, 5), 0, 100);
+		reopened.close();
+		File newest = newestSegment(directory);
+		RandomAccessFile raf = new RandomAccessFile(newest, "rw");
+		try
+		{
+			ByteBuffer record = raf.getChannel().map(
+					java.nio.channels.FileChannel.MapMode.READ_WRITE, 0,
+					raf.length());
+			int end = 0;
+			while (record.get(end) != 0)
+			{
+				end += 13 + record.getInt(end + 1) + record.getInt(end + 5);
+			}
+			// Corrupt the last value byte written
+			record.put(end - 1, (byte) 42);
+		}
+		finally
+		{
+			raf.close();
+		}
+		MappedDiskTier recovered = new MappedDiskTier(directory, 64 * 1024,
+				16 * 1024);
+		assertThat(recovered.get("last"), nullValue());
+		assertThat(recovered.get(49), notNullValue());
+	}
+
+	private File newestSegment(File directory)
+	{
+		int highest = -1;
+		for (String name : directory.list())
+		{
+			highest = Math.max(highest, Integer.parseInt(name.replaceAll(
+					"\\D", "")));
+		}
+		return new File(directory, "segment-" + highest + ".dat");
+	}
+
+	@Test
+	public void testCompaction()
+		throws Exception
+	{
+		MappedDiskTier tier = new MappedDiskTier(folder.getRoot(),
+				64 * 1024, 16 * 1024);
+		// Rewriting a few keys leaves the older segments dead
+		for (int round = 0; round < 40; round++)
+		{
+			for (int i = 0; i < 10; i++)
+			{
+				tier.put(i, value(500, round), 0, 500);
+			}
+		}
+		assertThat(tier.getEntryCount(), equalTo(10));
+		assertThat(tier.getSegmentCount(), lessThanOrEqualTo(2));
+		assertThat(folder.getRoot().list().length,
+				equalTo(tier.getSegmentCount()));
+		for (int i = 0; i < 10; i++)
+		{
+			assertThat(read(tier, i), equalTo(value(500, 39)));
+		}
+
+		// Live data beyond the cap is dropped
+		for (int i = 0; i < 400; i++)
+		{
+			tier.put(i, value(500, 1), 0, 500);
+		}
+		assertThat(tier.getSegmentCount(), lessThanOrEqualTo(4));
+		assertThat(tier.getUsedBytes(), lessThanOrEqualTo(64L * 1024));
+		assertThat(tier.getEntryCount(), lessThanOrEqualTo(128));
+		assertThat(tier.get(399), notNullValue());
+		tier.close();
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one 
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.gopivotal.spring.sqlfirecache.tier;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Checks storage and segmented LRU eviction in the off-heap tier.
+ * 
+ * @author cdelashmutt
+ */
+public class OffHeapTierTests
+{
+	private byte[] value(int size, int fill)
+	{
+		byte[] data = new byte[size];
+		Arrays.fill(data, (byte) fill);
+		return data;
+	}
+
+	private byte[] read(LocalTier tier, Object key)
+	{
+		ByteBuffer buffer = tier.get(key);
+		if (buffer == null)
+			return null;
+		byte[] data = new byte[buffer.remaining()];
+		buffer.get(data);
+		return data;
+	}
+
+	@Test
+	public void testPutGetRemove()
+	{
+		OffHeapTier tier = new OffHeapTier(64 * 1024, 4, 64);
+		tier.put(1, value(1000, 1), 0, 1000);
+		tier.put(2, value(10, 2), 0, 10);
+		assertThat(read(tier, 1), equalTo(value(1000, 1)));
+		assertThat(read(tier, 2), equalTo(value(10, 2)));
+		assertThat(tier.getEntryCount(), equalTo(2));
+		assertThat(tier.getUsedBytes(), equalTo(17L * 64));
+
+		tier.put(1, value(100, 3), 0, 100);
+		assertThat(read(tier, 1), equalTo(value(100, 3)));
+		tier.remove(2);
+		assertThat(read(tier, 2), nullValue());
+		assertThat(tier.getHitCount(), equalTo(3L));
+		assertThat(tier.getMissCount(), equalTo(1L));
+		tier.clear();
+		assertThat(tier.getEntryCount(), equalTo(0));
+		assertThat(tier.getUsedBytes(), equalTo(0L));
+	}
+
+	@Test
+	public void testSegmentedEviction()
+	{
+		// One segment of ten 100 byte blocks
+		OffHeapTier tier = new OffHeapTier(1000, 1, 100);
+		for (int i = 0; i < 5; i++)
+		{
+			tier.put(i, value(100, i), 0, 100);
+		}
+		// Read keys are protected from a scan of keys read once
+		tier.get(0);
+		tier.get(1);
+		for (int i = 10; i < 30; i++)
+		{
+			tier.put(i, value(100, i), 0, 100);
+		}
+		assertThat(tier.get(0), notNullValue());
+		assertThat(tier.get(1), notNullValue());
+		assertThat(tier.get(2), nullValue());
+		assertThat(tier.get(29), notNullValue());
+		assertThat(tier.getEntryCount(), equalTo(10));
+
+		// Values larger than a segment are not held
+		tier.put(99, value(1001, 0), 0, 1001);
+		assertThat(tier.get(99), nullValue());
+	}
+
+	private static final TierReader<byte[]> BYTES = new TierReader<byte[]>()
+	{
+		@Override
+		public byte[] read(InputStream in, int length) throws IOException
+		{
+			byte[] data = new byte[length];
+			new DataInputStream(in).readFully(data);
+			assertThat(in.read(), equalTo(-1));
+			return data;
+		}
+	};
+
+	@Test
+	public void testReadInPlace() throws Exception
+	{
+		OffHeapTier tier = new OffHeapTier(64 * 1024, 1, 64);
+		tier.put(1, value(1000, 1), 0, 1000);
+		tier.put(2, value(10, 2), 0, 10);
+		assertThat(tier.read(1, BYTES), equalTo(value(1000, 1)));
+		assertThat(tier.read(2, BYTES), equalTo(value(10, 2)));
+		assertThat(tier.read(3, BYTES), nullValue());
+		assertThat(tier.getHitCount(), equalTo(2L));
+		assertThat(tier.getMissCount(), equalTo(1L));
+
+		// A value evicted and its blocks reused while being read is a miss
+		final OffHeapTier reused = tier;
+		byte[] read = tier.read(1, new TierReader<byte[]>()
+		{
+			@Override
+			public byte[] read(InputStream in, int length)
+				throws IOException, ClassNotFoundException
+			{
+				reused.remove(1);
+				reused.put(3, value(1000, 3), 0, 1000);
+				return BYTES.read(in, length);
+			}
+		});
+		assertThat(read, nullValue());
+		assertThat(tier.getMissCount(), equalTo(2L));
+		assertThat(tier.read(3, BYTES), equalTo(value(1000, 3)));
+	}
+}